@@ -6,6 +6,19 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 public class ApiUtil {
+    /**
+     * Binary JSON encoding (<a href="https://github.com/FasterXML/smile-format-specification">Smile</a>)
+     * accepted and produced by endpoints that transfer run data, as an alternative to JSON.
+     */
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+
+    /**
+     * Newline delimited JSON: one document per line, used by the streaming exports.
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    public static final String TEXT_CSV = "text/csv";
+
     public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
     static {
@@ -24,7 +24,9 @@ public class Label extends ProtectedType {
     @JsonProperty( required = true )
     @Schema(description = "A collection of Extractors, that will be combined in the Combination Function")
     public Collection<Extractor> extractors;
-    @Schema(description = "A Combination Function that defines how values from Extractors are combined to produce a Label Value",
+    @Schema(description = "A Combination Function that defines how values from Extractors are combined to produce a Label Value. " +
+            "Instead of JavaScript this can reference a built-in function: builtin:sum, builtin:avg, builtin:min, builtin:max, " +
+            "builtin:number, builtin:pick(path), builtin:ratio(a, b) or builtin:percentile(p)",
     example = "value => { return ((value.reduce((a,b) => a+b))/value.length*1000).toFixed(3); }")
     public String function;
     @NotNull
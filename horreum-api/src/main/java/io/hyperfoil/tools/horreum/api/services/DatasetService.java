@@ -3,6 +3,7 @@ package io.hyperfoil.tools.horreum.api.services;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
 
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.*;
 
@@ -39,7 +40,7 @@ import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 public interface DatasetService {
    @Path("{id}")
    @GET
-   @Produces(MediaType.APPLICATION_JSON)
+   @Produces({ MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE })
    @Operation(description="Retrieve Dataset by ID")
    @Parameters(value = {
            @Parameter(name = "id", description = "Dataset ID to retrieve", example = "101"),
@@ -92,6 +93,7 @@ public interface DatasetService {
 
    @GET
    @Path("{datasetId}/labelValues")
+   @Produces({ MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE })
    List<LabelValue> labelValues(@PathParam("datasetId") int datasetId);
 
    @POST
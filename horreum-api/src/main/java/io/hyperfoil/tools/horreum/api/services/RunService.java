@@ -5,9 +5,11 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.hyperfoil.tools.horreum.api.ApiIgnore;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.*;
 
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -35,8 +37,8 @@ import org.jboss.resteasy.reactive.Separator;
 import org.jboss.resteasy.reactive.multipart.FileUpload;
 
 @Path("/api/run")
-@Consumes({MediaType.APPLICATION_JSON})
-@Produces(MediaType.APPLICATION_JSON)
+@Consumes({MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE})
+@Produces({MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE})
 @Tag(name = "Run", description = "Manage test runs. Runs are instances of results of a benchmark execution")
 @Extension(name = "x-smallrye-profile-external", value = "")
 public interface RunService {
@@ -75,6 +77,22 @@ public interface RunService {
     })
     RunSummary getRunSummary(@PathParam("id") int id, @QueryParam("token") String token);
 
+    @GET
+    @Path("{id}/status")
+    @APIResponse(
+            responseCode = "404",
+            description = "If no Run have been found with the given id",
+            content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    @APIResponseSchema(value = RunStatus.class,
+            responseDescription = "Processing stage of the Run and the number of entities created for it",
+            responseCode = "200")
+    @Operation(description = "Get processing status of a Run, e.g. after it has been uploaded asynchronously")
+    @Parameters(value = {
+            @Parameter(name = "id", in = ParameterIn.PATH, description = "Run ID", example = "202"),
+            @Parameter(name = "token", in = ParameterIn.QUERY, description = "Run API token", example = "094678029a2aaf9a2847502273099bb3a1b2338c2b9c618ed09aef0181666e38")
+    })
+    RunStatus getRunStatus(@PathParam("id") int id, @QueryParam("token") String token);
+
     @GET
     @Path("{id}/data")
     @Operation(description = "Get Run data by Run ID")
@@ -212,7 +230,7 @@ public interface RunService {
 
     @POST
     @Path("test")
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE})
     @Operation(description = "Upload a new Run")
     @Parameters(value = {
             @Parameter(name = "test", description = "test name of ID", example = "my-benchmark"),
@@ -229,6 +247,42 @@ public interface RunService {
                  @QueryParam("token") String token,
                  Run run);
 
+    @POST
+    @Path("batch")
+    @Consumes({ MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_NDJSON })
+    @Operation(description = "Upload multiple Runs at once. Runs are read either from a JSON array or from newline-delimited JSON " +
+            "and they are stored in transactions of configurable size; the Runs are processed in the background.")
+    @Parameters(value = {
+            @Parameter(name = "test", description = "test name or ID used for Runs that do not set testid", example = "my-benchmark"),
+            @Parameter(name = "owner", description = "Name of the new owner", example = "perf-team"),
+            @Parameter(name = "access", description = "New Access level", example = "0"),
+            @Parameter(name = "token", in = ParameterIn.QUERY, description = "API token", example = "094678029a2aaf9a2847502273099bb3a1b2338c2b9c618ed09aef0181666e38"),
+    })
+    @RequestBody(name = "runs",
+            content = @Content(mediaType = MediaType.APPLICATION_JSON, schema = @Schema(type = SchemaType.ARRAY, implementation = Run.class)),
+            required = true)
+    @APIResponses(
+            value = {
+                    @APIResponse(responseCode = "200",
+                            description = "IDs of the new Runs in the order these were uploaded",
+                            content = {
+                                    @Content(
+                                            schema = @Schema(type = SchemaType.ARRAY, implementation = Integer.class),
+                                            example = "[101, 102, 103]")
+                            }
+                    ),
+                    @APIResponse(responseCode = "400",
+                            description = "Invalid Run; the Runs preceding it may have been stored already, their IDs are listed in the error",
+                            content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                                    example = "{ \"error\": \"Cannot read runs: ...\", \"stored\": [101, 102, 103] }"))
+            }
+    )
+    List<Integer> addBatch(@QueryParam("test") String testNameOrId,
+                           @QueryParam("owner") String owner,
+                           @QueryParam("access") Access access,
+                           @QueryParam("token") String token,
+                           InputStream runs);
+
     @POST
     @Path("data")
     @RequestBody(content = @Content(mediaType = MediaType.APPLICATION_JSON,
@@ -265,6 +319,12 @@ public interface RunService {
                             content = @Content(mediaType = MediaType.APPLICATION_JSON,
                                     schema = @Schema(type = SchemaType.INTEGER, implementation = Integer.class),
                                     example = "101")),
+                    @APIResponse(
+                            responseCode = "202",
+                            description = "id of the newly generated run when uploaded asynchronously; the run has not been processed yet",
+                            content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                                    schema = @Schema(type = SchemaType.INTEGER, implementation = Integer.class),
+                                    example = "101")),
                     @APIResponse(
                             responseCode = "400",
                             description = "Some fields are missing or invalid",
@@ -287,7 +347,8 @@ public interface RunService {
             @Parameter(name = "token", description = "Horreum internal token. Incompatible with Keycloak", example = "094678029a2aaf9a2847502273099bb3a1b2338c2b9c618ed09aef0181666e38"),
             @Parameter(name = "schema", in = ParameterIn.QUERY, description = "Schema URI", example = "uri:my-benchmark:0.2"),
             @Parameter(name = "description", description = "Run description", example = "AWS runs"),
-
+            @Parameter(name = "async", description = "Respond with 202 Accepted as soon as the Run is stored and process it in the background; " +
+                    "progress can be followed through the status endpoint", example = "true"),
     })
     Response addRunFromData(@QueryParam("start") String start,
                             @QueryParam("stop") String stop,
@@ -297,6 +358,7 @@ public interface RunService {
                             @QueryParam("token") String token,
                             @QueryParam("schema") String schemaUri,
                             @QueryParam("description") String description,
+                            @QueryParam("async") boolean async,
                             @RequestBody(required = true) String data);
 
     @POST
@@ -316,6 +378,7 @@ public interface RunService {
                             @Parameter(description = "Horreum internal token. Incompatible with Keycloak") @QueryParam("token") String token,
                             @QueryParam("schema") String schemaUri,
                             @QueryParam("description") String description,
+                            @QueryParam("async") boolean async,
                             @RestForm("data") FileUpload data,
                             @RestForm("metadata") FileUpload metadata);
 
@@ -464,6 +527,11 @@ public interface RunService {
     })
     void recalculateAll(@QueryParam("from") String from, @QueryParam("to") String to);
 
+    @GET
+    @Path("recalculateAll")
+    @Operation(description = "Get progress of the last recalculation of Datasets for Runs between two dates")
+    RecalculateAllStatus getRecalculateAllStatus();
+
     @Schema(type = SchemaType.OBJECT, allOf = ProtectedTimeType.class)
    class RunSummary extends ProtectedTimeType {
       @JsonProperty(required = true)
@@ -515,6 +583,78 @@ public interface RunService {
         public List<RunSummary> runs;
     }
 
+    @Schema(type = SchemaType.STRING, description = "Stage of processing the Run has reached")
+    enum ProcessingStage {
+        /** The Run is stored but it is waiting for transformation. */
+        QUEUED,
+        /** Datasets have been created; label values are waiting for calculation. */
+        TRANSFORMED,
+        /** Label values of all Datasets have been calculated; datapoints are waiting for calculation. */
+        LABELS_CALCULATED,
+        /** Datapoints of all Datasets have been created; change detection has not evaluated all of them yet. */
+        DATAPOINTS_CALCULATED,
+        /** Change detection has evaluated all datapoints of the Run. */
+        PROCESSED,
+        /** Transformation did not create any Dataset, or label values of a Dataset could not be extracted. */
+        FAILED,
+        /** The Run has been trashed and it won't be processed. */
+        TRASHED,
+    }
+
+    @Schema(type = SchemaType.OBJECT)
+    class RunStatus {
+        @JsonProperty(required = true)
+        @Schema(description = "Run unique ID", example = "202")
+        public int id;
+        @JsonProperty(required = true)
+        @Schema(description = "test ID run relates to", example = "101")
+        public int testid;
+        @NotNull
+        @Schema(required = true, description = "Stage of processing the Run has reached", example = "PROCESSED")
+        public ProcessingStage stage;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of Datasets created by transformation", example = "1")
+        public long datasets;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of calculated label values in the Datasets", example = "12")
+        public long labelValues;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of datapoints created for change detection", example = "4")
+        public long datapoints;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of changes detected in the Datasets", example = "0")
+        public long changes;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of errors reported while transforming the Run", example = "0")
+        public long errors;
+    }
+
+    class RecalculateAllStatus {
+        @JsonProperty(required = true)
+        @Schema(description = "Start of the recalculated time range", example = "1698013206000")
+        public long from;
+        @JsonProperty(required = true)
+        @Schema(description = "End of the recalculated time range", example = "1698013206000")
+        public long to;
+        @JsonProperty(required = true)
+        @Schema(description = "Time when the recalculation started", example = "1698013206000")
+        public long started;
+        @Schema(description = "Time when all Runs have been queued for recalculation, not set while in progress", example = "1698013806000")
+        public Long finished;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of Runs in the time range", example = "5000")
+        public long totalRuns;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of Runs queued for recalculation so far", example = "1200")
+        public long queuedRuns;
+        @JsonProperty(required = true)
+        @Schema(description = "Average number of Runs queued per second", example = "12.5")
+        public double runsPerSecond;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of Runs queued for recalculation and not processed by any node yet", example = "500")
+        public int queueDepth;
+    }
+
     class RunCount {
         @JsonProperty(required = true)
         @Schema(description = "Total count of Runs visible", example = "100")
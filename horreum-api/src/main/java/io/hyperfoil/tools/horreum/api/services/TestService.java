@@ -2,6 +2,7 @@ package io.hyperfoil.tools.horreum.api.services;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.TestExport;
@@ -21,6 +22,7 @@ import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.enums.ParameterIn;
 import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
@@ -199,6 +201,7 @@ public interface TestService {
 
    @GET
    @Path("{id}/labelValues")
+   @Produces({ MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE })
    @Operation(description="List all Label Values for a Test")
    @Parameters(value = {
            @Parameter(name = "id", description = "Test ID to retrieve Label Values for", example = "101"),
@@ -249,6 +252,59 @@ public interface TestService {
            @QueryParam("include") @Separator(",") List<String> include,
            @QueryParam("exclude") @Separator(",") List<String> exclude);
 
+   @GET
+   @Path("{id}/labelValues/export")
+   @Produces({ ApiUtil.APPLICATION_NDJSON, ApiUtil.TEXT_CSV })
+   @Operation(description="Stream all Label Values for a Test, as newline delimited JSON (one Label Values object per line) or CSV (one column per label)")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Test ID to retrieve Label Values for", example = "101"),
+           @Parameter(name = "filtering", description = "Retrieve values for Filtering Labels", example = "true"),
+           @Parameter(name = "metrics", description = "Retrieve values for Metric Labels", example = "false"),
+           @Parameter(
+                   name = "filter",
+                   description = "either a required json sub-document or path expression",
+                   examples = {
+                           @ExampleObject(name="object", value="{labelName:necessaryValue,...}", description = "json object that must exist in the values object"),
+                           @ExampleObject(name="string", value="$.count ? (@ < 20 && @ > 10)",description = "valid filtering jsonpath that returns null if not found (not predicates)")
+                   }
+           ),
+           @Parameter(name = "before", description = "ISO-like date time string or epoch millis", example = "1970-01-01T00:00:00+00:00 or an integer"),
+           @Parameter(name = "after", description = "ISO-like date time string or epoch millis", example = "1970-01-01T00:00:00+00:00 or an integer"),
+           @Parameter(name = "sort", description = "json path to sortable value or start or stop for sorting by time",example = "$.label or start or stop"),
+           @Parameter(name = "direction",description = "either Ascending or Descending",example="count"),
+           @Parameter(name = "format",description = "either ndjson or csv",example="csv"),
+           @Parameter(name = "include", description = "label name(s) to include in the result as scalar or comma separated",
+                   examples = {
+                           @ExampleObject(name="single", value="id", description = "including a single label"),
+                           @ExampleObject(name="multiple", value="id,count", description = "including multiple labels")
+                   }),
+           @Parameter(name = "exclude", description = "label name(s) to exclude from the result as scalar or comma separated",
+                   examples = {
+                           @ExampleObject(name="single", value="id", description = "excluding a single label"),
+                           @ExampleObject(name="multiple", value="id,count", description = "excluding multiple labels")
+                   })
+   })
+   @APIResponses(
+           value = { @APIResponse( responseCode = "200",
+                   content = {
+                           @Content ( mediaType = ApiUtil.APPLICATION_NDJSON, schema = @Schema(implementation = ExportedLabelValues.class)),
+                           @Content ( mediaType = ApiUtil.TEXT_CSV, schema = @Schema(type = SchemaType.STRING))
+                   }
+           )}
+   )
+   Response exportLabelValues(
+           @PathParam("id") int testId,
+           @QueryParam("filter") @DefaultValue("{}") String filter,
+           @QueryParam("before") @DefaultValue("") String before,
+           @QueryParam("after") @DefaultValue("") String after,
+           @QueryParam("filtering") @DefaultValue("true") boolean filtering,
+           @QueryParam("metrics") @DefaultValue("true") boolean metrics,
+           @QueryParam("sort") @DefaultValue("") String sort,
+           @QueryParam("direction") @DefaultValue("Ascending") String direction,
+           @QueryParam("format") @DefaultValue("ndjson") String format,
+           @QueryParam("include") @Separator(",") List<String> include,
+           @QueryParam("exclude") @Separator(",") List<String> exclude);
+
    @POST
    @Consumes(MediaType.APPLICATION_JSON)
    @Path("{id}/transformers")
@@ -274,6 +330,23 @@ public interface TestService {
    })
    RecalculationStatus getRecalculationStatus(@PathParam("id") int testId);
 
+   @DELETE
+   @Path("{id}/recalculate")
+   @Operation(description="Cancel recalculation of Datasets for Test")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Test ID to cancel recalculation for", example = "101"),
+   })
+   void cancelRecalculation(@PathParam("id") int testId);
+
+   @GET
+   @Path("{id}/slowestFunctions")
+   @Operation(description="List the labels, transformers and change detection variables of the Test that took the longest time to evaluate since the server started")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Test ID to list function timings for", example = "101"),
+           @Parameter(name = "limit", description = "Maximum number of functions to return", example = "10"),
+   })
+   List<FunctionTiming> slowestFunctions(@PathParam("id") int testId, @QueryParam("limit") @DefaultValue("10") int limit);
+
    @GET
    @Path("{id}/export")
    @Produces(MediaType.APPLICATION_JSON)
@@ -361,6 +434,14 @@ public interface TestService {
       @JsonProperty(required = true)
       @Schema(description = "Total number of generated datasets", example = "186")
       public long datasets;
+      @Schema(description = "ID of the recalculation job", example = "42")
+      public Long jobId;
+      @Schema(description = "State of the recalculation job", example = "RUNNING", enumeration = { "RUNNING", "FINISHED", "CANCELLED" })
+      public String state;
+      @Schema(description = "Number of completed recalculations that failed", example = "2")
+      public long failed;
+      @Schema(description = "Estimated time when the recalculation finishes", example = "1698013806000")
+      public Long estimatedFinish;
 
       public RecalculationStatus() {
       }
@@ -371,6 +452,46 @@ public interface TestService {
       }
    }
 
+   class FunctionTiming {
+      @NotNull
+      @Schema(description = "Type of the function", example = "LABEL", enumeration = { "LABEL", "TRANSFORMER", "VARIABLE" })
+      public String kind;
+      @JsonProperty(required = true)
+      @Schema(description = "ID of the label, transformer or variable", example = "101")
+      public int id;
+      @Schema(description = "Name of the label, transformer or variable", example = "throughput")
+      public String name;
+      @JsonProperty(required = true)
+      @Schema(description = "Number of evaluations", example = "1500")
+      public long invocations;
+      @JsonProperty(required = true)
+      @Schema(description = "Number of evaluations that failed", example = "0")
+      public long failures;
+      @JsonProperty(required = true)
+      @Schema(description = "Total time spent evaluating the function in milliseconds", example = "3200.5")
+      public double totalMillis;
+      @JsonProperty(required = true)
+      @Schema(description = "Mean evaluation time in milliseconds", example = "2.13")
+      public double meanMillis;
+      @JsonProperty(required = true)
+      @Schema(description = "Longest evaluation time in milliseconds", example = "45.7")
+      public double maxMillis;
+
+      public FunctionTiming() {
+      }
+
+      public FunctionTiming(String kind, int id, String name, long invocations, long failures, double totalMillis, double meanMillis, double maxMillis) {
+         this.kind = kind;
+         this.id = id;
+         this.name = name;
+         this.invocations = invocations;
+         this.failures = failures;
+         this.totalMillis = totalMillis;
+         this.meanMillis = meanMillis;
+         this.maxMillis = maxMillis;
+      }
+   }
+
    class TestQueryResult {
       @NotNull
       @Schema(description="Array of Tests")
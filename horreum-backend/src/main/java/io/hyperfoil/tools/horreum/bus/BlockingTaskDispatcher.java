@@ -1,74 +1,290 @@
 package io.hyperfoil.tools.horreum.bus;
 
 import io.hyperfoil.tools.horreum.svc.Util;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.runtime.Startup;
-import io.vertx.core.Vertx;
+import io.vertx.core.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Executes tasks of each test one at a time, in the order these were submitted. The tests share a pool of
+ * threads; a test holds a thread only while it has tasks to run and gives it up after a few tasks so that
+ * busy tests do not starve the others. Each test queues at most <code>horreum.test-executor.queue-size</code>
+ * tasks; when the queue is full the caller waits up to <code>horreum.test-executor.enqueue-timeout</code>
+ * for space and the task is rejected with {@link RejectedExecutionException} after that. Event loop threads
+ * must not block and tasks of a test enqueueing more work for the same test would wait for themselves;
+ * these add tasks over the limit instead. Tasks submitted in a transaction are enqueued after it commits,
+ * so that waiting for space does not hold the transaction open, and dropped when it rolls back.
+ */
 @Startup
 @ApplicationScoped
 public class BlockingTaskDispatcher {
    private static final Logger log = Logger.getLogger(BlockingTaskDispatcher.class);
+   static final String QUEUED_METRIC = "horreum.test.tasks.queued";
+   static final String WAIT_METRIC = "horreum.test.tasks.wait";
+   static final String RUN_METRIC = "horreum.test.tasks.run";
+   static final String REJECTED_METRIC = "horreum.test.tasks.rejected";
+   // tasks a test runs before giving up the thread to other tests
+   private static final int TASKS_PER_TURN = 10;
+
+   @ConfigProperty(name = "horreum.test-executor.threads", defaultValue = "32")
+   int threads;
+
+   @ConfigProperty(name = "horreum.test-executor.queue-size", defaultValue = "10000")
+   int queueSize;
+
+   @ConfigProperty(name = "horreum.test-executor.enqueue-timeout", defaultValue = "30s")
+   Duration enqueueTimeout;
+
    @Inject
-   Vertx vertx;
+   TransactionManager tm;
 
-   private final ConcurrentMap<Integer, TaskQueue> taskQueues = new ConcurrentHashMap<>();
+   // test whose tasks are being executed by the current thread
+   private static final ThreadLocal<Integer> currentTest = new ThreadLocal<>();
+   private final ConcurrentMap<Integer, TestTaskQueue> taskQueues = new ConcurrentHashMap<>();
+   private final AtomicInteger queued = new AtomicInteger();
+   private ExecutorService executor;
+   private Timer waitTimer;
+   private Timer runTimer;
+   private Counter rejected;
 
-   public void executeForTest(int testId, Runnable runnable) {
-      Runnable task = Util.wrapForBlockingExecution(runnable);
-      vertx.executeBlocking(promise -> {
-         try {
-            TaskQueue queue = taskQueues.computeIfAbsent(testId, TaskQueue::new);
-            queue.executeOrAdd(task);
-         } catch (Exception e) {
-            log.error("Failed to execute blocking task", e);
-         } finally {
-            promise.complete();
-         }
+   @PostConstruct
+   void init() {
+      AtomicInteger counter = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+         Thread thread = new Thread(runnable, "horreum-test-executor-" + counter.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
       });
+      Gauge.builder(QUEUED_METRIC, queued, AtomicInteger::get)
+            .description("Number of tasks waiting for execution in the queues of all tests")
+            .register(Metrics.globalRegistry);
+      Gauge.builder("horreum.test.tasks.active-tests", taskQueues, ConcurrentMap::size)
+            .description("Number of tests with tasks queued or running")
+            .register(Metrics.globalRegistry);
+      waitTimer = Timer.builder(WAIT_METRIC)
+            .description("Time tasks spent in the queue of the test")
+            .register(Metrics.globalRegistry);
+      runTimer = Timer.builder(RUN_METRIC)
+            .description("Time spent executing the tasks")
+            .register(Metrics.globalRegistry);
+      rejected = Counter.builder(REJECTED_METRIC)
+            .description("Number of tasks rejected because the queue of the test stayed full")
+            .register(Metrics.globalRegistry);
    }
 
-}
+   @PreDestroy
+   void shutdown() {
+      executor.shutdown();
+   }
 
-class TaskQueue {
-   private static final Logger log = Logger.getLogger(TaskQueue.class);
-   private final int testId;
-   private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
-   private final ReentrantLock lock = new ReentrantLock();
+   /**
+    * @throws RejectedExecutionException if the queue of the test stays full for <code>horreum.test-executor.enqueue-timeout</code>.
+    */
+   public void executeForTest(int testId, Runnable runnable) {
+      Runnable wrapped = Util.wrapForBlockingExecution(runnable);
+      if (isTransactionActive()) {
+         Util.registerTxSynchronization(tm, txStatus -> {
+            if (txStatus == Status.STATUS_COMMITTED) {
+               enqueue(testId, wrapped);
+            } else {
+               log.debugf("Not executing task for test %d as the transaction has not been committed", testId);
+            }
+         });
+      } else {
+         enqueue(testId, wrapped);
+      }
+   }
 
-   public TaskQueue(int testId) {
-      this.testId = testId;
+   private boolean isTransactionActive() {
+      try {
+         return tm.getStatus() == Status.STATUS_ACTIVE;
+      } catch (SystemException e) {
+         log.errorf(e, "Cannot get the status of the current transaction");
+         return false;
+      }
    }
 
-   public void executeOrAdd(Runnable runnable) {
-      queue.add(runnable);
-      do {
-         if (lock.tryLock()) {
-            log.debugf("This thread is going to execute tasks (%d) for test %d, lock level %d", queue.size(), testId, lock.getHoldCount());
+   private void enqueue(int testId, Runnable runnable) {
+      Task task = new Task(runnable, System.nanoTime());
+      boolean mayWait = !Context.isOnEventLoopThread() && !Integer.valueOf(testId).equals(currentTest.get());
+      long deadline = System.nanoTime() + enqueueTimeout.toNanos();
+      for (;;) {
+         TestTaskQueue[] target = new TestTaskQueue[1];
+         Added[] added = new Added[1];
+         // the queue is removed in computeIfPresent when idle; compute makes sure we don't add to a removed queue
+         taskQueues.compute(testId, (id, queue) -> {
+            if (queue == null) {
+               queue = new TestTaskQueue(id);
+            }
+            target[0] = queue;
+            added[0] = queue.add(task, !mayWait);
+            return queue;
+         });
+         if (added[0] == Added.SCHEDULE) {
             try {
-               while (!queue.isEmpty()) {
-                  Runnable task = queue.poll();
-                  task.run();
+               executor.execute(target[0]::drain);
+            } catch (RejectedExecutionException e) {
+               log.errorf("Cannot execute tasks for test %d, shutting down", testId);
+            }
+         }
+         if (added[0] != Added.FULL) {
+            return;
+         }
+         if (!target[0].awaitSpace(deadline)) {
+            rejected.increment();
+            log.errorf("Rejecting task for test %d: the queue is full", testId);
+            throw new RejectedExecutionException("Too many tasks queued for test " + testId);
+         }
+      }
+   }
+
+   int queuedTasks() {
+      return queued.get();
+   }
+
+   private record Task(Runnable runnable, long submitted) {
+   }
+
+   private enum Added {
+      QUEUED,
+      // the caller should schedule draining the queue
+      SCHEDULE,
+      FULL
+   }
+
+   private class TestTaskQueue {
+      private final int testId;
+      private final Queue<Task> queue = new ArrayDeque<>();
+      // true when the queue has been handed to a thread
+      private boolean scheduled;
+
+      TestTaskQueue(int testId) {
+         this.testId = testId;
+      }
+
+      synchronized Added add(Task task, boolean overLimit) {
+         if (queue.size() >= capacity()) {
+            if (!overLimit) {
+               return Added.FULL;
+            }
+            log.debugf("Queue of test %d is full, adding task over the limit", testId);
+         }
+         queue.add(task);
+         queued.incrementAndGet();
+         if (scheduled) {
+            return Added.QUEUED;
+         }
+         scheduled = true;
+         return Added.SCHEDULE;
+      }
+
+      /**
+       * @return false if the queue is still full at the deadline.
+       */
+      synchronized boolean awaitSpace(long deadline) {
+         try {
+            while (queue.size() >= capacity()) {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  return false;
                }
+               TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+
+      private int capacity() {
+         return Math.max(1, queueSize);
+      }
+
+      private synchronized Task poll() {
+         Task task = queue.poll();
+         if (task != null) {
+            queued.decrementAndGet();
+            if (queue.size() == capacity() - 1) {
+               notifyAll();
+            }
+         }
+         return task;
+      }
+
+      /**
+       * @return true if the queue has more tasks and has to be scheduled again.
+       */
+      private synchronized boolean finishTurn() {
+         if (queue.isEmpty()) {
+            scheduled = false;
+            return false;
+         }
+         return true;
+      }
+
+      synchronized boolean isIdle() {
+         return !scheduled && queue.isEmpty();
+      }
+
+      void drain() {
+         currentTest.set(testId);
+         try {
+            drainTurn();
+         } finally {
+            currentTest.remove();
+         }
+      }
+
+      private void drainTurn() {
+         for (int i = 0; i < TASKS_PER_TURN; ++i) {
+            Task task = poll();
+            if (task == null) {
+               break;
+            }
+            long start = System.nanoTime();
+            waitTimer.record(start - task.submitted, TimeUnit.NANOSECONDS);
+            try {
+               task.runnable.run();
             } catch (Throwable t) {
                log.errorf(t, "Error executing task in the queue for test %d", testId);
             } finally {
-               log.debugf("Finished executing tasks for test %d", testId);
-               lock.unlock();
+               runTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+         }
+         if (finishTurn()) {
+            // let the other tests run before we continue
+            try {
+               executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+               log.errorf("Cannot execute remaining tasks for test %d, shutting down", testId);
             }
          } else {
-            log.debugf("There's another thread executing the tasks (%d) for test %d", queue.size(), testId);
-            return;
+            taskQueues.computeIfPresent(testId, (id, queue) -> queue.isIdle() ? null : queue);
          }
-      } while (!queue.isEmpty());
+      }
    }
 }
-
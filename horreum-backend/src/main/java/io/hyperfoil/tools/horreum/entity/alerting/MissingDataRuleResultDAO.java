@@ -2,6 +2,7 @@ package io.hyperfoil.tools.horreum.entity.alerting;
 
 import java.io.Serializable;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Objects;
 
 import jakarta.persistence.Column;
@@ -76,6 +77,10 @@ public class MissingDataRuleResultDAO extends PanacheEntityBase {
       MissingDataRuleResultDAO.delete("pk.datasetId", id);
    }
 
+   public static void deleteForDatasets(Collection<Integer> ids) {
+      MissingDataRuleResultDAO.delete("pk.datasetId IN ?1", ids);
+   }
+
    public static void deleteForDataRule(int id) {
       MissingDataRuleResultDAO.delete("pk.ruleId", id);
    }
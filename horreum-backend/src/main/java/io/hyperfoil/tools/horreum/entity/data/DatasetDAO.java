@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 
+import io.hyperfoil.tools.horreum.hibernate.ImmutableJsonBinaryType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import jakarta.persistence.Basic;
 import jakarta.persistence.CascadeType;
@@ -60,7 +61,7 @@ public class DatasetDAO extends OwnedEntityBase {
 
    @NotNull
    @Basic(fetch = FetchType.LAZY)
-   @Type(JsonBinaryType.class)
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode data;
 
@@ -71,6 +72,13 @@ public class DatasetDAO extends OwnedEntityBase {
    @NotNull
    public int ordinal;
 
+   /**
+    * Hash of the dataset content and run attributes it was created with; recalculation keeps datasets
+    * with the same hash rather than recreating them.
+    */
+   @Column(name = "data_hash")
+   public String dataHash;
+
    @CollectionTable
    @ElementCollection
    public Collection<ValidationErrorDAO> validationErrors;
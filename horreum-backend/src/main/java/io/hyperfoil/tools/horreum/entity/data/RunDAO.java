@@ -3,13 +3,15 @@ package io.hyperfoil.tools.horreum.entity.data;
 import com.fasterxml.jackson.annotation.JsonIgnoreType;
 import io.hyperfoil.tools.horreum.entity.ValidationErrorDAO;
 
-import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.hibernate.ImmutableJsonBinaryType;
 
+import jakarta.persistence.Basic;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.CollectionTable;
 import jakarta.persistence.Column;
 import jakarta.persistence.ElementCollection;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
@@ -20,6 +22,7 @@ import java.time.Instant;
 import java.util.Collection;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import org.hibernate.annotations.LazyGroup;
 import org.hibernate.annotations.Type;
 
 @Entity(name = "run")
@@ -47,12 +50,20 @@ public class RunDAO extends ProtectedBaseEntity {
    @NotNull
    public Integer testid;
 
+   /**
+    * Loaded on first access (the entity is enhanced at build time); operations that need only
+    * the other columns do not fetch the payload.
+    */
    @NotNull
-   @Type(JsonBinaryType.class)
+   @Basic(fetch = FetchType.LAZY)
+   @LazyGroup("data")
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode data;
 
-   @Type(JsonBinaryType.class)
+   @Basic(fetch = FetchType.LAZY)
+   @LazyGroup("metadata")
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode metadata;
 
@@ -60,6 +71,18 @@ public class RunDAO extends ProtectedBaseEntity {
    @Column(columnDefinition = "boolean default false")
    public boolean trashed;
 
+   /**
+    * Hash of data and metadata as uploaded; identical uploads to the same test are not stored again.
+    */
+   @Column(name = "payload_hash")
+   public String payloadHash;
+
+   /**
+    * Key of the full data in the payload store; when set, {@link #data} holds only its skeleton.
+    */
+   @Column(name = "data_ref")
+   public String dataRef;
+
    @OneToMany(mappedBy = "run", cascade = CascadeType.ALL, orphanRemoval = true)
    public Collection<DatasetDAO> datasets;
 
@@ -75,8 +98,7 @@ public class RunDAO extends ProtectedBaseEntity {
               ", stop=" + stop +
               ", description='" + description + '\'' +
               ", testid=" + testid +
-              ", data=" + data +
-              ", metadata=" + metadata +
+              ", dataRef=" + dataRef +
               ", trashed=" + trashed +
               ", datasets=" + datasets +
               ", validationErrors=" + validationErrors +
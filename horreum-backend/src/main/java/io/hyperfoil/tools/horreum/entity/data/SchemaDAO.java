@@ -43,6 +43,23 @@ import static org.hibernate.id.enhanced.SequenceStyleGenerator.SEQUENCE_PARAM;
             "JOIN transformer_extractors te ON te.transformer_id = t.id " +
             "WHERE r.id = ?1 AND t.id = ?2"
    ),
+   @NamedNativeQuery(
+      // Extracts values for all transformers of the run in one go; the run document is read (and de-TOASTed) only once
+      // into the materialized CTE and the per-target roots are derived from that copy.
+      name = SchemaDAO.QUERY_ALL_EXTRACTORS_BY_RUNID,
+      query = "WITH doc AS MATERIALIZED (SELECT jsonb_build_object('data', r.data, 'metadata', r.metadata) AS doc FROM run r WHERE r.id = ?1), " +
+            "target AS (SELECT rs.type, rs.key, rs.source, t.id AS transformer_id, (CASE " +
+            "WHEN rs.type = 0 THEN doc.doc->'data' " +
+            "WHEN rs.type = 1 THEN (CASE WHEN rs.source = 0 THEN doc.doc->'data' ELSE doc.doc->'metadata' END)->rs.key " +
+            "ELSE (CASE WHEN rs.source = 0 THEN doc.doc->'data' ELSE doc.doc->'metadata' END)->(rs.key::::integer) END) AS root " +
+            "FROM run_schemas rs CROSS JOIN doc " +
+            "JOIN transformer t ON t.schema_id = rs.schemaid AND t.id IN (SELECT transformer_id FROM test_transformers WHERE test_id = rs.testid) " +
+            "WHERE rs.runid = ?1) " +
+            "SELECT target.type, target.key, target.source, target.transformer_id, te.name, (" +
+            "CASE WHEN te.isarray THEN jsonb_path_query_array(target.root, te.jsonpath::::jsonpath) " +
+            "ELSE jsonb_path_query_first(target.root, te.jsonpath::::jsonpath) END) AS value " +
+            "FROM target JOIN transformer_extractors te ON te.transformer_id = target.transformer_id"
+   ),
    @NamedNativeQuery(
          name = SchemaDAO.QUERY_TRANSFORMER_TARGETS,
          query = "SELECT rs.type, rs.key, t.id as transformer_id, rs.uri, rs.source FROM run_schemas rs " +
@@ -61,6 +78,7 @@ public class SchemaDAO extends ProtectedBaseEntity {
 
    public static final String QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID = "Schema.getFirstLevelExtractorsByRunIDTransIDSchemaID";
    public static final String QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID = "Schema.getSecondLevelExtractorsByRunIDTransIDSchemaID";
+   public static final String QUERY_ALL_EXTRACTORS_BY_RUNID = "Schema.getAllExtractorsByRunID";
    public static final String QUERY_TRANSFORMER_TARGETS = "Schema.queryTransformerTargets";
    public static final int TYPE_1ST_LEVEL = 0;
    public static final int TYPE_2ND_LEVEL = 1;
@@ -0,0 +1,32 @@
+package io.hyperfoil.tools.horreum.hibernate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.hibernate.HibernateException;
+
+/**
+ * Variant of {@link JsonBinaryType} for large documents that are never modified in place. Hibernate does not keep
+ * a snapshot copy of the loaded tree and the attribute is dirty only when a different tree is assigned to it,
+ * so the code must always set a new (or copied) instance to get the column updated.
+ */
+public class ImmutableJsonBinaryType extends JsonBinaryType {
+
+    @Override
+    public boolean equals(JsonNode x, JsonNode y) {
+        return x == y;
+    }
+
+    @Override
+    public int hashCode(JsonNode x) {
+        return System.identityHashCode(x);
+    }
+
+    @Override
+    public JsonNode deepCopy(JsonNode value) throws HibernateException {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+}
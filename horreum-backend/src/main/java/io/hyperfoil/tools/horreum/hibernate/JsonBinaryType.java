@@ -9,6 +9,7 @@ import org.hibernate.type.CustomType;
 import org.hibernate.type.SqlTypes;
 import org.hibernate.type.spi.TypeConfiguration;
 import org.hibernate.usertype.UserType;
+import org.postgresql.util.PGobject;
 
 import java.io.Serializable;
 import java.sql.PreparedStatement;
@@ -66,7 +67,11 @@ public class JsonBinaryType implements UserType<JsonNode> {
             return;
         }
         try {
-            ps.setObject(index, value.toString(), Types.OTHER);
+            // typed parameter: the server does not have to infer the type of the string
+            PGobject jsonb = new PGobject();
+            jsonb.setType("jsonb");
+            jsonb.setValue(mapper.writeValueAsString(value));
+            ps.setObject(index, jsonb);
         } catch (final Exception ex) {
             throw new RuntimeException(format("Failed to convert JSON to String: %s", ex.getMessage()), ex);
         }
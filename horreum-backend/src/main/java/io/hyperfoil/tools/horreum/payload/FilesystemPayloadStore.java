@@ -0,0 +1,58 @@
+package io.hyperfoil.tools.horreum.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Stores payloads as files in a local (or mounted) directory.
+ */
+@ApplicationScoped
+public class FilesystemPayloadStore implements PayloadStore {
+   @ConfigProperty(name = "horreum.payload.filesystem.path", defaultValue = "payloads")
+   String path;
+
+   @Override
+   public String type() {
+      return "filesystem";
+   }
+
+   @Override
+   public void store(String key, byte[] payload) throws IOException {
+      Path file = resolve(key);
+      Files.createDirectories(file.getParent());
+      // readers never see a partially written file
+      Path tmp = Files.createTempFile(file.getParent(), null, ".tmp");
+      try {
+         Files.write(tmp, payload);
+         Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         Files.deleteIfExists(tmp);
+      }
+   }
+
+   @Override
+   public InputStream open(String key) throws IOException {
+      return Files.newInputStream(resolve(key));
+   }
+
+   @Override
+   public void delete(String key) throws IOException {
+      Files.deleteIfExists(resolve(key));
+   }
+
+   private Path resolve(String key) {
+      Path root = Path.of(path).toAbsolutePath().normalize();
+      Path file = root.resolve(key).normalize();
+      if (!file.startsWith(root)) {
+         throw new IllegalArgumentException("Invalid payload key " + key);
+      }
+      return file;
+   }
+}
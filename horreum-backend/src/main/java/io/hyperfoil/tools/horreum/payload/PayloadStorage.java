@@ -0,0 +1,138 @@
+package io.hyperfoil.tools.horreum.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.quarkus.arc.All;
+
+/**
+ * Moves run data above <code>horreum.payload.threshold</code> bytes to the configured {@link PayloadStore}.
+ * The database then keeps only a skeleton of the data with the <code>$schema</code> references, so that
+ * the schemas of the run are still recognized; the full data is loaded from the store when needed.
+ * <p>
+ * The data is offloaded after the run has been transformed, so it is in the database while the run is
+ * processed. Queries reading <code>run.data</code> in the database (e.g. autocompletion of JSONPaths)
+ * see only the skeleton of offloaded runs. Stored payloads are deleted when the data of the run is
+ * replaced (by changing its schema); runs are never removed from the database, only trashed, and
+ * their payloads are kept.
+ */
+@ApplicationScoped
+public class PayloadStorage {
+   private static final JsonNodeFactory JSON = JsonNodeFactory.instance;
+
+   @ConfigProperty(name = "horreum.payload.store")
+   Optional<String> storeType;
+
+   @ConfigProperty(name = "horreum.payload.threshold", defaultValue = "1048576")
+   int threshold;
+
+   @Inject
+   @All
+   List<PayloadStore> stores;
+
+   @Inject
+   ObjectMapper mapper;
+
+   private PayloadStore store;
+
+   @PostConstruct
+   void init() {
+      store = storeType.map(type -> stores.stream().filter(s -> s.type().equals(type)).findFirst()
+            .orElseThrow(() -> new IllegalStateException("Unknown payload store: " + type))).orElse(null);
+   }
+
+   public boolean isEnabled() {
+      return store != null;
+   }
+
+   /**
+    * Writes the data to the store if it is large enough.
+    *
+    * @return key of the stored payload or null when the data should stay in the database.
+    */
+   public String offload(int runId, JsonNode data) throws IOException {
+      if (store == null || data == null || !data.isContainerNode()) {
+         return null;
+      }
+      byte[] payload = mapper.writeValueAsBytes(data);
+      if (payload.length <= threshold) {
+         return null;
+      }
+      String key = "runs/" + runId + "/" + UUID.randomUUID() + ".json";
+      store.store(key, payload);
+      return key;
+   }
+
+   /**
+    * Returns the full data of the run, loading it from the store if it is not in the database.
+    */
+   public JsonNode data(RunDAO run) throws IOException {
+      if (run.dataRef == null) {
+         return run.data;
+      }
+      try (InputStream stream = open(run.dataRef)) {
+         return mapper.readTree(stream);
+      }
+   }
+
+   public InputStream open(String key) throws IOException {
+      return requireStore().open(key);
+   }
+
+   public void delete(String key) throws IOException {
+      requireStore().delete(key);
+   }
+
+   private PayloadStore requireStore() {
+      if (store == null) {
+         throw new IllegalStateException("Run data is stored externally but horreum.payload.store is not set");
+      }
+      return store;
+   }
+
+   /**
+    * Keeps the <code>$schema</code> references on the positions the <code>run_schemas</code> are
+    * computed from: the root, values of the root object and elements of the root array.
+    */
+   public static JsonNode skeleton(JsonNode data) {
+      if (data.isObject()) {
+         ObjectNode skeleton = schemaOf(data);
+         data.fields().forEachRemaining(field -> {
+            if (field.getValue().path("$schema").isTextual()) {
+               skeleton.set(field.getKey(), schemaOf(field.getValue()));
+            }
+         });
+         return skeleton;
+      } else if (data.isArray()) {
+         ArrayNode skeleton = JSON.arrayNode(data.size());
+         data.forEach(item -> skeleton.add(schemaOf(item)));
+         return skeleton;
+      }
+      return data;
+   }
+
+   private static ObjectNode schemaOf(JsonNode node) {
+      ObjectNode skeleton = JSON.objectNode();
+      JsonNode schema = node.path("$schema");
+      if (schema.isTextual()) {
+         skeleton.set("$schema", schema);
+      }
+      return skeleton;
+   }
+}
@@ -0,0 +1,18 @@
+package io.hyperfoil.tools.horreum.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps large run payloads outside of the database. The store in use is selected through
+ * <code>horreum.payload.store</code>, matching {@link #type()}.
+ */
+public interface PayloadStore {
+   String type();
+
+   void store(String key, byte[] payload) throws IOException;
+
+   InputStream open(String key) throws IOException;
+
+   void delete(String key) throws IOException;
+}
@@ -0,0 +1,170 @@
+package io.hyperfoil.tools.horreum.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Optional;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Stores payloads as objects in a bucket of an S3-compatible service (AWS S3, MinIO, Ceph...). Requests use
+ * path-style addressing and are signed with AWS Signature Version 4.
+ */
+@ApplicationScoped
+public class S3PayloadStore implements PayloadStore {
+   private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+   private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+   private static final String EMPTY_HASH = sha256Hex(new byte[0]);
+
+   @ConfigProperty(name = "horreum.payload.s3.endpoint")
+   Optional<String> endpoint;
+
+   @ConfigProperty(name = "horreum.payload.s3.bucket")
+   Optional<String> bucket;
+
+   @ConfigProperty(name = "horreum.payload.s3.region", defaultValue = "us-east-1")
+   String region;
+
+   @ConfigProperty(name = "horreum.payload.s3.access-key")
+   Optional<String> accessKey;
+
+   @ConfigProperty(name = "horreum.payload.s3.secret-key")
+   Optional<String> secretKey;
+
+   @ConfigProperty(name = "horreum.payload.s3.connect-timeout", defaultValue = "10s")
+   Duration connectTimeout;
+
+   // time to receive the response headers; an unresponsive service must not hold the transaction
+   @ConfigProperty(name = "horreum.payload.s3.request-timeout", defaultValue = "60s")
+   Duration requestTimeout;
+
+   private HttpClient client;
+
+   @PostConstruct
+   void init() {
+      client = HttpClient.newBuilder().connectTimeout(connectTimeout).build();
+   }
+
+   @Override
+   public String type() {
+      return "s3";
+   }
+
+   @Override
+   public void store(String key, byte[] payload) throws IOException {
+      HttpRequest request = signed(newRequest(key), "PUT", key, sha256Hex(payload))
+            .header("Content-Type", "application/json")
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(payload))
+            .build();
+      HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() != 200) {
+         throw new IOException("Failed to store " + key + ": " + response.statusCode() + " " + response.body());
+      }
+   }
+
+   @Override
+   public InputStream open(String key) throws IOException {
+      HttpRequest request = signed(newRequest(key), "GET", key, EMPTY_HASH).GET().build();
+      HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+      if (response.statusCode() != 200) {
+         try (InputStream body = response.body()) {
+            throw new IOException("Failed to load " + key + ": " + response.statusCode() + " " + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+         }
+      }
+      return response.body();
+   }
+
+   @Override
+   public void delete(String key) throws IOException {
+      HttpRequest request = signed(newRequest(key), "DELETE", key, EMPTY_HASH).DELETE().build();
+      HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+      // deleting a missing object is not an error
+      if (response.statusCode() != 204 && response.statusCode() != 200 && response.statusCode() != 404) {
+         throw new IOException("Failed to delete " + key + ": " + response.statusCode() + " " + response.body());
+      }
+   }
+
+   private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+      try {
+         return client.send(request, handler);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted", e);
+      }
+   }
+
+   private HttpRequest.Builder newRequest(String key) {
+      return HttpRequest.newBuilder(uri(key)).timeout(requestTimeout);
+   }
+
+   private String path(String key) {
+      // keys are generated by Horreum and contain only characters that do not need encoding
+      return "/" + bucket.orElseThrow(() -> new IllegalStateException("Missing horreum.payload.s3.bucket")) + "/" + key;
+   }
+
+   private URI uri(String key) {
+      String base = endpoint.orElseThrow(() -> new IllegalStateException("Missing horreum.payload.s3.endpoint"));
+      return URI.create((base.endsWith("/") ? base.substring(0, base.length() - 1) : base) + path(key));
+   }
+
+   private HttpRequest.Builder signed(HttpRequest.Builder builder, String method, String key, String payloadHash) {
+      URI uri = uri(key);
+      Instant now = Instant.now();
+      String dateTime = DATE_TIME.format(now);
+      String scope = DATE.format(now) + "/" + region + "/s3/aws4_request";
+      String host = uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+      String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+      String canonicalRequest = method + "\n" + path(key) + "\n\n" +
+            "host:" + host + "\n" +
+            "x-amz-content-sha256:" + payloadHash + "\n" +
+            "x-amz-date:" + dateTime + "\n\n" +
+            signedHeaders + "\n" + payloadHash;
+      String stringToSign = "AWS4-HMAC-SHA256\n" + dateTime + "\n" + scope + "\n" +
+            sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+      byte[] signingKey = hmac(("AWS4" + secretKey.orElse("")).getBytes(StandardCharsets.UTF_8), DATE.format(now));
+      signingKey = hmac(signingKey, region);
+      signingKey = hmac(signingKey, "s3");
+      signingKey = hmac(signingKey, "aws4_request");
+      String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+      return builder.header("x-amz-date", dateTime)
+            .header("x-amz-content-sha256", payloadHash)
+            .header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey.orElse("") + "/" + scope +
+                  ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+   }
+
+   private static byte[] hmac(byte[] key, String data) {
+      try {
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(key, "HmacSHA256"));
+         return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String sha256Hex(byte[] data) {
+      try {
+         return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,108 @@
+package io.hyperfoil.tools.horreum.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyReader;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.hyperfoil.tools.horreum.api.ApiUtil;
+
+/**
+ * Reads and writes entities in the binary Smile encoding of JSON, using the same {@link ObjectMapper}
+ * configuration as the JSON endpoints. Many endpoints return JSON documents rendered by the database as
+ * {@link String}; these (and String request bodies) are transcoded token by token without building a tree.
+ */
+@Provider
+@Consumes(ApiUtil.APPLICATION_SMILE)
+@Produces(ApiUtil.APPLICATION_SMILE)
+public class SmileProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+   private static final MediaType SMILE_TYPE = MediaType.valueOf(ApiUtil.APPLICATION_SMILE);
+
+   private final ObjectMapper jsonMapper;
+   private final ObjectMapper smileMapper;
+
+   public SmileProvider(ObjectMapper mapper) {
+      this.jsonMapper = mapper;
+      // the container owns the entity streams
+      this.smileMapper = mapper.copyWith(SmileFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build());
+   }
+
+   @Override
+   public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+      return SMILE_TYPE.isCompatible(mediaType) && !InputStream.class.isAssignableFrom(type);
+   }
+
+   @Override
+   public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                          MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+      if (type == String.class) {
+         StringWriter writer = new StringWriter();
+         try (JsonParser parser = smileMapper.createParser(entityStream);
+              JsonGenerator generator = jsonMapper.createGenerator(writer)) {
+            if (parser.nextToken() != null) {
+               generator.copyCurrentStructure(parser);
+            }
+         }
+         return writer.toString();
+      }
+      return smileMapper.readerFor(smileMapper.constructType(genericType)).readValue(entityStream);
+   }
+
+   @Override
+   public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+      return SMILE_TYPE.isCompatible(mediaType);
+   }
+
+   @Override
+   public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                       MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+      if (entity instanceof String str) {
+         writeJsonText(str, entityStream);
+      } else {
+         smileMapper.writerFor(smileMapper.constructType(genericType)).writeValue(entityStream, entity);
+      }
+   }
+
+   private void writeJsonText(String str, OutputStream entityStream) throws IOException {
+      String stripped = str.stripLeading();
+      if (stripped.startsWith("{") || stripped.startsWith("[")) {
+         // documents rendered by the database are always valid JSON
+         try (JsonParser parser = jsonMapper.createParser(str);
+              JsonGenerator generator = smileMapper.createGenerator(entityStream)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+         }
+         return;
+      }
+      // scalars, or plain text such as error messages
+      JsonNode node;
+      try {
+         node = jsonMapper.readTree(str);
+      } catch (JsonProcessingException e) {
+         node = null;
+      }
+      smileMapper.writeValue(entityStream, node == null || node.isMissingNode() ? jsonMapper.getNodeFactory().textNode(str) : node);
+   }
+}
@@ -277,6 +277,8 @@ public class AlertingServiceImpl implements AlertingService {
 
       recalculateDatapointsForDataset(dataset, sendNotifications, false, recalculation);
       recalculateMissingDataRules(dataset);
+      em.createNativeQuery("UPDATE dataset_processing SET datapoints_calculated = now() WHERE dataset_id = ?1")
+            .setParameter(1, dataset.id).executeUpdate();
    }
 
    private void recalculateMissingDataRules(DatasetDAO dataset) {
@@ -439,7 +441,7 @@ public class AlertingServiceImpl implements AlertingService {
          String timestampFunction = (String) timestampList.get(0)[0];
          JsonNode value = (JsonNode) timestampList.get(0)[1];
          if (timestampFunction != null && !timestampFunction.isBlank()) {
-            value = Util.evaluateOnce(timestampFunction, value, Util::convertToJson,
+            value = Util.evaluateToJson(timestampFunction, value,
                   (code, throwable) -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of timestamp failed: '%s' Code: <code><pre>%s</pre></code>", throwable.getMessage(), code),
                   output -> logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while calculating timestamp: <pre>%s</pre>", output));
          }
@@ -451,6 +453,7 @@ public class AlertingServiceImpl implements AlertingService {
       }
       Instant finalTimestamp = timestamp;
       Util.evaluateWithCombinationFunction(values, data -> data.calculation, data -> data.value,
+            data -> JsFunctionStats.Key.variable(data.variableId, dataset.testid),
             (data, result) -> {
                Double value = Util.toDoubleOrNull(result,
                      error -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of variable %s failed: %s", data.fullName(), error),
@@ -705,6 +708,11 @@ public class AlertingServiceImpl implements AlertingService {
                }
             }
          }
+         // the run status reports datasets with datapoints not covered by change detection yet
+         em.createNativeQuery("UPDATE datapoint SET change_detected = true WHERE id = ANY(?1) AND NOT change_detected")
+               .unwrap(NativeQuery.class)
+               .setParameter(1, dataPoints.stream().mapToInt(dp -> dp.id).toArray(), IntArrayType.INSTANCE)
+               .executeUpdate();
       }
       Util.doAfterCommit(tm, () -> {
          validateUpTo(variable, fingerprint, nextTimestamp);
@@ -759,6 +767,11 @@ public class AlertingServiceImpl implements AlertingService {
          if (v.name == null || v.name.isBlank()) {
             throw ServiceException.badRequest("Variable name is mandatory!");
          }
+         try {
+            BuiltinFunction.parse(v.calculation);
+         } catch (IllegalArgumentException e) {
+            throw ServiceException.badRequest("Invalid calculation of variable " + v.name + ": " + e.getMessage());
+         }
       }
       try {
          List<VariableDAO> variables = variablesDTO.stream().map(VariableMapper::to).collect(Collectors.toList());
@@ -1301,12 +1314,12 @@ public class AlertingServiceImpl implements AlertingService {
 
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional
-   void onDatasetDeleted(int datasetId) {
-      log.debugf("Removing changes for dataset %d", datasetId);
-      ChangeDAO.delete("dataset.id = ?1 AND confirmed = false", datasetId);
-      DataPointDAO.delete("dataset.id", datasetId);
+   void onDatasetsDeleted(List<Integer> datasetIds) {
+      log.debugf("Removing changes for datasets %s", datasetIds);
+      ChangeDAO.delete("dataset.id IN ?1 AND confirmed = false", datasetIds);
+      DataPointDAO.delete("dataset.id IN ?1", datasetIds);
       //Need to make sure we delete MissingDataRuleResults when datasets are removed
-      MissingDataRuleResultDAO.deleteForDataset(datasetId);
+      MissingDataRuleResultDAO.deleteForDatasets(datasetIds);
    }
 
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
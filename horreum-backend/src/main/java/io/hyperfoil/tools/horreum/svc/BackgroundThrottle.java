@@ -0,0 +1,35 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the number of background tasks running on this node while live work is being processed. Background
+ * work starting when the live lane is idle runs freely; otherwise it waits (without spinning) for one of
+ * a few permits, so the background pools cannot take the database and the CPU from uploads.
+ */
+final class BackgroundThrottle {
+   private final ProcessingLane live;
+   private final Semaphore permits;
+
+   BackgroundThrottle(ProcessingLane live, int concurrency) {
+      this.live = live;
+      this.permits = new Semaphore(Math.max(1, concurrency), true);
+   }
+
+   void run(Runnable work) {
+      if (live.active() == 0) {
+         work.run();
+         return;
+      }
+      permits.acquireUninterruptibly();
+      try {
+         work.run();
+      } finally {
+         permits.release();
+      }
+   }
+
+   int availablePermits() {
+      return permits.availablePermits();
+   }
+}
@@ -0,0 +1,262 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Common combination functions of labels and variables implemented in Java, so that these can be evaluated
+ * without a JavaScript context. A label function or variable calculation references one of these as
+ * <code>builtin:name</code> or <code>builtin:name(arg1, arg2...)</code>:
+ * <ul>
+ *    <li><code>sum</code>, <code>avg</code>, <code>min</code>, <code>max</code> - aggregate an array of numbers
+ *       (or values of an object); a single number is returned as-is</li>
+ *    <li><code>ratio(a, b)</code> - divides field <code>a</code> of the input by field <code>b</code></li>
+ *    <li><code>pick(path)</code> - returns the field of the input on a dot-separated path</li>
+ *    <li><code>number</code> - parses the input into a number the way <code>parseFloat</code> would</li>
+ *    <li><code>percentile(p)</code> - <code>p</code>-th percentile of an array of numbers, interpolating
+ *       linearly between the closest ranks</li>
+ * </ul>
+ * Null values are skipped by the aggregations; aggregating no values results in null.
+ */
+final class BuiltinFunction {
+   static final String PREFIX = "builtin:";
+   private static final JsonNodeFactory JSON = JsonNodeFactory.instance;
+   private static final Map<String, BuiltinFunction> cache = new ConcurrentHashMap<>();
+   private static final int MAX_CACHED = 1000;
+
+   private final String function;
+   private final String name;
+   private final String[] args;
+
+   private BuiltinFunction(String function, String name, String[] args) {
+      this.function = function;
+      this.name = name;
+      this.args = args;
+   }
+
+   static boolean isBuiltin(String function) {
+      return function != null && function.strip().startsWith(PREFIX);
+   }
+
+   /**
+    * Returns the built-in function referenced by this code or null if this is a regular JavaScript function.
+    *
+    * @throws IllegalArgumentException when the function is not a valid reference to a built-in function.
+    */
+   static BuiltinFunction parse(String function) {
+      if (!isBuiltin(function)) {
+         return null;
+      }
+      BuiltinFunction builtin = cache.get(function);
+      if (builtin == null) {
+         builtin = doParse(function);
+         if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+         }
+         cache.put(function, builtin);
+      }
+      return builtin;
+   }
+
+   private static BuiltinFunction doParse(String function) {
+      String code = function.strip().substring(PREFIX.length()).strip();
+      String name = code;
+      String[] args = new String[0];
+      int open = code.indexOf('(');
+      if (open >= 0) {
+         if (!code.endsWith(")")) {
+            throw new IllegalArgumentException("Missing closing parenthesis in " + function);
+         }
+         name = code.substring(0, open).strip();
+         String argList = code.substring(open + 1, code.length() - 1).strip();
+         if (!argList.isEmpty()) {
+            args = Arrays.stream(argList.split(",")).map(String::strip).toArray(String[]::new);
+         }
+      }
+      switch (name) {
+         case "sum", "avg", "min", "max", "number" -> expectArgs(function, args, 0);
+         case "ratio" -> expectArgs(function, args, 2);
+         case "pick" -> expectArgs(function, args, 1);
+         case "percentile" -> {
+            expectArgs(function, args, 1);
+            double p;
+            try {
+               p = Double.parseDouble(args[0]);
+            } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("Percentile must be a number in " + function);
+            }
+            if (!(p >= 0 && p <= 100)) {
+               throw new IllegalArgumentException("Percentile must be between 0 and 100 in " + function);
+            }
+         }
+         default -> throw new IllegalArgumentException("Unknown built-in function '" + name + "' in " + function);
+      }
+      for (String arg : args) {
+         if (arg.isEmpty()) {
+            throw new IllegalArgumentException("Empty argument in " + function);
+         }
+      }
+      return new BuiltinFunction(function, name, args);
+   }
+
+   private static void expectArgs(String function, String[] args, int count) {
+      if (args.length != count) {
+         throw new IllegalArgumentException("Built-in function " + function + " expects " + count + " argument(s)");
+      }
+   }
+
+   /**
+    * @throws IllegalArgumentException when the function cannot be applied to the input.
+    */
+   JsonNode apply(JsonNode input) {
+      return switch (name) {
+         case "sum" -> aggregate(input, values -> values.stream().mapToDouble(Double::doubleValue).sum());
+         case "avg" -> aggregate(input, values -> values.stream().mapToDouble(Double::doubleValue).average().orElseThrow());
+         case "min" -> aggregate(input, values -> values.stream().mapToDouble(Double::doubleValue).min().orElseThrow());
+         case "max" -> aggregate(input, values -> values.stream().mapToDouble(Double::doubleValue).max().orElseThrow());
+         case "number" -> {
+            Double value = toNumber(input);
+            yield value == null ? JSON.nullNode() : number(value);
+         }
+         case "ratio" -> {
+            Double a = toNumber(input.path(args[0]));
+            Double b = toNumber(input.path(args[1]));
+            if (a == null || b == null) {
+               yield JSON.nullNode();
+            } else if (b == 0) {
+               throw new IllegalArgumentException("Division by zero: " + args[1] + " is 0");
+            }
+            yield number(a / b);
+         }
+         case "pick" -> pick(input, args[0]);
+         case "percentile" -> aggregate(input, values -> percentile(values, Double.parseDouble(args[0])));
+         default -> throw new IllegalStateException(name);
+      };
+   }
+
+   private static JsonNode pick(JsonNode input, String path) {
+      JsonNode node = input;
+      for (String field : path.split("\\.")) {
+         if (node == null) {
+            break;
+         }
+         node = node.isArray() && isIndex(field) ? node.get(Integer.parseInt(field)) : node.get(field);
+      }
+      return node == null ? JSON.nullNode() : node;
+   }
+
+   private static boolean isIndex(String field) {
+      return !field.isEmpty() && field.chars().allMatch(Character::isDigit);
+   }
+
+   private interface Aggregation {
+      double apply(List<Double> values);
+   }
+
+   private static JsonNode aggregate(JsonNode input, Aggregation aggregation) {
+      if (input == null || input.isNull() || input.isMissingNode()) {
+         return JSON.nullNode();
+      } else if (!input.isContainerNode()) {
+         Double value = toNumber(input);
+         return value == null ? JSON.nullNode() : number(aggregation.apply(List.of(value)));
+      }
+      List<Double> values = new ArrayList<>(input.size());
+      for (Iterator<JsonNode> it = input.elements(); it.hasNext(); ) {
+         JsonNode element = it.next();
+         if (element.isNull()) {
+            continue;
+         }
+         Double value = toNumber(element);
+         if (value == null) {
+            throw new IllegalArgumentException("Value " + element + " is not a number");
+         }
+         values.add(value);
+      }
+      return values.isEmpty() ? JSON.nullNode() : number(aggregation.apply(values));
+   }
+
+   private static double percentile(List<Double> values, double p) {
+      double[] sorted = values.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+      double rank = p / 100 * (sorted.length - 1);
+      int lower = (int) Math.floor(rank);
+      int upper = (int) Math.ceil(rank);
+      return sorted[lower] + (sorted[upper] - sorted[lower]) * (rank - lower);
+   }
+
+   private static Double toNumber(JsonNode node) {
+      if (node == null || node.isNull() || node.isMissingNode()) {
+         return null;
+      } else if (node.isNumber()) {
+         return node.asDouble();
+      } else if (node.isTextual()) {
+         return parseFloat(node.asText());
+      } else {
+         throw new IllegalArgumentException("Value " + node + " is not a number");
+      }
+   }
+
+   // mimics parseFloat: leading whitespace is ignored as well as anything after the number
+   private static Double parseFloat(String str) {
+      String s = str.strip();
+      int end = 0;
+      if (end < s.length() && (s.charAt(end) == '+' || s.charAt(end) == '-')) {
+         end++;
+      }
+      if (s.startsWith("Infinity", end)) {
+         return s.charAt(0) == '-' ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+      }
+      int digits = 0;
+      while (end < s.length() && Character.isDigit(s.charAt(end))) {
+         end++;
+         digits++;
+      }
+      if (end < s.length() && s.charAt(end) == '.') {
+         end++;
+         while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+            digits++;
+         }
+      }
+      if (digits == 0) {
+         throw new IllegalArgumentException("Value '" + str + "' cannot be parsed into a number");
+      }
+      if (end < s.length() && (s.charAt(end) == 'e' || s.charAt(end) == 'E')) {
+         int exp = end + 1;
+         if (exp < s.length() && (s.charAt(exp) == '+' || s.charAt(exp) == '-')) {
+            exp++;
+         }
+         int expStart = exp;
+         while (exp < s.length() && Character.isDigit(s.charAt(exp))) {
+            exp++;
+         }
+         if (exp > expStart) {
+            end = exp;
+         }
+      }
+      return Double.parseDouble(s.substring(0, end));
+   }
+
+   private static JsonNode number(double value) {
+      if (!Double.isFinite(value)) {
+         throw new IllegalArgumentException("Not a finite number: " + value);
+      }
+      // same conversion as in Util.convertToJson
+      if (value == Math.rint(value)) {
+         return JSON.numberNode((long) value);
+      } else {
+         return JSON.numberNode(value);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return function;
+   }
+}
@@ -3,7 +3,6 @@ package io.hyperfoil.tools.horreum.svc;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -12,7 +11,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.hyperfoil.tools.horreum.api.data.*;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
 import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -31,6 +32,7 @@ import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -44,6 +46,7 @@ import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.DatasetLogDAO;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
+import io.micrometer.core.instrument.Metrics;
 import io.quarkus.runtime.Startup;
 import io.quarkus.security.identity.SecurityIdentity;
 
@@ -86,6 +89,16 @@ public class DatasetServiceImpl implements DatasetService {
          JOIN used_labels ul ON label.id = ul.label_id
          GROUP BY lvalues.label_id, ul.name, function, ul.count
          """;
+   // extractors evaluated by the application instead of LABEL_QUERY
+   private static final String LABEL_EXTRACTORS_QUERY = """
+         SELECT label.id AS label_id, label.name, label.function, ds.uri, ds.index,
+            le.name AS extractor_name, le.jsonpath, le.isarray
+         FROM dataset_schemas ds
+         JOIN label ON label.schema_id = ds.schema_id
+         LEFT JOIN label_extractors le ON le.label_id = label.id
+         WHERE ds.dataset_id = ?1 AND (?2 < 0 OR label.id = ?2)
+         ORDER BY label.id
+         """;
    protected static final String LABEL_PREVIEW = """
          WITH
          le AS (
@@ -183,11 +196,24 @@ public class DatasetServiceImpl implements DatasetService {
    @Inject
    TransactionManager tm;
 
-   // This is a nasty hack that will serialize all run -> dataset transformations and label calculations
+   @ConfigProperty(name = "horreum.extraction.engine", defaultValue = "postgres")
+   SqlJsonPath.Engine extractionEngine;
+
+   // Number of locks serializing run -> dataset transformations and label calculations; tests mapped to
+   // the same stripe are processed one at a time, setting this to 1 serializes all recalculations.
+   @ConfigProperty(name = "horreum.recalculation.lock-stripes", defaultValue = "64")
+   int recalculationLockStripes;
+
+   // This is a nasty hack that will serialize run -> dataset transformations and label calculations within a test.
    // The problem is that PostgreSQL's SSI will for some (unknown) reason rollback some transactions,
    // probably due to false sharing of locks. For some reason even using advisory locks in DB does not
    // solve the issue so we have to serialize this even outside the problematic transactions.
-   private final ReentrantLock recalculationLock = new ReentrantLock();
+   private RecalculationLocks recalculationLocks;
+
+   @PostConstruct
+   void init() {
+      recalculationLocks = new RecalculationLocks(recalculationLockStripes, Metrics.globalRegistry);
+   }
 
    @PermitAll
    @WithRoles
@@ -367,7 +393,7 @@ public class DatasetServiceImpl implements DatasetService {
       } else {
          AtomicReference<String> errorRef = new AtomicReference<>();
          AtomicReference<String> outputRef = new AtomicReference<>();
-         JsonNode result = Util.evaluateOnce(label.function, extracted, Util::convertToJson,
+         JsonNode result = Util.evaluateToJson(label.function, extracted,
                (code, exception) -> errorRef.set("Execution failed: " + exception.getMessage() + ":\n" + code), outputRef::set);
          preview.value = errorRef.get() == null ? result : JsonNodeFactory.instance.textNode(errorRef.get());
          preview.output = outputRef.get();
@@ -410,22 +436,32 @@ public class DatasetServiceImpl implements DatasetService {
    @Transactional
    void calculateLabelValues(int testId, int datasetId, int queryLabelId, boolean isRecalculation) {
       log.debugf("Calculating label values for dataset %d, label %d", datasetId, queryLabelId);
-      List<Object[]> extracted;
-      try {
-         // Note: we are fetching even labels that are marked as private/could be otherwise inaccessible
-         // to the uploading user. However, the uploader should not have rights to fetch these anyway...
-         extracted =  em.unwrap(Session.class).createNativeQuery(LABEL_QUERY, Object[].class)
-                     .setParameter(1, datasetId)
-                     .setParameter(2, queryLabelId)
-                     .addScalar("label_id", StandardBasicTypes.INTEGER)
-                     .addScalar("name", StandardBasicTypes.TEXT)
-                     .addScalar("function", StandardBasicTypes.TEXT)
-                     .addScalar("value", JsonBinaryType.INSTANCE)
-                     .getResultList();
-      } catch (PersistenceException e) {
-         logMessageInNewTx(datasetId, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
-         findFailingExtractor(datasetId);
-         return;
+      List<Object[]> extracted = null;
+      if (extractionEngine == SqlJsonPath.Engine.JVM) {
+         try {
+            extracted = extractLabelValues(datasetId, queryLabelId);
+         } catch (IllegalArgumentException e) {
+            logMessageInNewTx(datasetId, PersistentLogDAO.ERROR, "%s", e.getMessage());
+            return;
+         }
+      }
+      if (extracted == null) {
+         try {
+            // Note: we are fetching even labels that are marked as private/could be otherwise inaccessible
+            // to the uploading user. However, the uploader should not have rights to fetch these anyway...
+            extracted =  em.unwrap(Session.class).createNativeQuery(LABEL_QUERY, Object[].class)
+                        .setParameter(1, datasetId)
+                        .setParameter(2, queryLabelId)
+                        .addScalar("label_id", StandardBasicTypes.INTEGER)
+                        .addScalar("name", StandardBasicTypes.TEXT)
+                        .addScalar("function", StandardBasicTypes.TEXT)
+                        .addScalar("value", JsonBinaryType.INSTANCE)
+                        .getResultList();
+         } catch (PersistenceException e) {
+            logMessageInNewTx(datasetId, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+            findFailingExtractor(datasetId);
+            return;
+         }
       }
 
       // While any change should remove the label_value first via trigger it is possible
@@ -442,6 +478,7 @@ public class DatasetServiceImpl implements DatasetService {
       Util.evaluateWithCombinationFunction(extracted,
               (row)              -> (String) row[2],
               (row)              -> (row[3] instanceof ArrayNode ? flatten((ArrayNode) row[3]) : (JsonNode) row[3]),
+              (row)              -> JsFunctionStats.Key.label((int) row[0], testId),
               (row, result)      -> createLabelValue(datasetId, testId, (int) row[0], Util.convertToJson(result)),
               (row)              -> createLabelValue(datasetId, testId, (int) row[0], (JsonNode) row[3]),
               (row, e, jsCode)   -> logMessage(datasetId, PersistentLogDAO.ERROR,
@@ -453,17 +490,99 @@ public class DatasetServiceImpl implements DatasetService {
       em.createNativeQuery("call calc_dataset_view(?1);").setParameter(1, datasetId).executeUpdate();
 
       createFingerprint(datasetId, testId);
+      // datapoints are calculated again from the new label values
+      em.createNativeQuery("INSERT INTO dataset_processing (dataset_id, labels_calculated) VALUES (?1, now()) " +
+            "ON CONFLICT (dataset_id) DO UPDATE SET labels_calculated = now(), datapoints_calculated = NULL")
+            .setParameter(1, datasetId).executeUpdate();
       mediator.updateLabels(new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation));
       if(mediator.testMode())
          Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.DATASET_UPDATED_LABELS, testId, new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation)));
    }
 
    @Transactional
-   public void deleteDataset(int datasetId) {
-      em.createNativeQuery("DELETE FROM label_values WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
-      em.createNativeQuery("DELETE FROM dataset_schemas WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
-      em.createNativeQuery("DELETE FROM fingerprint WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
-      em.createNativeQuery("DELETE FROM dataset WHERE id = ?1").setParameter(1, datasetId).executeUpdate();
+   public void deleteDatasets(List<Integer> datasetIds) {
+      // one statement per table no matter how many datasets are removed
+      int[] ids = datasetIds.stream().mapToInt(Integer::intValue).toArray();
+      deleteByDatasetIds("DELETE FROM label_values WHERE dataset_id = ANY(?1)", ids);
+      deleteByDatasetIds("DELETE FROM dataset_schemas WHERE dataset_id = ANY(?1)", ids);
+      deleteByDatasetIds("DELETE FROM fingerprint WHERE dataset_id = ANY(?1)", ids);
+      deleteByDatasetIds("DELETE FROM dataset WHERE id = ANY(?1)", ids);
+   }
+
+   private void deleteByDatasetIds(String sql, int[] datasetIds) {
+      em.createNativeQuery(sql).unwrap(NativeQuery.class)
+            .setParameter(1, datasetIds, IntArrayType.INSTANCE)
+            .executeUpdate();
+   }
+
+   /**
+    * Evaluates extractors of the labels in the application, producing the same rows as {@link #LABEL_QUERY}.
+    * Returns <code>null</code> when some of the JSONPaths have to be evaluated by the database.
+    *
+    * @throws IllegalArgumentException when the evaluation of a JSONPath fails.
+    */
+   private List<Object[]> extractLabelValues(int datasetId, int queryLabelId) {
+      List<Object[]> extractors = em.unwrap(Session.class).createNativeQuery(LABEL_EXTRACTORS_QUERY, Object[].class)
+            .setParameter(1, datasetId)
+            .setParameter(2, queryLabelId)
+            .addScalar("label_id", StandardBasicTypes.INTEGER)
+            .addScalar("name", StandardBasicTypes.TEXT)
+            .addScalar("function", StandardBasicTypes.TEXT)
+            .addScalar("uri", StandardBasicTypes.TEXT)
+            .addScalar("index", StandardBasicTypes.INTEGER)
+            .addScalar("extractor_name", StandardBasicTypes.TEXT)
+            .addScalar("jsonpath", StandardBasicTypes.TEXT)
+            .addScalar("isarray", StandardBasicTypes.BOOLEAN)
+            .getResultList();
+      Map<Integer, List<Object[]>> byLabel = new LinkedHashMap<>();
+      for (Object[] row : extractors) {
+         if (row[6] != null) {
+            try {
+               SqlJsonPath.compile((String) row[6]);
+            } catch (IllegalArgumentException e) {
+               log.debugf("Label values of dataset %d will be extracted by the database: %s", datasetId, e.getMessage());
+               return null;
+            }
+         }
+         byLabel.computeIfAbsent((Integer) row[0], id -> new ArrayList<>()).add(row);
+      }
+      if (byLabel.isEmpty()) {
+         return Collections.emptyList();
+      }
+      DatasetDAO dataset = DatasetDAO.findById(datasetId);
+      JsonNode data = dataset == null ? null : dataset.data;
+      List<Object[]> extracted = new ArrayList<>(byLabel.size());
+      for (List<Object[]> rows : byLabel.values()) {
+         // the same schema can be present multiple times in the dataset; as in the query each occurrence counts
+         List<Object[]> withExtractors = rows.stream().filter(row -> row[5] != null).toList();
+         JsonNode value;
+         if (withExtractors.isEmpty()) {
+            value = JsonNodeFactory.instance.objectNode();
+         } else if (withExtractors.size() == 1) {
+            value = extractLabelValue(data, withExtractors.get(0));
+         } else {
+            ObjectNode object = JsonNodeFactory.instance.objectNode();
+            for (Object[] row : withExtractors) {
+               object.set((String) row[5], extractLabelValue(data, row));
+            }
+            value = object;
+         }
+         Object[] label = rows.get(0);
+         extracted.add(new Object[] { label[0], label[1], label[2], value });
+      }
+      return extracted;
+   }
+
+   private JsonNode extractLabelValue(JsonNode data, Object[] row) {
+      JsonNode document = data == null ? null : data.get((int) row[4]);
+      try {
+         JsonNode value = SqlJsonPath.compile((String) row[6]).query(document, (boolean) row[7]);
+         return value == null ? JsonNodeFactory.instance.nullNode() : value;
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException(String.format(
+               "There seems to be an error in schema <code>%s</code> label <code>%s</code>, extractor <code>%s</code>, JSONPath expression <code>%s</code>: %s",
+               row[3], row[1], row[5], row[6], e.getMessage()), e);
+      }
    }
 
    private ArrayNode flatten(ArrayNode bucket){
@@ -550,17 +669,12 @@ public class DatasetServiceImpl implements DatasetService {
       }
    }
 
-   void withRecalculationLock(Runnable runnable) {
-      recalculationLock.lock();
-      try {
-         runnable.run();
-      } finally {
-         recalculationLock.unlock();
-      }
+   void withRecalculationLock(int testId, Runnable runnable) {
+      recalculationLocks.run(testId, runnable);
    }
 
    public void onNewDataset(Dataset.EventNew event) {
-      withRecalculationLock(() -> calculateLabelValues(event.testId, event.datasetId, event.labelId, event.isRecalculation));
+      withRecalculationLock(event.testId, () -> calculateLabelValues(event.testId, event.datasetId, event.labelId, event.isRecalculation));
    }
 
    public void onNewDatasetNoLock(Dataset.EventNew event) {
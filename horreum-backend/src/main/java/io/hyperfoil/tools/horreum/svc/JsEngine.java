@@ -0,0 +1,315 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.ResourceLimits;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Shares a single GraalVM {@link Engine} across all JavaScript evaluations. Creating the engine is expensive
+ * and sharing it lets the parsed and compiled code be reused between contexts.
+ * <p>
+ * Each evaluation gets a fresh {@link Context} from {@link #newContext()} and closes it when done. Contexts are
+ * not pooled: a function can modify anything in its context, including built-ins such as <code>JSON</code> or
+ * <code>Array.prototype</code>, and these changes must not be seen by functions of other tests.
+ * <p>
+ * Functions are parsed once into a {@link Source} keyed by their code; as the sources are cached in the engine
+ * evaluating the same function in a new context does not parse it again. A modified function has a different key,
+ * so there is nothing to invalidate; sources of functions that are no longer used are evicted from the LRU cache.
+ * <p>
+ * Input is parsed into regular JS objects by default. When enabled it is passed as read-only
+ * {@link ProxyJackson proxies} over the JSON nodes instead; this saves the conversion of large inputs but
+ * functions that modify their input or rely on it being a real JS object (e.g. <code>Array.isArray</code>) fail.
+ * <p>
+ * Each function call can be limited in wall-clock time and in the number of executed statements. A call that
+ * runs out of time is interrupted; if it does not stop or if it exceeds the statement limit the context is closed.
+ */
+class JsEngine {
+   private static final Logger log = Logger.getLogger(JsEngine.class);
+   static final String MAX_FUNCTIONS_PROPERTY = "horreum.js.function-cache.max-size";
+   static final String INPUT_PROXIES_PROPERTY = "horreum.js.input-proxies";
+   static final String TIMEOUT_PROPERTY = "horreum.js.timeout";
+   static final String STATEMENT_LIMIT_PROPERTY = "horreum.js.statement-limit";
+   // how long we wait for an interrupted function to stop before closing the context
+   private static final Duration INTERRUPT_WAIT = Duration.ofSeconds(1);
+   private static final TimeLimit NO_LIMIT = () -> {};
+   private static final int DEFAULT_MAX_FUNCTIONS = 1000;
+
+   private static volatile JsEngine instance;
+
+   private final Engine engine;
+   private final Map<String, Source> sources;
+   private final boolean inputProxies;
+   private final Duration timeout;
+   private final long statementLimit;
+   // contexts sharing an engine must share the limits as well
+   private final ResourceLimits resourceLimits;
+   private final ScheduledExecutorService watchdog;
+
+   JsEngine(int maxFunctions, boolean inputProxies, Duration timeout, long statementLimit) {
+      this.engine = Engine.newBuilder()
+            .option("engine.WarnInterpreterOnly", "false")
+            .build();
+      maxFunctions = Math.max(1, maxFunctions);
+      this.sources = lruMap(maxFunctions);
+      this.inputProxies = inputProxies;
+      this.timeout = timeout.isNegative() || timeout.isZero() ? null : timeout;
+      this.statementLimit = statementLimit;
+      this.resourceLimits = statementLimit > 0 ? ResourceLimits.newBuilder().statementLimit(statementLimit, null).build() : null;
+      this.watchdog = this.timeout == null ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "horreum-js-watchdog");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   private static <V> Map<String, V> lruMap(int maxSize) {
+      return new LinkedHashMap<>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxSize;
+         }
+      };
+   }
+
+   static JsEngine get() {
+      JsEngine jsEngine = instance;
+      if (jsEngine == null) {
+         synchronized (JsEngine.class) {
+            jsEngine = instance;
+            if (jsEngine == null) {
+               jsEngine = new JsEngine(config(MAX_FUNCTIONS_PROPERTY, Integer.class, DEFAULT_MAX_FUNCTIONS),
+                     config(INPUT_PROXIES_PROPERTY, Boolean.class, false),
+                     config(TIMEOUT_PROPERTY, Duration.class, Duration.ofSeconds(30)),
+                     config(STATEMENT_LIMIT_PROPERTY, Long.class, 0L));
+               instance = jsEngine;
+            }
+         }
+      }
+      return jsEngine;
+   }
+
+   private static <T> T config(String property, Class<T> type, T defaultValue) {
+      try {
+         return ConfigProvider.getConfig().getOptionalValue(property, type).orElse(defaultValue);
+      } catch (IllegalStateException e) {
+         // no config available, e.g. when used outside of Quarkus
+         return defaultValue;
+      }
+   }
+
+   JsContext newContext() {
+      return new JsContext(this);
+   }
+
+   /**
+    * Releases the engine; only engines created outside of {@link #get()}, e.g. in tests, should be closed.
+    */
+   void close() {
+      if (watchdog != null) {
+         watchdog.shutdownNow();
+      }
+      engine.close();
+   }
+
+   private Source source(String function) {
+      synchronized (sources) {
+         return sources.computeIfAbsent(function, JsEngine::toSource);
+      }
+   }
+
+   private static Source toSource(String function) {
+      String code = function.strip();
+      while (code.endsWith(";")) {
+         code = code.substring(0, code.length() - 1).stripTrailing();
+      }
+      // the newline protects the closing parenthesis from a trailing line comment
+      return Source.newBuilder("js", "(" + code + "\n)", "function.js").cached(true).buildLiteral();
+   }
+
+   /**
+    * Ends the time limit of a single function call.
+    */
+   interface TimeLimit extends AutoCloseable {
+      @Override
+      void close();
+   }
+
+   /**
+    * A context created for a single evaluation, with its output buffer and call limits.
+    */
+   static final class JsContext implements AutoCloseable {
+      private final JsEngine jsEngine;
+      private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      private final Context context;
+      private final Value jsonParse;
+      private final Value jsonStringify;
+      // guards the call counter so that a late interrupt cannot hit the next call
+      private final Object limitLock = new Object();
+      private long calls;
+      // set when a call did not stop after an interrupt; no further call may start as the context is being closed
+      private boolean closing;
+
+      private JsContext(JsEngine jsEngine) {
+         this.jsEngine = jsEngine;
+         Context.Builder builder = Context.newBuilder("js")
+               .engine(jsEngine.engine)
+               .allowExperimentalOptions(true)
+               .option("js.foreign-object-prototype", "true")
+               .option("js.global-property", "true")
+               .out(out)
+               .err(out);
+         if (jsEngine.resourceLimits != null) {
+            builder.resourceLimits(jsEngine.resourceLimits);
+         }
+         this.context = builder.build();
+         context.enter();
+         try {
+            Util.setupContext(context);
+            this.jsonParse = context.eval("js", "JSON.parse");
+            this.jsonStringify = context.eval("js", "JSON.stringify");
+         } finally {
+            context.leave();
+         }
+      }
+
+      Context context() {
+         return context;
+      }
+
+      void enter() {
+         context.enter();
+      }
+
+      void leave() {
+         try {
+            context.leave();
+         } catch (IllegalStateException e) {
+            // the context has been closed after exceeding limits
+            log.debug("Cannot leave JavaScript context", e);
+         }
+      }
+
+      /**
+       * Starts limits for a single function call; the returned handle must be closed when the call completes.
+       */
+      TimeLimit limit() {
+         if (jsEngine.statementLimit > 0) {
+            context.resetLimits();
+         }
+         if (jsEngine.timeout == null) {
+            return NO_LIMIT;
+         }
+         long call;
+         synchronized (limitLock) {
+            if (closing) {
+               throw new IllegalStateException("The JavaScript context has been closed after exceeding the time limit");
+            }
+            call = ++calls;
+         }
+         ScheduledFuture<?> future = jsEngine.watchdog.schedule(() -> interrupt(call), jsEngine.timeout.toMillis(), TimeUnit.MILLISECONDS);
+         return () -> {
+            // waits for an interrupt in progress so that it cannot spill over to the next call
+            synchronized (limitLock) {
+               ++calls;
+            }
+            future.cancel(false);
+         };
+      }
+
+      private void interrupt(long call) {
+         synchronized (limitLock) {
+            if (calls != call) {
+               return;
+            }
+            try {
+               log.debugf("JavaScript function exceeded time limit %s, interrupting", jsEngine.timeout);
+               context.interrupt(INTERRUPT_WAIT);
+               return;
+            } catch (TimeoutException e) {
+               log.warnf("JavaScript function did not stop after being interrupted, closing the context");
+               closing = true;
+            } catch (RuntimeException e) {
+               log.debug("Failed to interrupt JavaScript function", e);
+               return;
+            }
+         }
+         // closing waits for the thread to leave the context, which it cannot do while we hold the lock;
+         // the flag set above keeps the next call from starting in the meantime, so only this call is cancelled
+         try {
+            context.close(true);
+         } catch (RuntimeException e) {
+            log.debug("Failed to close JavaScript context", e);
+         }
+      }
+
+      boolean hasOutput() {
+         return out.size() > 0;
+      }
+
+      String output() {
+         return out.toString(StandardCharsets.UTF_8);
+      }
+
+      /**
+       * Returns the function defined by this code; the code is parsed only once for all contexts.
+       */
+      Value function(String function) {
+         return context.eval(jsEngine.source(function));
+      }
+
+      boolean useProxies() {
+         return jsEngine.inputProxies;
+      }
+
+      Value toJs(JsonNode input) {
+         return jsonParse.execute(String.valueOf(input));
+      }
+
+      JsonNode toJson(Value value) {
+         JsonNode node = Util.unwrapProxy(value);
+         if (node != null) {
+            return node;
+         } else if (value.hasArrayElements() || (value.hasMembers() && !value.canExecute() && !value.isString())) {
+            try {
+               Value json = jsonStringify.execute(value);
+               if (json.isString()) {
+                  node = Util.toJsonNode(json.asString());
+                  if (node != null) {
+                     return node;
+                  }
+               }
+            } catch (PolyglotException e) {
+               log.debug("Cannot stringify the result, converting it member by member", e);
+            }
+         }
+         return Util.convertToJson(value);
+      }
+
+      @Override
+      public void close() {
+         try {
+            context.close();
+         } catch (RuntimeException e) {
+            log.debug("Failed to close JavaScript context", e);
+         }
+      }
+   }
+}
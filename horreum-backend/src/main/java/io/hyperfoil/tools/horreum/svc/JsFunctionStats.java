@@ -0,0 +1,118 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Collects timings of user-defined functions (labels, transformers and change detection variables).
+ * Each function is recorded both as a Micrometer timer {@value #METRIC} tagged by kind, id and test,
+ * and in memory so that the slowest functions of a test can be listed.
+ */
+final class JsFunctionStats {
+   static final String METRIC = "horreum.function.evaluation";
+
+   private static final ConcurrentMap<Key, Stats> stats = new ConcurrentHashMap<>();
+
+   private JsFunctionStats() {
+   }
+
+   enum Kind {
+      LABEL,
+      TRANSFORMER,
+      VARIABLE,
+   }
+
+   record Key(Kind kind, int id, int testId) {
+      static Key label(int id, int testId) {
+         return new Key(Kind.LABEL, id, testId);
+      }
+
+      static Key transformer(int id, int testId) {
+         return new Key(Kind.TRANSFORMER, id, testId);
+      }
+
+      static Key variable(int id, int testId) {
+         return new Key(Kind.VARIABLE, id, testId);
+      }
+   }
+
+   static final class Stats {
+      final Key key;
+      private final Timer timer;
+      private final LongAdder invocations = new LongAdder();
+      private final LongAdder failures = new LongAdder();
+      private final LongAdder totalNanos = new LongAdder();
+      private final AtomicLong maxNanos = new AtomicLong();
+
+      private Stats(Key key) {
+         this.key = key;
+         this.timer = Timer.builder(METRIC)
+               .description("Time spent evaluating user-defined functions")
+               .tag("kind", key.kind.name().toLowerCase())
+               .tag("id", String.valueOf(key.id))
+               .tag("test", String.valueOf(key.testId))
+               .register(Metrics.globalRegistry);
+      }
+
+      private void record(long nanos, boolean failed) {
+         timer.record(nanos, TimeUnit.NANOSECONDS);
+         invocations.increment();
+         totalNanos.add(nanos);
+         maxNanos.accumulateAndGet(nanos, Math::max);
+         if (failed) {
+            failures.increment();
+         }
+      }
+
+      long invocations() {
+         return invocations.sum();
+      }
+
+      long failures() {
+         return failures.sum();
+      }
+
+      long totalNanos() {
+         return totalNanos.sum();
+      }
+
+      long maxNanos() {
+         return maxNanos.get();
+      }
+   }
+
+   static void record(Key key, long nanos, boolean failed) {
+      if (key != null) {
+         stats.computeIfAbsent(key, Stats::new).record(nanos, failed);
+      }
+   }
+
+   /**
+    * Returns the functions of given test ordered by total time spent in them, the slowest first.
+    */
+   static List<Stats> slowest(int testId, int limit) {
+      return stats.values().stream()
+            .filter(s -> s.key.testId == testId)
+            .sorted(Comparator.comparingLong(Stats::totalNanos).reversed())
+            .limit(limit)
+            .toList();
+   }
+
+   static void onTestDeleted(int testId) {
+      stats.values().removeIf(s -> {
+         if (s.key.testId == testId) {
+            Metrics.globalRegistry.remove(s.timer);
+            return true;
+         }
+         return false;
+      });
+   }
+}
@@ -0,0 +1,88 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Work of one priority class flowing through a channel. Freshly uploaded runs go through the live lane;
+ * reprocessing after schema and label changes and bulk recalculations go through background lanes, which
+ * have their own channels and worker pools and are throttled while live work is being processed
+ * (see {@link BackgroundThrottle}). Runs uploaded synchronously are transformed in the request, but they are
+ * tracked in the live lane as well.
+ * <p>
+ * A message can be consumed by any node in a cluster, so a node cannot tell the depth of the queue. Instead
+ * each node counts the messages it has sent and the messages it has processed; the depth of the queue is the
+ * difference of these counters summed over all nodes.
+ */
+final class ProcessingLane {
+   static final String QUEUED_METRIC = "horreum.processing.queued";
+   static final String PROCESSED_METRIC = "horreum.processing.processed";
+   static final String ACTIVE_METRIC = "horreum.processing.active";
+   static final String TIME_METRIC = "horreum.processing.time";
+
+   private final String name;
+   private final AtomicInteger active = new AtomicInteger();
+   private final Counter queued;
+   private final Counter processed;
+   private final Timer timer;
+
+   ProcessingLane(String lane, String channel, MeterRegistry registry) {
+      this.name = lane + "/" + channel;
+      queued = Counter.builder(QUEUED_METRIC)
+            .description("Number of messages sent by this node")
+            .tag("lane", lane).tag("channel", channel)
+            .register(registry);
+      processed = Counter.builder(PROCESSED_METRIC)
+            .description("Number of messages processed by this node, including messages sent by other nodes")
+            .tag("lane", lane).tag("channel", channel)
+            .register(registry);
+      Gauge.builder(ACTIVE_METRIC, active, AtomicInteger::get)
+            .description("Number of messages being processed on this node")
+            .tag("lane", lane).tag("channel", channel)
+            .register(registry);
+      timer = Timer.builder(TIME_METRIC)
+            .description("Time spent processing work")
+            .tag("lane", lane).tag("channel", channel)
+            .register(registry);
+   }
+
+   void queued() {
+      queued.increment();
+   }
+
+   void process(Runnable runnable) {
+      try {
+         track(runnable);
+      } finally {
+         processed.increment();
+      }
+   }
+
+   /**
+    * Executes work of this lane that was not received from the channel.
+    */
+   void track(Runnable runnable) {
+      active.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+         runnable.run();
+      } finally {
+         timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+         active.decrementAndGet();
+      }
+   }
+
+   int active() {
+      return active.get();
+   }
+
+   @Override
+   public String toString() {
+      return name;
+   }
+}
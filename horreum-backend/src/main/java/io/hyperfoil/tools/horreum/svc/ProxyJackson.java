@@ -3,8 +3,10 @@ package io.hyperfoil.tools.horreum.svc;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.graalvm.polyglot.proxy.Proxy;
 
+/**
+ * Exposes Jackson nodes to JavaScript without serializing them; members are converted only when accessed.
+ */
 public class ProxyJackson {
 
     public static Object wrap(JsonNode object){
@@ -15,7 +17,7 @@ public class ProxyJackson {
         }else if (object.isArray()){
             return new ProxyJacksonArray((ArrayNode) object);
         }else{
-            return object;
+            return Util.convertFromJson(object);
         }
     }
 }
@@ -1,6 +1,5 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.graalvm.polyglot.Value;
@@ -22,15 +21,15 @@ public class ProxyJacksonArray implements ProxyArray {
         return Util.convertFromJson(node.get((int) index));
     }
 
+    // The proxied nodes belong to Horreum (e.g. run data) and functions must not modify them
     @Override
     public void set (long index, Value value) {
-        Object converted = Util.convert(value);
-        node.set((int)index,new ObjectMapper().valueToTree(converted));
+        throw new UnsupportedOperationException("Input of the function is read-only");
     }
 
     @Override
     public boolean remove(long index){
-        return node.remove((int)index) != null;
+        throw new UnsupportedOperationException("Input of the function is read-only");
     }
 
     @Override
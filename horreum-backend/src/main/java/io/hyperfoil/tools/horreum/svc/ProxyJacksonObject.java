@@ -2,6 +2,7 @@ package io.hyperfoil.tools.horreum.svc;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
 import org.graalvm.polyglot.proxy.ProxyExecutable;
 import org.graalvm.polyglot.proxy.ProxyObject;
 
@@ -41,11 +42,12 @@ public class ProxyJacksonObject implements ProxyObject {
     @Override
     public Object getMemberKeys() {
         Iterator<String> iter = node.fieldNames();
-        List<String> rtrn = new ArrayList<>();
+        List<Object> rtrn = new ArrayList<>();
         while (iter.hasNext()) {
             rtrn.add(iter.next());
         }
-        return rtrn;
+        // a plain List is not accessible to the guest unless the context allows host list access
+        return ProxyArray.fromList(rtrn);
     }
 
 
@@ -54,14 +56,15 @@ public class ProxyJacksonObject implements ProxyObject {
         return node.has(key);
     }
 
+    // The proxied nodes belong to Horreum (e.g. run data) and functions must not modify them
     @Override
     public void putMember(String key, Value value) {
-        node.put(key,Util.convertToJson(value));
+        throw new UnsupportedOperationException("Input of the function is read-only");
     }
 
     @Override
     public boolean removeMember(String key) {
-        return node.remove(key) != null;
+        throw new UnsupportedOperationException("Input of the function is read-only");
     }
 
 
@@ -0,0 +1,308 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.Transactional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.hyperfoil.tools.horreum.api.services.TestService.RecalculationStatus;
+import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Recalculates datasets of whole tests in the background. Each job and the runs it has yet to recalculate
+ * are stored in the database, so the work survives restarts and is shared by all nodes. A node claims
+ * chunks of runs, preferring the job that was served least recently, and renews the claims of the chunks
+ * in progress every <code>horreum.recalculation.heartbeat</code>; claims that were not renewed for
+ * <code>horreum.recalculation.lease</code> (e.g. because the node has died) are taken over by other nodes.
+ * At most one job of a test is running, this is enforced by a unique index.
+ */
+@ApplicationScoped
+public class RecalculationJobs {
+   private static final Logger log = Logger.getLogger(RecalculationJobs.class);
+
+   static final String RUNNING = "RUNNING";
+   static final String FINISHED = "FINISHED";
+   static final String CANCELLED = "CANCELLED";
+
+   @ConfigProperty(name = "horreum.recalculation.parallelism", defaultValue = "4")
+   int parallelism;
+
+   @ConfigProperty(name = "horreum.recalculation.chunk-size", defaultValue = "20")
+   int chunkSize;
+
+   @ConfigProperty(name = "horreum.recalculation.lease", defaultValue = "5m")
+   Duration lease;
+
+   @Inject
+   EntityManager em;
+
+   @Inject
+   ServiceMediator mediator;
+
+   @Inject
+   TransactionManager tm;
+
+   // identifies the claims of this node
+   private final String nodeId = UUID.randomUUID().toString();
+   private volatile boolean running = true;
+   private Semaphore slots;
+   private final Set<Chunk> inProgress = ConcurrentHashMap.newKeySet();
+   private ExecutorService executor;
+
+   record Chunk(long jobId, int testId, List<Integer> runIds) {
+   }
+
+   @PostConstruct
+   void init() {
+      int threads = Math.max(1, parallelism);
+      slots = new Semaphore(threads);
+      AtomicInteger counter = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(threads, runnable -> {
+         Thread thread = new Thread(runnable, "horreum-recalculation-" + counter.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   void onShutdown(@Observes ShutdownEvent event) {
+      running = false;
+      executor.shutdown();
+      try {
+         // runs in progress are finished, the rest of the chunks is left to other nodes
+         if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Recalculation threads did not finish in time, their runs will be taken over after the lease expires");
+            return;
+         }
+         releaseClaims();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+         log.warn("Failed to release claimed runs, these will be taken over after the lease expires", e);
+      }
+   }
+
+   /**
+    * Creates a job recalculating all runs of the test, unless there is one running already.
+    *
+    * @return false if the test is being recalculated already.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean start(int testId) {
+      long jobId = ((Number) em.createNativeQuery("SELECT nextval('recalculation_job_id_seq')").getSingleResult()).longValue();
+      // A concurrent start of the same test waits for the other transaction on the unique index
+      // and inserts nothing if that has created a running job.
+      int created = em.createNativeQuery("INSERT INTO recalculation_job (id, testid, status, total_runs, created, updated) " +
+                  "VALUES (?1, ?2, '" + RUNNING + "', 0, now(), now()) ON CONFLICT (testid) WHERE status = '" + RUNNING + "' DO NOTHING")
+            .setParameter(1, jobId).setParameter(2, testId).executeUpdate();
+      if (created == 0) {
+         return false;
+      }
+      // only the last job of the test is reported
+      em.createNativeQuery("DELETE FROM recalculation_job WHERE testid = ?1 AND id <> ?2")
+            .setParameter(1, testId).setParameter(2, jobId).executeUpdate();
+      int totalRuns = em.createNativeQuery("INSERT INTO recalculation_item (job_id, runid, seq) " +
+                  "SELECT ?1, id, row_number() OVER (ORDER BY start, id) FROM run WHERE testid = ?2 AND NOT trashed")
+            .setParameter(1, jobId).setParameter(2, testId).executeUpdate();
+      em.createNativeQuery("UPDATE recalculation_job SET total_runs = ?2, status = ?3 WHERE id = ?1")
+            .setParameter(1, jobId).setParameter(2, totalRuns).setParameter(3, totalRuns == 0 ? FINISHED : RUNNING)
+            .executeUpdate();
+      log.debugf("Created recalculation job %d for %d runs in test %d", jobId, totalRuns, testId);
+      Util.doAfterCommit(tm, () -> mediator.executeBlocking(this::dispatch));
+      return true;
+   }
+
+   /**
+    * @return false if the test is not being recalculated.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean cancel(int testId) {
+      int cancelled = em.createNativeQuery("UPDATE recalculation_job SET status = ?2, updated = now() WHERE testid = ?1 AND status = ?3")
+            .setParameter(1, testId).setParameter(2, CANCELLED).setParameter(3, RUNNING).executeUpdate();
+      em.createNativeQuery("DELETE FROM recalculation_item USING recalculation_job WHERE recalculation_job.id = job_id AND testid = ?1")
+            .setParameter(1, testId).executeUpdate();
+      return cancelled > 0;
+   }
+
+   /**
+    * @return status of the last job of the test, or null if there is none.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   RecalculationStatus status(int testId) {
+      List<Object[]> rows = em.createNativeQuery("SELECT id, status, total_runs, finished_runs, failed_runs, datasets, created, updated " +
+                  "FROM recalculation_job WHERE testid = ?1 ORDER BY id DESC LIMIT 1", Object[].class)
+            .setParameter(1, testId).getResultList();
+      if (rows.isEmpty()) {
+         return null;
+      }
+      Object[] row = rows.get(0);
+      Instant created = (Instant) row[6];
+      Instant updated = (Instant) row[7];
+      RecalculationStatus status = new RecalculationStatus(((Number) row[2]).longValue());
+      status.jobId = ((Number) row[0]).longValue();
+      status.state = (String) row[1];
+      status.timestamp = created.toEpochMilli();
+      status.finished = ((Number) row[3]).longValue();
+      status.failed = ((Number) row[4]).longValue();
+      status.datasets = ((Number) row[5]).longValue();
+      if (RUNNING.equals(status.state) && status.finished > 0) {
+         long elapsed = updated.toEpochMilli() - created.toEpochMilli();
+         status.estimatedFinish = updated.toEpochMilli() + elapsed * (status.totalRuns - status.finished) / status.finished;
+      }
+      return status;
+   }
+
+   @Scheduled(every = "{horreum.recalculation.poll-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+   void dispatch() {
+      while (running && slots.tryAcquire()) {
+         Chunk chunk;
+         try {
+            chunk = claim();
+         } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+         }
+         if (chunk == null) {
+            slots.release();
+            return;
+         }
+         try {
+            inProgress.add(chunk);
+            executor.execute(Util.wrapForBlockingExecution(() -> {
+               try {
+                  process(chunk);
+               } finally {
+                  inProgress.remove(chunk);
+                  slots.release();
+               }
+               dispatch();
+            }));
+         } catch (RejectedExecutionException e) {
+            // shutting down; the claim will be released or taken over
+            inProgress.remove(chunk);
+            slots.release();
+            return;
+         }
+      }
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   Chunk claim() {
+      List<Object[]> jobs = em.createNativeQuery("SELECT id, testid FROM recalculation_job j WHERE status = ?1 AND EXISTS (" +
+                  "SELECT 1 FROM recalculation_item WHERE job_id = j.id AND (claimed_at IS NULL OR claimed_at < now() - ?2 * interval '1 second')" +
+                  ") ORDER BY last_claimed NULLS FIRST, id LIMIT 1", Object[].class)
+            .setParameter(1, RUNNING).setParameter(2, lease.toSeconds()).getResultList();
+      if (jobs.isEmpty()) {
+         return null;
+      }
+      long jobId = ((Number) jobs.get(0)[0]).longValue();
+      int testId = (int) jobs.get(0)[1];
+      // concurrent claims of the same job get different runs
+      List<Integer> runIds = em.createNativeQuery("SELECT runid FROM recalculation_item WHERE job_id = ?1 " +
+                  "AND (claimed_at IS NULL OR claimed_at < now() - ?2 * interval '1 second') ORDER BY seq LIMIT ?3 FOR UPDATE SKIP LOCKED", Integer.class)
+            .setParameter(1, jobId).setParameter(2, lease.toSeconds()).setParameter(3, Math.max(1, chunkSize)).getResultList();
+      if (runIds.isEmpty()) {
+         return null;
+      }
+      em.createNativeQuery("UPDATE recalculation_item SET claimed_at = now(), claimed_by = ?1 WHERE job_id = ?2 AND runid IN (?3)")
+            .setParameter(1, nodeId).setParameter(2, jobId).setParameter(3, runIds).executeUpdate();
+      em.createNativeQuery("UPDATE recalculation_job SET last_claimed = now() WHERE id = ?1").setParameter(1, jobId).executeUpdate();
+      return new Chunk(jobId, testId, runIds);
+   }
+
+   void process(Chunk chunk) {
+      for (int runId : chunk.runIds()) {
+         if (!running) {
+            return;
+         }
+         int[] datasets = new int[1];
+         boolean failed = false;
+         try {
+            mediator.runInBackground(() ->
+                  mediator.withRecalculationLock(chunk.testId(), () -> datasets[0] = mediator.transform(runId, true)));
+         } catch (Throwable t) {
+            failed = true;
+            log.errorf(t, "Failed to recalculate datasets for run %d in test %d", runId, chunk.testId());
+         }
+         if (!complete(chunk.jobId(), runId, datasets[0], failed)) {
+            log.debugf("Recalculation job %d for test %d is no longer running", chunk.jobId(), chunk.testId());
+            return;
+         }
+      }
+   }
+
+   /**
+    * @return false if the job is no longer running.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean complete(long jobId, int runId, int datasets, boolean failed) {
+      // Locking the job serializes completions; the count below then sees the items deleted by the others
+      List<?> status = em.createNativeQuery("SELECT status FROM recalculation_job WHERE id = ?1 FOR UPDATE")
+            .setParameter(1, jobId).getResultList();
+      if (status.isEmpty() || !RUNNING.equals(status.get(0))) {
+         return false;
+      }
+      int deleted = em.createNativeQuery("DELETE FROM recalculation_item WHERE job_id = ?1 AND runid = ?2")
+            .setParameter(1, jobId).setParameter(2, runId).executeUpdate();
+      if (deleted == 0) {
+         // the claim has expired and the run has been recalculated by another node
+         return true;
+      }
+      Number remaining = (Number) em.createNativeQuery("SELECT count(*) FROM recalculation_item WHERE job_id = ?1")
+            .setParameter(1, jobId).getSingleResult();
+      em.createNativeQuery("UPDATE recalculation_job SET finished_runs = finished_runs + 1, failed_runs = failed_runs + ?2, " +
+                  "datasets = datasets + ?3, status = ?4, updated = now() WHERE id = ?1")
+            .setParameter(1, jobId).setParameter(2, failed ? 1 : 0).setParameter(3, datasets)
+            .setParameter(4, remaining.longValue() == 0 ? FINISHED : RUNNING).executeUpdate();
+      if (remaining.longValue() == 0) {
+         log.debugf("Recalculation job %d has finished", jobId);
+      }
+      return true;
+   }
+
+   /**
+    * Renews the claims of chunks that are being processed, independently of how long recalculation
+    * of a single run takes. Claims of chunks that are not processed anymore (e.g. after an error) expire.
+    */
+   @Scheduled(every = "{horreum.recalculation.heartbeat}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   void renewClaims() {
+      for (Chunk chunk : inProgress) {
+         em.createNativeQuery("UPDATE recalculation_item SET claimed_at = now() WHERE job_id = ?1 AND runid IN (?2) AND claimed_by = ?3")
+               .setParameter(1, chunk.jobId()).setParameter(2, chunk.runIds()).setParameter(3, nodeId).executeUpdate();
+      }
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   void releaseClaims() {
+      em.createNativeQuery("UPDATE recalculation_item SET claimed_at = NULL, claimed_by = NULL WHERE claimed_by = ?1")
+            .setParameter(1, nodeId).executeUpdate();
+   }
+}
@@ -0,0 +1,54 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Serializes run transformations and label calculations of the same test while letting different tests
+ * proceed in parallel. Tests are mapped to a fixed number of lock stripes; with a single stripe all
+ * recalculations on this node are serialized. Time spent waiting for a stripe held by another thread is
+ * recorded as the timer {@value #WAIT_METRIC}.
+ */
+final class RecalculationLocks {
+   static final String WAIT_METRIC = "horreum.recalculation.lock.wait";
+   static final String ACQUIRED_METRIC = "horreum.recalculation.lock.acquired";
+
+   private final ReentrantLock[] locks;
+   private final Timer waits;
+   private final Counter acquired;
+
+   RecalculationLocks(int stripes, MeterRegistry registry) {
+      if (stripes < 1) {
+         throw new IllegalArgumentException("Number of lock stripes must be positive: " + stripes);
+      }
+      locks = new ReentrantLock[stripes];
+      for (int i = 0; i < stripes; ++i) {
+         locks[i] = new ReentrantLock();
+      }
+      waits = Timer.builder(WAIT_METRIC)
+            .description("Time spent waiting for the recalculation lock of a test held by another thread")
+            .register(registry);
+      acquired = Counter.builder(ACQUIRED_METRIC)
+            .description("Number of acquisitions of the recalculation locks")
+            .register(registry);
+   }
+
+   void run(int testId, Runnable runnable) {
+      ReentrantLock lock = locks[Math.floorMod(testId, locks.length)];
+      if (!lock.tryLock()) {
+         long start = System.nanoTime();
+         lock.lock();
+         waits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      acquired.increment();
+      try {
+         runnable.run();
+      } finally {
+         lock.unlock();
+      }
+   }
+}
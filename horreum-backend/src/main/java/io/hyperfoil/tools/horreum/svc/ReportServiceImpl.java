@@ -1,6 +1,5 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import java.io.ByteArrayOutputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -687,17 +686,16 @@ public class ReportServiceImpl implements ReportService {
    }
 
    private void executeInContext(TableReportConfigDAO config, Consumer<Context> consumer) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (Context context = Context.newBuilder("js").out(out).err(out).build()) {
+      try (JsEngine.JsContext jsContext = JsEngine.get().newContext()) {
+         Context context = jsContext.context();
          context.enter();
          try {
             consumer.accept(context);
          } finally {
             context.leave();
-         }
-      } finally {
-         if (out.size() > 0) {
-            log.infof("Output while calculating data for report %s(%d): <pre>%s</pre>", config.title, config.id, out.toString());
+            if (jsContext.hasOutput()) {
+               log.infof("Output while calculating data for report %s(%d): <pre>%s</pre>", config.title, config.id, jsContext.output());
+            }
          }
       }
    }
@@ -1,14 +1,30 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
@@ -17,9 +33,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.*;
 import io.hyperfoil.tools.horreum.api.data.*;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
-import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -31,6 +49,7 @@ import jakarta.persistence.Query;
 import jakarta.persistence.TransactionRequiredException;
 import jakarta.persistence.Tuple;
 import jakarta.transaction.InvalidTransactionException;
+import jakarta.transaction.Status;
 import jakarta.transaction.SystemException;
 import jakarta.transaction.Transaction;
 import jakarta.transaction.TransactionManager;
@@ -39,10 +58,17 @@ import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.mapper.RunMapper;
 import io.hyperfoil.tools.horreum.api.services.RunService;
@@ -53,16 +79,19 @@ import io.hyperfoil.tools.horreum.datastore.DatastoreResponse;
 import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.TransformationLogDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.ExtractorDAO;
 import io.hyperfoil.tools.horreum.entity.data.RunDAO;
 import io.hyperfoil.tools.horreum.entity.data.SchemaDAO;
 import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.entity.data.TransformerDAO;
+import io.hyperfoil.tools.horreum.payload.PayloadStorage;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
 import io.quarkus.narayana.jta.runtime.TransactionConfiguration;
 import io.quarkus.runtime.Startup;
 import io.quarkus.security.identity.SecurityIdentity;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
@@ -73,6 +102,7 @@ import org.jboss.resteasy.reactive.multipart.FileUpload;
 
 import static com.fasterxml.jackson.databind.node.JsonNodeFactory.instance;
 import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID;
+import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_ALL_EXTRACTORS_BY_RUNID;
 import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID;
 import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_TRANSFORMER_TARGETS;
 
@@ -81,6 +111,8 @@ import static io.hyperfoil.tools.horreum.entity.data.SchemaDAO.QUERY_TRANSFORMER
 public class RunServiceImpl implements RunService {
    private static final Logger log = Logger.getLogger(RunServiceImpl.class);
    //@formatter:off
+   // Runs with data in the payload store have only the skeleton in run.data, so these do not contribute
+   // any keys but the $schema references.
    private static final String FIND_AUTOCOMPLETE = """
          SELECT * FROM (
             SELECT DISTINCT jsonb_object_keys(q) AS key
@@ -132,10 +164,68 @@ public class RunServiceImpl implements RunService {
    @Inject
    BackendResolver backendResolver;
 
+   @Inject
+   PayloadStorage payloadStorage;
+
 
    @Inject
    Session session;
 
+   @ConfigProperty(name = "horreum.transformation.batch-extraction", defaultValue = "true")
+   boolean batchExtraction;
+
+   @ConfigProperty(name = "horreum.extraction.engine", defaultValue = "postgres")
+   SqlJsonPath.Engine extractionEngine;
+
+   @ConfigProperty(name = "horreum.transformation.incremental", defaultValue = "true")
+   boolean incrementalRecalculation;
+
+   @ConfigProperty(name = "horreum.transformation.parallelism", defaultValue = "4")
+   int transformerParallelism;
+
+   @ConfigProperty(name = "horreum.transformation.queue-size", defaultValue = "100")
+   int transformerQueueSize;
+
+   @ConfigProperty(name = "horreum.run.upload-batch-size", defaultValue = "100")
+   int uploadBatchSize;
+
+   @ConfigProperty(name = "horreum.run.deduplicate", defaultValue = "false")
+   boolean deduplicateRuns;
+
+   @ConfigProperty(name = "horreum.run.recalculate-all.batch-size", defaultValue = "100")
+   int recalculateAllBatchSize;
+
+   @ConfigProperty(name = "horreum.run.recalculate-all.max-queue-depth", defaultValue = "1000")
+   int recalculateAllMaxQueueDepth;
+
+   // progress of the last recalculation of all runs started on this node
+   private final AtomicReference<RecalculateAllStatus> recalculateAllStatus = new AtomicReference<>();
+
+   // shared by all runs being transformed; null when transformers are evaluated sequentially
+   private ThreadPoolExecutor transformerExecutor;
+
+   @PostConstruct
+   void init() {
+      if (transformerParallelism > 1) {
+         AtomicInteger counter = new AtomicInteger();
+         transformerExecutor = new ThreadPoolExecutor(transformerParallelism, transformerParallelism, 60, TimeUnit.SECONDS,
+               new ArrayBlockingQueue<>(Math.max(1, transformerQueueSize)), runnable -> {
+                  Thread thread = new Thread(runnable, "horreum-transformer-" + counter.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+               }, new ThreadPoolExecutor.CallerRunsPolicy());
+         transformerExecutor.allowCoreThreadTimeOut(true);
+      }
+   }
+
+   @PreDestroy
+   void shutdown() {
+      if (transformerExecutor != null) {
+         transformerExecutor.shutdown();
+         transformerExecutor = null;
+      }
+   }
+
    @Transactional
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    void onTestDeleted(int testId) {
@@ -208,7 +298,7 @@ public class RunServiceImpl implements RunService {
       em.createNativeQuery("DELETE FROM run_validationerrors WHERE schema_id = ?1")
               .setParameter(1, schemaId).executeUpdate();
 
-      Util.registerTxSynchronization(tm, txStatus -> mediator.queueRunRecalculation(runId));
+      Util.registerTxSynchronization(tm, txStatus -> mediator.queueBackgroundRunRecalculation(runId));
 //      transform(runId, true);
    }
 
@@ -227,9 +317,19 @@ public class RunServiceImpl implements RunService {
               "'validationErrors', (SELECT jsonb_agg(jsonb_build_object('schemaId', schema_id, 'error', error)) FROM run_validationerrors WHERE run_id = ?1)" +
               "))::::text FROM run WHERE id = ?1", id);
       try {
-         runExtended = mapper.readValue(extendedData, RunExtended.class);
+         JsonNode tree = mapper.readTree(extendedData);
+         JsonNode dataRef = tree.path("data_ref");
+         if (dataRef.isTextual()) {
+            try (InputStream stream = payloadStorage.open(dataRef.asText())) {
+               ((ObjectNode) tree).set("data", mapper.readTree(stream));
+            }
+         }
+         runExtended = mapper.treeToValue(tree, RunExtended.class);
       } catch (JsonProcessingException e) {
          throw ServiceException.serverError("Could not retrieve extended run");
+      } catch (IOException e) {
+         log.errorf(e, "Failed to load data of run %d from the payload store", id);
+         throw ServiceException.serverError("Could not load run data");
       }
 
       return runExtended;
@@ -254,20 +354,101 @@ public class RunServiceImpl implements RunService {
       }
    }
 
+   @PermitAll
+   @WithRoles
+   @WithToken
+   @Override
+   public RunStatus getRunStatus(int id, String token) {
+      Object[] row;
+      try {
+         row = (Object[]) em.createNativeQuery("SELECT run.testid, run.trashed, " +
+               "(SELECT count(*) FROM dataset WHERE runid = run.id) AS datasets, " +
+               "(SELECT count(*) FROM label_values lv JOIN dataset ds ON ds.id = lv.dataset_id WHERE ds.runid = run.id) AS label_values, " +
+               "(SELECT count(*) FROM datapoint dp JOIN dataset ds ON ds.id = dp.dataset_id WHERE ds.runid = run.id) AS datapoints, " +
+               "(SELECT count(*) FROM change c JOIN dataset ds ON ds.id = c.dataset_id WHERE ds.runid = run.id) AS changes, " +
+               "(SELECT count(*) FROM transformationlog tl WHERE tl.runid = run.id AND tl.level >= ?2) AS errors, " +
+               "(SELECT count(*) FROM dataset_processing dsp JOIN dataset ds ON ds.id = dsp.dataset_id " +
+                  "WHERE ds.runid = run.id AND dsp.labels_calculated IS NOT NULL) AS labels_calculated, " +
+               "(SELECT count(*) FROM dataset_processing dsp JOIN dataset ds ON ds.id = dsp.dataset_id " +
+                  "WHERE ds.runid = run.id AND dsp.datapoints_calculated IS NOT NULL) AS datapoints_calculated, " +
+               "(SELECT count(*) FROM datapoint dp JOIN dataset ds ON ds.id = dp.dataset_id " +
+                  "WHERE ds.runid = run.id AND NOT dp.change_detected) AS change_detection_pending, " +
+               "(SELECT count(DISTINCT ds.id) FROM datasetlog dl JOIN dataset ds ON ds.id = dl.dataset_id " +
+                  "LEFT JOIN dataset_processing dsp ON dsp.dataset_id = ds.id " +
+                  "WHERE ds.runid = run.id AND dl.source = 'labels' AND dl.level >= ?2 AND dsp.labels_calculated IS NULL) AS labels_failed " +
+               "FROM run WHERE id = ?1")
+               .setParameter(1, id).setParameter(2, PersistentLogDAO.ERROR)
+               .getSingleResult();
+      } catch (NoResultException e) {
+         throw ServiceException.notFound("Run " + id + " not found");
+      }
+      RunStatus status = new RunStatus();
+      status.id = id;
+      status.testid = (int) row[0];
+      status.datasets = ((Number) row[2]).longValue();
+      status.labelValues = ((Number) row[3]).longValue();
+      status.datapoints = ((Number) row[4]).longValue();
+      status.changes = ((Number) row[5]).longValue();
+      status.errors = ((Number) row[6]).longValue();
+      long labelsCalculated = ((Number) row[7]).longValue();
+      long datapointsCalculated = ((Number) row[8]).longValue();
+      long changeDetectionPending = ((Number) row[9]).longValue();
+      long labelsFailed = ((Number) row[10]).longValue();
+      // Each stage runs in its own transaction: label values are calculated when the dataset event
+      // is handled, datapoints when the labels are updated and change detection is then executed
+      // for the test asynchronously, so every stage is derived from the state it leaves behind.
+      if ((boolean) row[1]) {
+         status.stage = ProcessingStage.TRASHED;
+      } else if (status.datasets == 0) {
+         // transformation logs errors and commits no datasets when it fails
+         status.stage = status.errors > 0 ? ProcessingStage.FAILED : ProcessingStage.QUEUED;
+      } else if (labelsFailed > 0) {
+         status.stage = ProcessingStage.FAILED;
+      } else if (labelsCalculated < status.datasets) {
+         status.stage = ProcessingStage.TRANSFORMED;
+      } else if (datapointsCalculated < status.datasets) {
+         status.stage = ProcessingStage.LABELS_CALCULATED;
+      } else if (changeDetectionPending > 0) {
+         status.stage = ProcessingStage.DATAPOINTS_CALCULATED;
+      } else {
+         status.stage = ProcessingStage.PROCESSED;
+      }
+      return status;
+   }
+
    @PermitAll
    @WithRoles
    @WithToken
    @Override
    public Object getData(int id, String token, String schemaUri) {
       if (schemaUri == null || schemaUri.isEmpty()) {
-         return Util.runQuery(em, "SELECT data#>>'{}' from run where id = ?", id);
+         Object[] row = (Object[]) Util.runQuery(em, "SELECT data_ref, CASE WHEN data_ref IS NULL THEN data#>>'{}' END FROM run WHERE id = ?", id);
+         if (row[0] != null) {
+            // streamed as-is, without parsing
+            String dataRef = (String) row[0];
+            return Response.ok((StreamingOutput) output -> {
+               try (InputStream stream = payloadStorage.open(dataRef)) {
+                  stream.transferTo(output);
+               }
+            }, MediaType.APPLICATION_JSON_TYPE).build();
+         }
+         return row[1];
       } else {
-         String sqlQuery = "SELECT (CASE " +
+         String sqlQuery = "SELECT run.data_ref, rs.type, rs.key, CASE WHEN run.data_ref IS NULL THEN (CASE " +
                "WHEN rs.type = 0 THEN run.data " +
                "WHEN rs.type = 1 THEN run.data->rs.key " +
                "ELSE run.data->(rs.key::::integer) " +
-               "END)#>>'{}' FROM run JOIN run_schemas rs ON rs.runid = run.id WHERE id = ?1 AND rs.source = 0 AND rs.uri = ?2";
-         return Util.runQuery(em, sqlQuery, id, schemaUri);
+               "END)#>>'{}' END FROM run JOIN run_schemas rs ON rs.runid = run.id WHERE id = ?1 AND rs.source = 0 AND rs.uri = ?2";
+         Object[] row = (Object[]) Util.runQuery(em, sqlQuery, id, schemaUri);
+         if (row[0] != null) {
+            try (InputStream stream = payloadStorage.open((String) row[0])) {
+               return extractionRoot(mapper.readTree(stream), null, (int) row[1], (String) row[2], 0);
+            } catch (IOException e) {
+               log.errorf(e, "Failed to load data of run %d from the payload store", id);
+               throw ServiceException.serverError("Could not load run data");
+            }
+         }
+         return row[3];
       }
    }
 
@@ -481,21 +662,128 @@ public class RunServiceImpl implements RunService {
 
       TestDAO test = testService.ensureTestExists(testNameOrId, token);
       run.testid = test.id;
-      Integer runId = addAuthenticated(RunMapper.to(run), test);
+      Integer runId = addAuthenticated(RunMapper.to(run), test, false);
       return Response.status(Response.Status.OK).entity(String.valueOf(runId)).header(HttpHeaders.LOCATION, "/run/" + runId).build();
    }
 
+   @PermitAll // all because of possible token-based upload
+   @Override
+   public List<Integer> addBatch(String testNameOrId, String owner, Access access, String token, InputStream runs) {
+      if (runs == null) {
+         throw ServiceException.badRequest("No runs!");
+      }
+      // tests are resolved once for all the batches
+      Map<String, TestDAO> tests = new HashMap<>();
+      List<Integer> runIds = new ArrayList<>();
+      List<Run> batch = new ArrayList<>(uploadBatchSize);
+      // A JSON array is unwrapped into its elements, NDJSON is read as a sequence of root-level values
+      try (MappingIterator<Run> iterator = mapper.readerFor(Run.class).readValues(runs)) {
+         while (iterator.hasNextValue()) {
+            batch.add(iterator.nextValue());
+            if (batch.size() >= uploadBatchSize) {
+               storeBatch(testNameOrId, owner, access, token, batch, tests, runIds);
+            }
+         }
+      } catch (IOException | RuntimeJsonMappingException e) {
+         log.debugf(e, "Failed to read runs for batch upload, %d runs have been stored", runIds.size());
+         throw batchFailure(Response.Status.BAD_REQUEST, "Cannot read runs: " + e.getMessage(), runIds);
+      }
+      if (!batch.isEmpty()) {
+         storeBatch(testNameOrId, owner, access, token, batch, tests, runIds);
+      }
+      log.debugf("Uploaded %d runs in batch", runIds.size());
+      return runIds;
+   }
+
+   private void storeBatch(String testNameOrId, String owner, Access access, String token, List<Run> batch, Map<String, TestDAO> tests, List<Integer> runIds) {
+      try {
+         runIds.addAll(addBatchInTx(testNameOrId, owner, access, token, batch, tests));
+      } catch (ServiceException e) {
+         throw batchFailure(Response.Status.fromStatusCode(e.getResponse().getStatus()), e.getMessage(), runIds);
+      }
+      batch.clear();
+   }
+
+   /**
+    * Earlier batches have been committed when an error occurs, so the client is told which runs were stored.
+    */
+   private static ServiceException batchFailure(Response.Status status, String message, List<Integer> runIds) {
+      ObjectNode body = instance.objectNode().put("error", message);
+      runIds.forEach(body.putArray("stored")::add);
+      return new ServiceException(status, message, body);
+   }
+
+   /**
+    * Persists the runs in a single transaction, sending the inserts to the database in JDBC batches.
+    * Transformation of all the runs is queued when the transaction commits.
+    */
+   @WithRoles
+   @WithToken
+   @Transactional
+   List<Integer> addBatchInTx(String testNameOrId, String owner, Access access, String token, List<Run> runs, Map<String, TestDAO> tests) {
+      List<RunDAO> persisted = new ArrayList<>(runs.size());
+      Integer jdbcBatchSize = session.getJdbcBatchSize();
+      session.setJdbcBatchSize(uploadBatchSize);
+      try {
+         for (Run run : runs) {
+            String test = run.testid != null && run.testid != 0 ? run.testid.toString() : testNameOrId;
+            if (test == null || test.isEmpty()) {
+               throw ServiceException.badRequest("No test name or id provided");
+            } else if (run.data == null || run.start == null || run.stop == null) {
+               throw ServiceException.badRequest("Run " + (persisted.size() + 1) + " in the batch is missing data, start or stop");
+            }
+            TestDAO testEntity = tests.computeIfAbsent(test, t -> testService.ensureTestExists(t, token));
+            RunDAO runDAO = RunMapper.to(run);
+            runDAO.testid = testEntity.id;
+            runDAO.trashed = false;
+            runDAO.owner = owner != null ? owner : run.owner;
+            runDAO.access = access != null ? access : run.access;
+            runDAO.token = token;
+            prepareForUpload(runDAO, testEntity);
+            em.persist(runDAO);
+            persisted.add(runDAO);
+         }
+         em.flush();
+      } catch (ServiceException e) {
+         throw e;
+      } catch (Exception e) {
+         log.error("Failed to persist runs.", e);
+         throw ServiceException.serverError("Failed to persist runs");
+      } finally {
+         session.setJdbcBatchSize(jdbcBatchSize);
+      }
+      List<Integer> runIds = new ArrayList<>(persisted.size());
+      for (RunDAO run : persisted) {
+         runIds.add(run.id);
+         mediator.newRun(RunMapper.from(run));
+         if (mediator.testMode())
+            Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_NEW, run.testid, RunMapper.from(run)));
+      }
+      queueTransformation(runIds);
+      return runIds;
+   }
+
 
    @Override
    public Response addRunFromData(String start, String stop, String test,
                                   String owner, Access access, String token,
                                   String schemaUri, String description,
-                                  String data) {
-      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, data, null);
+                                  boolean async, String data) {
+      if (data == null) {
+         log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
+         throw ServiceException.badRequest("No data!");
+      }
+      JsonNode dataNode;
+      try {
+         dataNode = Util.OBJECT_MAPPER.readTree(data);
+      } catch (JsonProcessingException e) {
+         throw ServiceException.badRequest("Could not map incoming data to JsonNode: "+e.getMessage());
+      }
+      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, async, dataNode, null);
    }
 
    @Override
-   public Response addRunFromData(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, FileUpload data, FileUpload metadata) {
+   public Response addRunFromData(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, boolean async, FileUpload data, FileUpload metadata) {
       if (data == null) {
          log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
          throw ServiceException.badRequest("No data!");
@@ -510,9 +798,17 @@ public class RunServiceImpl implements RunService {
       JsonNode dataNode;
       JsonNode metadataNode = null;
       try {
-         dataNode = Util.OBJECT_MAPPER.readTree(data.uploadedFile().toFile());
+         dataNode = readUpload(data);
+         if (dataNode == null) {
+            log.debugf("Failed to upload for test %s with description %s because of empty data.", test, description);
+            throw ServiceException.badRequest("No data!");
+         }
          if (metadata != null) {
-            metadataNode = Util.OBJECT_MAPPER.readTree(metadata.uploadedFile().toFile());
+            metadataNode = readUpload(metadata);
+            if (metadataNode == null) {
+               log.debugf("Failed to upload for test %s with description %s because of empty metadata.", test, description);
+               throw ServiceException.badRequest("Metadata is empty!");
+            }
             if (metadataNode.isArray()) {
                for (JsonNode item : metadataNode) {
                   if (!item.isObject()) {
@@ -535,7 +831,21 @@ public class RunServiceImpl implements RunService {
          log.error("Failed to read data/metadata from upload file", e);
          throw ServiceException.badRequest("Provided data/metadata can't be read (JSON encoding problem?)");
       }
-      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, dataNode.toString(), metadataNode);
+      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, async, dataNode, metadataNode);
+   }
+
+   /**
+    * Parses the uploaded file with a streaming parser straight into the tree that is later persisted,
+    * without materializing the file contents as a String. Returns null for an empty file.
+    */
+   private static JsonNode readUpload(FileUpload upload) throws IOException {
+      try (JsonParser parser = Util.OBJECT_MAPPER.createParser(upload.uploadedFile().toFile())) {
+         JsonNode node = parser.readValueAsTree();
+         if (node != null && parser.nextToken() != null) {
+            throw ServiceException.badRequest("Unexpected content after the JSON document in part '" + upload.name() + "'");
+         }
+         return node;
+      }
    }
 
    @PermitAll // all because of possible token-based upload
@@ -545,18 +855,7 @@ public class RunServiceImpl implements RunService {
    Response addRunFromData(String start, String stop, String test,
                                 String owner, Access access, String token,
                                 String schemaUri, String description,
-                                String stringData, JsonNode metadata) {
-      if (stringData == null) {
-         log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
-         throw ServiceException.badRequest("No data!");
-      }
-      JsonNode data = null;
-      try {
-         data = Util.OBJECT_MAPPER.readValue(stringData, JsonNode.class);
-      } catch (JsonProcessingException e) {
-         throw ServiceException.badRequest("Could not map incoming data to JsonNode: "+e.getMessage());
-      }
-
+                                boolean async, JsonNode data, JsonNode metadata) {
       Object foundTest = findIfNotSet(test, data);
       String testNameOrId = foundTest == null ? null : foundTest.toString().trim();
       if (testNameOrId == null || testNameOrId.isEmpty()) {
@@ -572,17 +871,21 @@ public class RunServiceImpl implements RunService {
       List<Integer> runIds = new ArrayList<>();
       if (datastore.uploadType() == Datastore.UploadType.MUILTI && response.payload instanceof  ArrayNode){
          response.payload.forEach(jsonNode -> {
-            runIds.add(getPersistRun(start, stop, test, owner, access, token, schemaUri, description, null, jsonNode, testEntity));
+            runIds.add(getPersistRun(start, stop, test, owner, access, token, schemaUri, description, null, jsonNode, testEntity, async));
          });
       } else {
-         runIds.add(getPersistRun(start, stop, test, owner, access, token, schemaUri, description, metadata, response.payload, testEntity));
+         runIds.add(getPersistRun(start, stop, test, owner, access, token, schemaUri, description, metadata, response.payload, testEntity, async));
       }
 //      return Response.status(Response.Status.OK).entity(String.valueOf(runId)).header(HttpHeaders.LOCATION, "/run/" + runId).build();
       String reponseString = String.valueOf(runIds.stream().map(val -> Integer.toString(val)).collect(Collectors.joining(", ")));
+      if (async) {
+         return Response.status(Response.Status.ACCEPTED).entity(reponseString)
+               .header(HttpHeaders.LOCATION, "/api/run/" + runIds.get(0) + "/status").build();
+      }
       return Response.status(Response.Status.OK).entity(reponseString).build();
    }
 
-   private Integer getPersistRun(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, JsonNode metadata, JsonNode data, TestDAO testEntity) {
+   private Integer getPersistRun(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, JsonNode metadata, JsonNode data, TestDAO testEntity, boolean async) {
       Object foundStart = findIfNotSet(start, data);
       Object foundStop = findIfNotSet(stop, data);
       Object foundDescription = findIfNotSet(description, data);
@@ -625,7 +928,7 @@ public class RunServiceImpl implements RunService {
       // otherwise RLS policies will fail. That's why we reuse the token for the test and later wipe it out.
       run.token = token;
 
-      Integer runId = addAuthenticated(run, testEntity);
+      Integer runId = addAuthenticated(run, testEntity, async);
       if (token != null) {
          // TODO: remove the token
       }
@@ -646,12 +949,65 @@ public class RunServiceImpl implements RunService {
 
 
 
-   private Integer addAuthenticated(RunDAO run, TestDAO test) {
+   /**
+    * @param async when set the run is only persisted and its transformation is queued to the run-recalc
+    *              channel after commit, rather than being executed in the current transaction.
+    */
+   private Integer addAuthenticated(RunDAO run, TestDAO test, boolean async) {
+      prepareForUpload(run, test);
+      if (deduplicateRuns) {
+         Integer duplicateId = findDuplicate(run);
+         if (duplicateId != null) {
+            log.debugf("Run %d in test %s(%d) has the same payload, not storing a duplicate", duplicateId, test.name, test.id);
+            return duplicateId;
+         }
+      }
+
+      try {
+         if (run.id == null) {
+            em.persist(run);
+         } else {
+            trashConnectedDatasets(run.id, run.testid);
+            em.merge(run);
+         }
+         em.flush();
+      } catch (Exception e) {
+         log.error("Failed to persist run.", e);
+         throw ServiceException.serverError("Failed to persist run");
+      }
+      log.debugf("Upload flushed, run ID %d", run.id);
+
+      mediator.newRun(RunMapper.from(run));
+      if (async) {
+         queueTransformation(List.of(run.id));
+      } else {
+         mediator.processLive(() -> transform(run.id, false));
+      }
+      if(mediator.testMode())
+         Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_NEW, test.id, RunMapper.from(run)));
+
+      return run.id;
+   }
+
+   /**
+    * Transformation of the runs is queued to the run-recalc channel when the current transaction commits.
+    */
+   private void queueTransformation(List<Integer> runIds) {
+      Util.registerTxSynchronization(tm, txStatus -> {
+         if (txStatus == Status.STATUS_COMMITTED) {
+            runIds.forEach(mediator::queueRunRecalculation);
+         }
+      });
+   }
+
+   private void prepareForUpload(RunDAO run, TestDAO test) {
       // Id will be always generated anew
       run.id = null;
       //if run.metadata is null on the client, it will be converted to a NullNode, not null...
       if(run.metadata != null && run.metadata.isNull())
          run.metadata = null;
+      // hashing the whole payload is not for free, so it's done only when it's used
+      run.payloadHash = deduplicateRuns ? payloadHash(run) : null;
 
       if (run.owner == null) {
          List<String> uploaders = identity.getRoles().stream().filter(role -> role.endsWith("-uploader")).collect(Collectors.toList());
@@ -669,27 +1025,40 @@ public class RunServiceImpl implements RunService {
          run.access = Access.PRIVATE;
       }
       log.debugf("Uploading with owner=%s and access=%s", run.owner, run.access);
+   }
+
+   /**
+    * Finds a run of the same test that was uploaded with the same payload and attributes, e.g. by a retried
+    * CI job. Such upload would only repeat the transformation with the same results.
+    */
+   private Integer findDuplicate(RunDAO run) {
+      List<Integer> ids = session.createNativeQuery("SELECT id FROM run WHERE testid = ?1 AND payload_hash = ?2 " +
+                  "AND start = ?3 AND stop = ?4 AND owner = ?5 AND access = ?6 AND NOT trashed " +
+                  "AND description IS NOT DISTINCT FROM ?7 ORDER BY id LIMIT 1", Integer.class)
+            .setParameter(1, run.testid).setParameter(2, run.payloadHash)
+            .setParameter(3, run.start).setParameter(4, run.stop)
+            .setParameter(5, run.owner).setParameter(6, run.access.ordinal())
+            .setParameter(7, run.description)
+            .getResultList();
+      return ids.isEmpty() ? null : ids.get(0);
+   }
 
+   /**
+    * The data is serialized directly into the digest, without a copy of the (possibly large) payload in memory.
+    */
+   private String payloadHash(RunDAO run) {
       try {
-         if (run.id == null) {
-            em.persist(run);
-         } else {
-            trashConnectedDatasets(run.id, run.testid);
-            em.merge(run);
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         ObjectWriter writer = mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+         try (DigestOutputStream stream = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            writer.writeValue(stream, run.data);
+            stream.write('|');
+            writer.writeValue(stream, run.metadata);
          }
-         em.flush();
-      } catch (Exception e) {
-         log.error("Failed to persist run.", e);
-         throw ServiceException.serverError("Failed to persist run");
+         return HexFormat.of().formatHex(digest.digest());
+      } catch (NoSuchAlgorithmException | IOException e) {
+         throw new IllegalStateException(e);
       }
-      log.debugf("Upload flushed, run ID %d", run.id);
-
-      mediator.newRun(RunMapper.from(run));
-      transform(run.id, false);
-      if(mediator.testMode())
-         Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_NEW, test.id, RunMapper.from(run)));
-
-      return run.id;
    }
 
    @PermitAll
@@ -988,25 +1357,26 @@ public class RunServiceImpl implements RunService {
    }
 
    private void trashInternal(int id, boolean trashed) {
-      RunDAO run = RunDAO.findById(id);
-      if (run == null) {
+      // projection: the run data are not needed here
+      List<Object[]> rows = em.createQuery("SELECT testid, trashed FROM run WHERE id = ?1", Object[].class)
+            .setParameter(1, id).getResultList();
+      if (rows.isEmpty()) {
          throw ServiceException.notFound("Run not found: " + id);
       }
-      if(run.trashed == trashed)
+      int testId = (int) rows.get(0)[0];
+      if((boolean) rows.get(0)[1] == trashed)
          throw ServiceException.badRequest("The run "+id+" has already been trashed, not possible to trash it again.");
       if (trashed) {
-         trashConnectedDatasets(run.id, run.testid);
-         run.trashed = trashed;
-         run.persist();
+         trashConnectedDatasets(id, testId);
+         setTrashed(id, true);
          if(mediator.testMode())
-            Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_TRASHED, run.testid, id));
+            Util.registerTxSynchronization(tm, txStatus -> mediator.publishEvent(AsyncEventChannels.RUN_TRASHED, testId, id));
       }
       // if the run was trashed because of a deleted test we need to ensure that the test actually exist
       // before we try to recalculate the dataset
       else {
-         if(TestDAO.findById(run.testid) != null) {
-            run.trashed = trashed;
-            run.persistAndFlush();
+         if(TestDAO.findById(testId) != null) {
+            setTrashed(id, false);
             transform(id, true);
          }
          else
@@ -1014,14 +1384,18 @@ public class RunServiceImpl implements RunService {
       }
    }
 
+   private void setTrashed(int id, boolean trashed) {
+      em.createNativeQuery("UPDATE run SET trashed = ?1 WHERE id = ?2")
+            .setParameter(1, trashed).setParameter(2, id).executeUpdate();
+   }
+
    private void trashConnectedDatasets(int runId, int testId) {
       //Make sure to remove run_schemas as we've trashed the run
       em.createNativeQuery("DELETE FROM run_schemas WHERE runid = ?1").setParameter(1, runId).executeUpdate();
-      List<DatasetDAO> datasets = DatasetDAO.list("run.id", runId);
-      log.debugf("Trashing run %d (test %d, %d datasets)", runId, testId, datasets.size());
-      for (var dataset : datasets) {
-         mediator.propagatedDatasetDelete(dataset.id);
-      }
+      List<Integer> datasetIds = session.createNativeQuery("SELECT id FROM dataset WHERE runid = ?1", Integer.class)
+            .setParameter(1, runId).getResultList();
+      log.debugf("Trashing run %d (test %d, %d datasets)", runId, testId, datasetIds.size());
+      deleteDatasets(datasetIds);
    }
 
    @RolesAllowed(Roles.TESTER)
@@ -1030,12 +1404,11 @@ public class RunServiceImpl implements RunService {
    @Override
    public void updateDescription(int id, String description) {
       // FIXME: fetchival stringifies the body into JSON string :-/
-      RunDAO run = RunDAO.findById(id);
-      if (run == null) {
+      int updated = em.createNativeQuery("UPDATE run SET description = ?1 WHERE id = ?2")
+            .setParameter(1, description).setParameter(2, id).executeUpdate();
+      if (updated == 0) {
          throw ServiceException.notFound("Run not found: " + id);
       }
-      run.description = description;
-      run.persistAndFlush();
    }
 
    @RolesAllowed(Roles.TESTER)
@@ -1055,7 +1428,13 @@ public class RunServiceImpl implements RunService {
       }
 
       // Triggering dirty property on Run
-      JsonNode updated = run.data.deepCopy();
+      JsonNode updated;
+      try {
+         updated = run.dataRef == null ? run.data.deepCopy() : payloadStorage.data(run);
+      } catch (IOException e) {
+         log.errorf(e, "Failed to load data of run %d from the payload store", id);
+         throw ServiceException.serverError("Could not load run data");
+      }
       JsonNode item;
       if (updated.isObject()) {
          item = path == null ? updated : updated.path(path);
@@ -1077,6 +1456,12 @@ public class RunServiceImpl implements RunService {
          throw ServiceException.badRequest("Cannot update schema at " + (path == null ? "<root>" : path) + " as the target is not an object");
       }
       run.data = updated;
+      run.payloadHash = deduplicateRuns ? payloadHash(run) : null;
+      if (run.dataRef != null) {
+         // the data is back in the database until the run is transformed
+         deletePayloadAfterCommit(run.dataRef, Status.STATUS_COMMITTED);
+         run.dataRef = null;
+      }
       trashConnectedDatasets(run.id, run.testid);
       run.persist();
       onNewOrUpdatedSchemaForRun(run.id, schemaOptional.get().id );
@@ -1116,47 +1501,198 @@ public class RunServiceImpl implements RunService {
       } else if (to.isBefore(from)) {
          throw ServiceException.badRequest("Time range is invalid (from > to)");
       }
+      RecalculateAllStatus status = new RecalculateAllStatus();
+      status.from = from.toEpochMilli();
+      status.to = to.toEpochMilli();
+      status.started = System.currentTimeMillis();
+      status.totalRuns = session.createNativeQuery("SELECT count(*) FROM run WHERE start BETWEEN ?1 AND ?2 AND NOT trashed", Long.class)
+            .setParameter(1, from).setParameter(2, to).getSingleResult();
+      RecalculateAllStatus previous = recalculateAllStatus.get();
+      if ((previous != null && previous.finished == null) || !recalculateAllStatus.compareAndSet(previous, status)) {
+         throw ServiceException.badRequest("Recalculation of runs is already in progress");
+      }
+      // The runs are queued from a separate thread in short transactions, rather than all at once when this one commits
+      Util.registerTxSynchronization(tm, txStatus -> {
+         if (txStatus == Status.STATUS_COMMITTED) {
+            Thread producer = new Thread(Util.wrapForBlockingExecution(() -> queueRecalculations(status, from, to)), "horreum-recalculate-all");
+            producer.setDaemon(true);
+            producer.start();
+         } else {
+            synchronized (status) {
+               status.finished = System.currentTimeMillis();
+            }
+         }
+      });
       long deleted = em.createNativeQuery("DELETE FROM dataset USING run WHERE run.id = dataset.runid AND run.trashed AND run.start BETWEEN ?1 AND ?2")
             .setParameter(1, from).setParameter(2, to).executeUpdate();
       if (deleted > 0) {
          log.debugf("Deleted %d datasets for trashed runs between %s and %s", deleted, from, to);
       }
+   }
 
-      ScrollableResults<Recalculate> results = session
-                      .createNativeQuery("SELECT id, testid FROM run WHERE start BETWEEN ?1 AND ?2 AND NOT trashed ORDER BY start", Recalculate.class)
-                      .setParameter(1, from).setParameter(2, to)
-                      .setTupleTransformer((tuples, aliases) -> {
-                         Recalculate r = new Recalculate();
-                         r.runId = (int) tuples[0];
-                         r.testId = (int) tuples[1];
-                         return r;
-                      })
-                      .setReadOnly(true).setFetchSize(100)
-                      .scroll(ScrollMode.FORWARD_ONLY);
-      while (results.next()) {
-         Recalculate r = results.get();
-         log.debugf("Recalculate Datasets for run %d - forcing recalculation of all between %s and %s", r.runId, from, to);
-         // transform will add proper roles anyway
-//         messageBus.executeForTest(r.testId, () -> datasetService.withRecalculationLock(() -> transform(r.runId, true)));
-         Util.registerTxSynchronization(tm, txStatus -> mediator.queueRunRecalculation(r.runId));
+   @RolesAllowed(Roles.ADMIN)
+   @Override
+   public RecalculateAllStatus getRecalculateAllStatus() {
+      RecalculateAllStatus current = recalculateAllStatus.get();
+      if (current == null) {
+         throw ServiceException.notFound("No recalculation has been started");
+      }
+      RecalculateAllStatus status = new RecalculateAllStatus();
+      synchronized (current) {
+         status.from = current.from;
+         status.to = current.to;
+         status.started = current.started;
+         status.finished = current.finished;
+         status.totalRuns = current.totalRuns;
+         status.queuedRuns = current.queuedRuns;
+      }
+      long elapsed = (status.finished == null ? System.currentTimeMillis() : status.finished) - status.started;
+      status.runsPerSecond = elapsed > 0 ? status.queuedRuns * 1000.0 / elapsed : 0;
+      status.queueDepth = (int) pendingRecalculations(Instant.ofEpochMilli(status.started));
+      return status;
+   }
+
+   /**
+    * Walks the runs in the time range ordered by start and ID, queueing a batch at a time for recalculation
+    * once there is room in the queue.
+    */
+   void queueRecalculations(RecalculateAllStatus status, Instant from, Instant to) {
+      int batchSize = Math.max(1, recalculateAllBatchSize);
+      Instant started = Instant.ofEpochMilli(status.started);
+      Instant lastStart = from;
+      int lastId = -1;
+      try {
+         for (;;) {
+            List<Object[]> batch = nextRunsToRecalculate(from, to, lastStart, lastId, batchSize);
+            if (batch.isEmpty()) {
+               break;
+            }
+            awaitRecalculationQueue(started, batch.size());
+            markPendingRecalculations(batch.stream().map(row -> (Integer) row[0]).toList());
+            for (Object[] row : batch) {
+               int runId = (int) row[0];
+               log.debugf("Recalculate Datasets for run %d - forcing recalculation of all between %s and %s", runId, from, to);
+               mediator.queueBackgroundRunRecalculation(runId);
+            }
+            Object[] last = batch.get(batch.size() - 1);
+            lastId = (int) last[0];
+            lastStart = (Instant) last[1];
+            synchronized (status) {
+               status.queuedRuns += batch.size();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         log.warnf("Recalculation of runs between %s and %s has been interrupted", from, to);
+      } catch (RuntimeException e) {
+         log.errorf(e, "Recalculation of runs between %s and %s failed", from, to);
+      } finally {
+         synchronized (status) {
+            status.finished = System.currentTimeMillis();
+         }
       }
    }
 
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   List<Object[]> nextRunsToRecalculate(Instant from, Instant to, Instant lastStart, int lastId, int limit) {
+      return session.createNativeQuery("SELECT id, start FROM run WHERE start BETWEEN ?1 AND ?2 AND NOT trashed " +
+                  "AND (start, id) > (?3, ?4) ORDER BY start, id LIMIT ?5", Object[].class)
+            .setParameter(1, from).setParameter(2, to).setParameter(3, lastStart).setParameter(4, lastId).setParameter(5, limit)
+            .getResultList();
+   }
+
+   /**
+    * Records the runs as queued; the record is removed by the node that transforms the run so the number
+    * of pending runs is correct regardless of which nodes consume the queue.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   void markPendingRecalculations(List<Integer> runIds) {
+      em.createNativeQuery("INSERT INTO run_recalculation_pending(runid, queued) SELECT unnest(?1), ?2 " +
+                  "ON CONFLICT (runid) DO UPDATE SET queued = excluded.queued")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, runIds.stream().mapToInt(Integer::intValue).toArray(), IntArrayType.INSTANCE)
+            .setParameter(2, Instant.now())
+            .executeUpdate();
+   }
+
+   /**
+    * @return true if the run was queued by recalculation of all runs.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean clearPendingRecalculation(int runId) {
+      return em.createNativeQuery("DELETE FROM run_recalculation_pending WHERE runid = ?1")
+            .setParameter(1, runId).executeUpdate() > 0;
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   long pendingRecalculations(Instant since) {
+      // runs left over from earlier recalculations (e.g. on a node that was stopped) are not counted
+      return session.createNativeQuery("SELECT count(*) FROM run_recalculation_pending WHERE queued >= ?1", Long.class)
+            .setParameter(1, since).getSingleResult();
+   }
+
+   private void awaitRecalculationQueue(Instant since, int batchSize) throws InterruptedException {
+      long maxDepth = Math.max(batchSize, recalculateAllMaxQueueDepth);
+      long lastProgress = System.nanoTime();
+      long depth = pendingRecalculations(since);
+      while (depth + batchSize > maxDepth) {
+         Thread.sleep(500);
+         long current = pendingRecalculations(since);
+         if (current < depth) {
+            lastProgress = System.nanoTime();
+         } else if (System.nanoTime() - lastProgress > TimeUnit.MINUTES.toNanos(1)) {
+            // the consumers might be stuck or the transformations keep failing
+            log.warnf("Number of runs waiting for recalculation has not decreased for a minute (%d runs), queueing next batch", current);
+            return;
+         }
+         depth = current;
+      }
+   }
+
+   /**
+    * Transforms a run received through the run-recalc channels. Besides recalculations these are runs
+    * uploaded asynchronously; such a run has no datasets yet and it's processed as a new run,
+    * i.e. with notifications. Runs reprocessed after schema changes keep datasets that have not changed;
+    * runs queued by recalculation of all runs are rebuilt completely.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   int transformQueued(int runId) {
+      boolean isNew = session.createNativeQuery("SELECT NOT EXISTS (SELECT 1 FROM dataset WHERE runid = ?1)", Boolean.class)
+            .setParameter(1, runId).getSingleResult();
+      boolean requested = clearPendingRecalculation(runId);
+      return transform(runId, !isNew, !isNew && !requested);
+   }
+
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional
    int transform(int runId, boolean isRecalculation) {
+      return transform(runId, isRecalculation, false);
+   }
+
+   /**
+    * @param keepUnchanged keep previous datasets that would not change, with their label values and datapoints.
+    *                      This is used only when the system reprocesses runs; recalculations requested by users
+    *                      must compute everything again as the labels, variables or other configuration
+    *                      used downstream may have changed.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   int transform(int runId, boolean isRecalculation, boolean keepUnchanged) {
       if (runId < 1) {
          log.errorf("Transformation parameters error: run %s", runId);
          return 0;
       }
       log.debugf("Transforming run ID %d, recalculation? %s", runId, Boolean.toString(isRecalculation));
-      // We need to make sure all old datasets are gone before creating new; otherwise we could
-      // break the runid,ordinal uniqueness constraint
-      for (DatasetDAO old : DatasetDAO.<DatasetDAO>list("run.id", runId)) {
-         for (DataPointDAO dp : DataPointDAO.<DataPointDAO>list("dataset.id", old.getInfo().id)){
-            dp.delete();
-         }
-         mediator.propagatedDatasetDelete(old.id);
+      // Old datasets are replaced (or kept when unchanged) as the new ones are created
+      Map<Integer, PreviousDataset> previousDatasets = new HashMap<>();
+      for (Object[] row : session.createNativeQuery("SELECT id, ordinal, data_hash FROM dataset WHERE runid = ?1", Object[].class)
+            .setParameter(1, runId).getResultList()) {
+         previousDatasets.put((Integer) row[1], new PreviousDataset((Integer) row[0], (String) row[2]));
       }
 
       RunDAO run = RunDAO.findById(runId);
@@ -1164,6 +1700,14 @@ public class RunServiceImpl implements RunService {
          log.errorf("Cannot load run ID %d for transformation", runId);
          return 0;
       }
+      JsonNode data;
+      try {
+         data = payloadStorage.data(run);
+      } catch (IOException e) {
+         log.errorf(e, "Failed to load data of run %d from the payload store", runId);
+         logMessage(run, PersistentLogDAO.ERROR, "Cannot load run data from the payload store: %s", e.getMessage());
+         return 0;
+      }
       int ordinal = 0;
       Map<Integer, JsonNode> transformerResults = new TreeMap<>();
       // naked nodes (those produced by implicit identity transformers) are all added to each dataset
@@ -1180,6 +1724,22 @@ public class RunServiceImpl implements RunService {
             .getResultList() );
 
       int schemasAndTransformers = relevantSchemas.size();
+      Map<TransformerTarget, List<Object[]>> batchExtracted = null;
+      if (extractionEngine == SqlJsonPath.Engine.JVM || run.dataRef != null) {
+         batchExtracted = extractInJvm(run, data, relevantSchemas);
+         if (batchExtracted == null && run.dataRef != null) {
+            // The database has only the skeleton of the data; datasets created from empty extraction results
+            // would replace the current ones and lose data.
+            logMessage(run, PersistentLogDAO.ERROR, "Data of this run is stored outside of the database; " +
+                  "all JSONPath expressions must be supported by the application to extract it. Keeping the current datasets.");
+            return previousDatasets.size();
+         }
+      }
+      if (batchExtracted == null && batchExtraction) {
+         batchExtracted = extractForAllTransformers(run, relevantSchemas);
+      }
+      // transformers are evaluated after all inputs are extracted, possibly in parallel, and merged in the original order
+      List<TransformerEvaluation> evaluations = new ArrayList<>();
       for (Object[] relevantSchema : relevantSchemas) {
          int type = (int) relevantSchema[0];
          String key = (String) relevantSchema[1];
@@ -1198,33 +1758,10 @@ public class RunServiceImpl implements RunService {
          }
          if (t != null) {
             JsonNode root = JsonNodeFactory.instance.objectNode();
-            JsonNode result;
             if (t.extractors != null && !t.extractors.isEmpty()) {
-               List<Object[]> extractedData;
-               try {
-                  if (type == SchemaDAO.TYPE_1ST_LEVEL) {
-                     // note: metadata always follow the 2nd level format
-                     extractedData = unchecked(em.createNamedQuery(QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
-                           .setParameter(1, run.id).setParameter(2, transformerId)
-                           .unwrap(NativeQuery.class)
-                           .addScalar("name", StandardBasicTypes.TEXT)
-                           .addScalar("value", JsonBinaryType.INSTANCE)
-                           .getResultList());
-                  } else {
-                     extractedData = unchecked(em.createNamedQuery(QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
-                           .setParameter(1, run.id).setParameter(2, transformerId)
-                           .setParameter(3, type == SchemaDAO.TYPE_2ND_LEVEL ? key : Integer.parseInt(key))
-                           .setParameter(4, source)
-                           .unwrap(NativeQuery.class)
-                           .addScalar("name", StandardBasicTypes.TEXT)
-                           .addScalar("value", JsonBinaryType.INSTANCE)
-                           .getResultList());
-                  }
-               } catch (PersistenceException e) {
-                  logMessage(run, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
-                  findFailingExtractor(runId);
-                  extractedData = Collections.emptyList();
-               }
+               List<Object[]> extractedData = batchExtracted != null ?
+                     batchExtracted.getOrDefault(new TransformerTarget(type, key, source, transformerId), Collections.emptyList()) :
+                     extractForTransformer(run, transformerId, type, key, source);
                addExtracted((ObjectNode) root, extractedData);
             }
             // In Horreum it's customary that when a single extractor is used we pass the result directly to the function
@@ -1237,58 +1774,13 @@ public class RunServiceImpl implements RunService {
                   root = root.iterator().next();
                }
             }
-            logMessage(run, PersistentLogDAO.DEBUG, "Run transformer %s/%s with input: <pre>%s</pre>, function: <pre>%s</pre>",
+            TransformerEvaluation evaluation = new TransformerEvaluation(t, run.testid, uri, root);
+            evaluation.log(PersistentLogDAO.DEBUG, "Run transformer %s/%s with input: <pre>%s</pre>, function: <pre>%s</pre>",
                   uri, t.name, limitLength(root.toPrettyString()), t.function);
-            if (t.function != null && !t.function.isBlank()) {
-               result = Util.evaluateOnce(t.function, root, Util::convertToJson,
-                     (code, e) -> logMessage(run, PersistentLogDAO.ERROR,
-                           "Evaluation of transformer %s/%s failed: '%s' Code: <pre>%s</pre>", uri, t.name, e.getMessage(), code),
-                     output -> logMessage(run, PersistentLogDAO.DEBUG, "Output while running transformer %s/%s: <pre>%s</pre>", uri, t.name, output));
-               if (result == null) {
-                  // this happens upon error
-                  result = JsonNodeFactory.instance.nullNode();
-               }
-            } else {
-               result = root;
-            }
-            if (t.targetSchemaUri != null) {
-               if (result.isObject()) {
-                  putIfAbsent(run, t.targetSchemaUri, (ObjectNode) result);
-               } else if (result.isArray()) {
-                  ArrayNode array = (ArrayNode) result;
-                  for (JsonNode node : array) {
-                     if (node.isObject()) {
-                        putIfAbsent(run, t.targetSchemaUri, (ObjectNode) node);
-                     }
-                  }
-               } else {
-                  result = instance.objectNode()
-                        .put("$schema", t.targetSchemaUri).set("value", result);
-               }
-            } else if (!result.isContainerNode() || (result.isObject() && !result.has("$schema")) ||
-                  (result.isArray() && StreamSupport.stream(result.spliterator(), false).anyMatch(item -> !item.has("$schema")))) {
-               logMessage(run, PersistentLogDAO.WARN, "Dataset will contain element without a schema.");
-            }
-            JsonNode existing = transformerResults.get(transformerId);
-            if (existing == null) {
-               transformerResults.put(transformerId, result);
-            } else if (existing.isArray()) {
-               if (result.isArray()) {
-                  ((ArrayNode) existing).addAll((ArrayNode) result);
-               } else {
-                  ((ArrayNode) existing).add(result);
-               }
-            } else {
-               if (result.isArray()) {
-                  ((ArrayNode) result).insert(0, existing);
-                  transformerResults.put(transformerId, result);
-               } else {
-                  transformerResults.put(transformerId, instance.arrayNode().add(existing).add(result));
-               }
-            }
+            evaluations.add(evaluation);
          } else {
             JsonNode node;
-            JsonNode sourceNode = source == 0 ? run.data : run.metadata;
+            JsonNode sourceNode = source == 0 ? data : run.metadata;
             switch (type) {
                case SchemaDAO.TYPE_1ST_LEVEL:
                   node = sourceNode;
@@ -1306,8 +1798,51 @@ public class RunServiceImpl implements RunService {
             logMessage(run, PersistentLogDAO.DEBUG, "This test (%d) does not use any transformer for schema %s (key %s), passing as-is.", run.testid, uri, key);
          }
       }
+      evaluateTransformers(evaluations);
+      for (TransformerEvaluation evaluation : evaluations) {
+         evaluation.flushLog(this, run);
+         TransformerDAO t = evaluation.transformer;
+         Integer transformerId = t.id;
+         JsonNode result = evaluation.result;
+         if (t.targetSchemaUri != null) {
+            if (result.isObject()) {
+               putIfAbsent(run, t.targetSchemaUri, (ObjectNode) result);
+            } else if (result.isArray()) {
+               ArrayNode array = (ArrayNode) result;
+               for (JsonNode node : array) {
+                  if (node.isObject()) {
+                     putIfAbsent(run, t.targetSchemaUri, (ObjectNode) node);
+                  }
+               }
+            } else {
+               result = instance.objectNode()
+                     .put("$schema", t.targetSchemaUri).set("value", result);
+            }
+         } else if (!result.isContainerNode() || (result.isObject() && !result.has("$schema")) ||
+               (result.isArray() && StreamSupport.stream(result.spliterator(), false).anyMatch(item -> !item.has("$schema")))) {
+            logMessage(run, PersistentLogDAO.WARN, "Dataset will contain element without a schema.");
+         }
+         JsonNode existing = transformerResults.get(transformerId);
+         if (existing == null) {
+            transformerResults.put(transformerId, result);
+         } else if (existing.isArray()) {
+            if (result.isArray()) {
+               ((ArrayNode) existing).addAll((ArrayNode) result);
+            } else {
+               ((ArrayNode) existing).add(result);
+            }
+         } else {
+            if (result.isArray()) {
+               ((ArrayNode) result).insert(0, existing);
+               transformerResults.put(transformerId, result);
+            } else {
+               transformerResults.put(transformerId, instance.arrayNode().add(existing).add(result));
+            }
+         }
+      }
       if (schemasAndTransformers > 0) {
          int max = transformerResults.values().stream().filter(JsonNode::isArray).mapToInt(JsonNode::size).max().orElse(1);
+         List<DatasetDAO> datasets = new ArrayList<>(max);
 
          for (int position = 0; position < max; position += 1) {
             ArrayNode all = instance.arrayNode(max + nakedNodes.size());
@@ -1331,20 +1866,320 @@ public class RunServiceImpl implements RunService {
                }
             }
             nakedNodes.forEach(all::add);
-            createDataset(new DatasetDAO(run, ordinal++, run.description, all), isRecalculation);
+            datasets.add(new DatasetDAO(run, ordinal++, run.description, all));
          }
+         replaceDatasets(datasets, previousDatasets, isRecalculation, keepUnchanged);
          mediator.validateRun(run.id);
+         offloadPayload(run);
          return ordinal;
       } else {
          logMessage(run, PersistentLogDAO.INFO, "No applicable schema, dataset will be empty.");
-         createDataset(new DatasetDAO(
+         replaceDatasets(List.of(new DatasetDAO(
                run, 0, "Empty Dataset for run data without any schema.",
-               instance.arrayNode()), isRecalculation);
+               instance.arrayNode())), previousDatasets, isRecalculation, keepUnchanged);
          mediator.validateRun(run.id);
+         offloadPayload(run);
          return 1;
       }
    }
 
+   /**
+    * Moves large run data to the payload store after the datasets have been created from it.
+    */
+   private void offloadPayload(RunDAO run) {
+      if (!payloadStorage.isEnabled() || run.dataRef != null) {
+         return;
+      }
+      String key;
+      try {
+         key = payloadStorage.offload(run.id, run.data);
+      } catch (IOException e) {
+         log.errorf(e, "Failed to store data of run %d in the payload store, keeping it in the database", run.id);
+         return;
+      }
+      if (key == null) {
+         return;
+      }
+      // run_schemas are inserted again by the trigger on update; the skeleton results in the same rows
+      em.createNativeQuery("DELETE FROM run_schemas WHERE runid = ?1").setParameter(1, run.id).executeUpdate();
+      run.data = PayloadStorage.skeleton(run.data);
+      run.dataRef = key;
+      em.flush();
+      deletePayloadAfterCommit(key, Status.STATUS_ROLLEDBACK);
+      log.debugf("Data of run %d moved to the payload store as %s", run.id, key);
+   }
+
+   private void deletePayloadAfterCommit(String key, int status) {
+      Util.registerTxSynchronization(tm, txStatus -> {
+         if (txStatus == status) {
+            try {
+               payloadStorage.delete(key);
+            } catch (IOException e) {
+               log.errorf(e, "Failed to delete %s from the payload store", key);
+            }
+         }
+      });
+   }
+
+   private record PreviousDataset(int id, String dataHash) {}
+
+   /**
+    * Creates the datasets, deleting all previous datasets of the run. When reprocessing runs after schema changes
+    * a previous dataset with the same ordinal and content is kept instead, together with its label values and datapoints.
+    */
+   private void replaceDatasets(List<DatasetDAO> datasets, Map<Integer, PreviousDataset> previousDatasets, boolean isRecalculation, boolean keepUnchanged) {
+      List<DatasetDAO> created = new ArrayList<>(datasets.size());
+      List<Integer> kept = new ArrayList<>();
+      for (DatasetDAO ds : datasets) {
+         ds.dataHash = contentHash(ds);
+         PreviousDataset previous = previousDatasets.get(ds.ordinal);
+         if (previous != null && incrementalRecalculation && keepUnchanged && ds.dataHash.equals(previous.dataHash)) {
+            log.debugf("Dataset %d (run %d/%d) has not changed, keeping it", previous.id, ds.run.id, ds.ordinal);
+            previousDatasets.remove(ds.ordinal);
+            kept.add(previous.id);
+         } else {
+            created.add(ds);
+         }
+      }
+      // We need to make sure the old datasets are gone before creating new; otherwise we could
+      // break the runid,ordinal uniqueness constraint
+      deleteDatasets(previousDatasets.values().stream().map(PreviousDataset::id).toList());
+      kept.forEach(mediator::validateDataset);
+      created.forEach(ds -> createDataset(ds, isRecalculation));
+   }
+
+   private void deleteDatasets(List<Integer> datasetIds) {
+      if (!datasetIds.isEmpty()) {
+         mediator.propagatedDatasetsDelete(datasetIds);
+      }
+   }
+
+   private static String contentHash(DatasetDAO ds) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         // anything that is copied from the run into the dataset contributes to the hash
+         String attributes = ds.testid + "|" + ds.start + "|" + ds.stop + "|" + ds.owner + "|" + ds.access + "|" + ds.description + "|";
+         digest.update(attributes.getBytes(StandardCharsets.UTF_8));
+         digest.update(String.valueOf(ds.data).getBytes(StandardCharsets.UTF_8));
+         return HexFormat.of().formatHex(digest.digest());
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private List<Object[]> extractForTransformer(RunDAO run, int transformerId, int type, String key, Integer source) {
+      try {
+         if (type == SchemaDAO.TYPE_1ST_LEVEL) {
+            // note: metadata always follow the 2nd level format
+            return unchecked(em.createNamedQuery(QUERY_1ST_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
+                  .setParameter(1, run.id).setParameter(2, transformerId)
+                  .unwrap(NativeQuery.class)
+                  .addScalar("name", StandardBasicTypes.TEXT)
+                  .addScalar("value", JsonBinaryType.INSTANCE)
+                  .getResultList());
+         } else {
+            return unchecked(em.createNamedQuery(QUERY_2ND_LEVEL_BY_RUNID_TRANSFORMERID_SCHEMA_ID)
+                  .setParameter(1, run.id).setParameter(2, transformerId)
+                  .setParameter(3, type == SchemaDAO.TYPE_2ND_LEVEL ? key : Integer.parseInt(key))
+                  .setParameter(4, source)
+                  .unwrap(NativeQuery.class)
+                  .addScalar("name", StandardBasicTypes.TEXT)
+                  .addScalar("value", JsonBinaryType.INSTANCE)
+                  .getResultList());
+         }
+      } catch (PersistenceException e) {
+         logMessage(run, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+         findFailingExtractor(run.id);
+         return Collections.emptyList();
+      }
+   }
+
+   /**
+    * Evaluates the transformer functions, in parallel when configured. Messages for the transformation log
+    * are kept in the evaluations because these can be persisted only from the transaction's thread.
+    */
+   private void evaluateTransformers(List<TransformerEvaluation> evaluations) {
+      if (transformerExecutor == null || evaluations.stream().filter(TransformerEvaluation::hasFunction).count() < 2) {
+         evaluations.forEach(TransformerEvaluation::evaluate);
+         return;
+      }
+      List<CompletableFuture<Void>> futures = new ArrayList<>(evaluations.size());
+      for (int i = 1; i < evaluations.size(); ++i) {
+         futures.add(CompletableFuture.runAsync(evaluations.get(i)::evaluate, transformerExecutor));
+      }
+      // this thread would be waiting anyway
+      evaluations.get(0).evaluate();
+      try {
+         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof RuntimeException re) {
+            throw re;
+         }
+         throw e;
+      }
+   }
+
+   private static final class TransformerEvaluation {
+      private final TransformerDAO transformer;
+      private final String name;
+      private final String function;
+      private final JsFunctionStats.Key statsKey;
+      private final String uri;
+      private final JsonNode input;
+      private final List<Object[]> messages = new ArrayList<>();
+      private JsonNode result;
+
+      private TransformerEvaluation(TransformerDAO transformer, int testId, String uri, JsonNode input) {
+         this.transformer = transformer;
+         this.name = transformer.name;
+         this.function = transformer.function;
+         this.statsKey = JsFunctionStats.Key.transformer(transformer.id, testId);
+         this.uri = uri;
+         this.input = input;
+      }
+
+      private boolean hasFunction() {
+         return function != null && !function.isBlank();
+      }
+
+      private void log(int level, String format, Object... args) {
+         synchronized (messages) {
+            messages.add(new Object[] { level, args.length > 0 ? String.format(format, args) : format });
+         }
+      }
+
+      private void evaluate() {
+         if (hasFunction()) {
+            JsonNode result = Util.evaluateToJson(function, input, statsKey,
+                  (code, e) -> log(PersistentLogDAO.ERROR,
+                        "Evaluation of transformer %s/%s failed: '%s' Code: <pre>%s</pre>", uri, name, e.getMessage(), code),
+                  output -> log(PersistentLogDAO.DEBUG, "Output while running transformer %s/%s: <pre>%s</pre>", uri, name, output));
+            // null result happens upon error
+            this.result = result == null ? JsonNodeFactory.instance.nullNode() : result;
+         } else {
+            this.result = input;
+         }
+      }
+
+      private void flushLog(RunServiceImpl service, RunDAO run) {
+         synchronized (messages) {
+            for (Object[] message : messages) {
+               service.logMessage(run, (int) message[0], "%s", message[1]);
+            }
+            messages.clear();
+         }
+      }
+   }
+
+   private record TransformerTarget(int type, String key, Integer source, int transformerId) {}
+
+   /**
+    * Runs the extractors of all transformers applicable to this run in a single query, grouping the results
+    * (extractor name and value) by the schema occurrence and transformer they belong to.
+    */
+   private Map<TransformerTarget, List<Object[]>> extractForAllTransformers(RunDAO run, List<Object[]> relevantSchemas) {
+      if (prefetchTransformers(relevantSchemas).isEmpty()) {
+         return Collections.emptyMap();
+      }
+      List<Object[]> rows;
+      try {
+         rows = unchecked(em.createNamedQuery(QUERY_ALL_EXTRACTORS_BY_RUNID)
+               .setParameter(1, run.id)
+               .unwrap(NativeQuery.class)
+               .addScalar("type", StandardBasicTypes.INTEGER)
+               .addScalar("key", StandardBasicTypes.TEXT)
+               .addScalar("source", StandardBasicTypes.INTEGER)
+               .addScalar("transformer_id", StandardBasicTypes.INTEGER)
+               .addScalar("name", StandardBasicTypes.TEXT)
+               .addScalar("value", JsonBinaryType.INSTANCE)
+               .getResultList());
+      } catch (PersistenceException e) {
+         logMessage(run, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+         findFailingExtractor(run.id);
+         return Collections.emptyMap();
+      }
+      Map<TransformerTarget, List<Object[]>> extracted = new HashMap<>();
+      for (Object[] row : rows) {
+         TransformerTarget target = new TransformerTarget((int) row[0], (String) row[1], (Integer) row[2], (int) row[3]);
+         extracted.computeIfAbsent(target, t -> new ArrayList<>()).add(new Object[] { row[4], row[5] });
+      }
+      return extracted;
+   }
+
+   /**
+    * Loads all transformers with their extractors at once; the transformation then finds these in the persistence context.
+    */
+   private List<TransformerDAO> prefetchTransformers(List<Object[]> relevantSchemas) {
+      Set<Integer> transformerIds = relevantSchemas.stream().map(row -> (Integer) row[2]).filter(Objects::nonNull).collect(Collectors.toSet());
+      if (transformerIds.isEmpty()) {
+         return Collections.emptyList();
+      }
+      return em.createQuery("SELECT DISTINCT t FROM Transformer t LEFT JOIN FETCH t.extractors WHERE t.id IN ?1", TransformerDAO.class)
+            .setParameter(1, transformerIds).getResultList();
+   }
+
+   /**
+    * Evaluates extractors of all transformers in the application, producing the same results as
+    * {@link #extractForAllTransformers(RunDAO, List)}. Returns <code>null</code> when some of the JSONPaths
+    * have to be evaluated by the database.
+    */
+   private Map<TransformerTarget, List<Object[]>> extractInJvm(RunDAO run, JsonNode data, List<Object[]> relevantSchemas) {
+      for (TransformerDAO t : prefetchTransformers(relevantSchemas)) {
+         for (ExtractorDAO extractor : t.extractors) {
+            try {
+               SqlJsonPath.compile(extractor.jsonpath);
+            } catch (IllegalArgumentException e) {
+               log.debugf("Data of run %d will be extracted by the database: %s", run.id, e.getMessage());
+               return null;
+            }
+         }
+      }
+      Map<TransformerTarget, List<Object[]>> extracted = new HashMap<>();
+      for (Object[] relevantSchema : relevantSchemas) {
+         int type = (int) relevantSchema[0];
+         String key = (String) relevantSchema[1];
+         Integer transformerId = (Integer) relevantSchema[2];
+         Integer source = (Integer) relevantSchema[4];
+         TransformerDAO t = transformerId == null ? null : TransformerDAO.findById(transformerId);
+         if (t == null || t.extractors == null) {
+            continue;
+         }
+         JsonNode root = extractionRoot(data, run.metadata, type, key, source);
+         List<Object[]> values = new ArrayList<>(t.extractors.size());
+         for (ExtractorDAO extractor : t.extractors) {
+            try {
+               values.add(new Object[] { extractor.name, SqlJsonPath.compile(extractor.jsonpath).query(root, extractor.isArray) });
+            } catch (IllegalArgumentException e) {
+               logMessage(run, PersistentLogDAO.ERROR, "There seems to be an error in schema <code>%s</code> transformer <code>%s</code>, extractor <code>%s</code>, JSONPath expression <code>%s</code>: %s",
+                     relevantSchema[3], t.name, extractor.name, extractor.jsonpath, e.getMessage());
+               return Collections.emptyMap();
+            }
+         }
+         extracted.put(new TransformerTarget(type, key, source, transformerId), values);
+      }
+      return extracted;
+   }
+
+   /**
+    * Part of the run the extractors are applied to, the same as in {@link SchemaDAO#QUERY_ALL_EXTRACTORS_BY_RUNID}.
+    */
+   static JsonNode extractionRoot(JsonNode data, JsonNode metadata, int type, String key, Integer source) {
+      if (type == SchemaDAO.TYPE_1ST_LEVEL) {
+         return data;
+      }
+      JsonNode document = source != null && source == 0 ? data : metadata;
+      if (document == null) {
+         return null;
+      } else if (type == SchemaDAO.TYPE_2ND_LEVEL) {
+         return document.isObject() ? document.get(key) : null;
+      } else if (!document.isArray()) {
+         return null;
+      }
+      // like the -> operator negative index counts from the end
+      int index = Integer.parseInt(key);
+      return document.get(index < 0 ? index + document.size() : index);
+   }
+
    private String limitLength(String str) {
       return str.length() > 1024 ? str.substring(0, 1024) + "...(truncated)" : str;
    }
@@ -1422,11 +2257,6 @@ public class RunServiceImpl implements RunService {
       }
    }
 
-   class Recalculate {
-      private int runId;
-      private int testId;
-   }
-
    class RunFromUri {
       private int id;
       private int testId;
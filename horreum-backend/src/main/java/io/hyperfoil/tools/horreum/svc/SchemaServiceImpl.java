@@ -39,6 +39,7 @@ import io.hyperfoil.tools.horreum.mapper.LabelMapper;
 import io.hyperfoil.tools.horreum.mapper.SchemaMapper;
 import io.hyperfoil.tools.horreum.mapper.TransformerMapper;
 import io.hyperfoil.tools.horreum.mapper.ValidationErrorMapper;
+import io.hyperfoil.tools.horreum.payload.PayloadStorage;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
 import io.quarkus.hibernate.orm.panache.PanacheQuery;
@@ -65,6 +66,7 @@ import org.hibernate.type.StandardBasicTypes;
 import org.jboss.logging.Logger;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -117,6 +119,9 @@ public class SchemaServiceImpl implements SchemaService {
 
    @Inject
    BlockingTaskDispatcher messageBus;
+
+   @Inject
+   PayloadStorage payloadStorage;
    @Inject
    Session session;
 
@@ -330,7 +335,14 @@ public class SchemaServiceImpl implements SchemaService {
          run.validationErrors.removeIf(e -> schemaFilter == null || schemaFilter.test(e.schema.uri));
       if (run.validationErrors == null)
          run.validationErrors = new ArrayList<>();
-      validateData(run.data, schemaFilter, run.validationErrors);
+      JsonNode data;
+      try {
+         data = payloadStorage.data(run);
+      } catch (IOException e) {
+         log.errorf(e, "Cannot load data of run %d for schema validation", runId);
+         return;
+      }
+      validateData(data, schemaFilter, run.validationErrors);
       if (run.metadata != null) {
          validateData(run.metadata, schemaFilter, run.validationErrors);
       }
@@ -602,6 +614,7 @@ public class SchemaServiceImpl implements SchemaService {
          throw ServiceException.badRequest("Transformer must have a name!");
       }
       validateExtractors(transformerDTO.extractors);
+      validateBuiltinFunction(transformerDTO.function);
       TransformerDAO transformer = TransformerMapper.to(transformerDTO);
       if (transformer.id == null || transformer.id < 0) {
          transformer.id = null;
@@ -639,6 +652,14 @@ public class SchemaServiceImpl implements SchemaService {
       }
    }
 
+   private void validateBuiltinFunction(String function) {
+      try {
+         BuiltinFunction.parse(function);
+      } catch (IllegalArgumentException e) {
+         throw ServiceException.badRequest(e.getMessage());
+      }
+   }
+
    @RolesAllowed(Roles.TESTER)
    @WithRoles
    @Transactional
@@ -690,6 +711,7 @@ public class SchemaServiceImpl implements SchemaService {
          throw ServiceException.badRequest("Label must have a non-blank name");
       }
       validateExtractors(labelDTO.extractors);
+      validateBuiltinFunction(labelDTO.function);
 
       LabelDAO label = LabelMapper.to(labelDTO);
       if (label.id == null || label.id < 0) {
@@ -722,7 +744,6 @@ public class SchemaServiceImpl implements SchemaService {
          em.createNativeQuery("DELETE FROM label_values WHERE label_id = ?1").setParameter(1, existing.id).executeUpdate();
          existing.extractors.clear();
          existing.extractors.addAll(label.extractors);
-
          existing.function = label.function;
          existing.owner = label.owner;
          existing.access = label.access;
@@ -26,4 +26,12 @@ public class ServiceException extends WebApplicationException {
       super(message, Response.status(status)
            .header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).entity(message).build());
    }
+
+   /**
+    * @param entity structured description of the error, sent as JSON.
+    */
+   public ServiceException(Response.Status status, String message, Object entity) {
+      super(message, Response.status(status)
+           .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON).entity(entity).build());
+   }
 }
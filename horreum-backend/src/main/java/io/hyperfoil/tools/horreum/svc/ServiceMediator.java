@@ -11,8 +11,10 @@ import io.hyperfoil.tools.horreum.api.services.ExperimentService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
 import io.hyperfoil.tools.horreum.entity.data.ActionDAO;
 import io.hyperfoil.tools.horreum.events.DatasetChanges;
+import io.micrometer.core.instrument.Metrics;
 import io.smallrye.reactive.messaging.annotations.Blocking;
 import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.context.control.ActivateRequestContext;
 import jakarta.inject.Inject;
@@ -25,6 +27,7 @@ import org.eclipse.microprofile.reactive.messaging.OnOverflow;
 import org.jboss.logging.Logger;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -76,6 +79,9 @@ public class ServiceMediator {
     @ConfigProperty(name = "horreum.test-mode", defaultValue = "false")
     private Boolean testMode;
 
+    @ConfigProperty(name = "horreum.dataset.delete-batch-size", defaultValue = "1000")
+    int datasetDeleteBatchSize;
+
     @OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
     @Channel("dataset-event-out")
     Emitter<Dataset.EventNew> dataSetEmitter;
@@ -84,15 +90,38 @@ public class ServiceMediator {
     @Channel("run-recalc-out")
     Emitter<Integer> runEmitter;
 
+    @OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
+    @Channel("run-recalc-background-out")
+    Emitter<Integer> backgroundRunEmitter;
+
     @OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
     @Channel("schema-sync-out")
     Emitter<Integer> schemaEmitter;
 
+    // number of background tasks running on this node while live work is being processed
+    @ConfigProperty(name = "horreum.processing.background.throttled-concurrency", defaultValue = "1")
+    int backgroundThrottledConcurrency;
+
     private Map<AsyncEventChannels, Map<Integer, BlockingQueue<Object>>> events =  new ConcurrentHashMap<>();
 
+    private ProcessingLane liveRuns;
+    private ProcessingLane backgroundRuns;
+    private ProcessingLane backgroundDatasets;
+    private ProcessingLane backgroundSchemas;
+    private BackgroundThrottle backgroundThrottle;
+
     public ServiceMediator() {
     }
 
+    @PostConstruct
+    void init() {
+        liveRuns = new ProcessingLane("live", "run-recalc", Metrics.globalRegistry);
+        backgroundRuns = new ProcessingLane("background", "run-recalc-background", Metrics.globalRegistry);
+        backgroundDatasets = new ProcessingLane("background", "dataset-event", Metrics.globalRegistry);
+        backgroundSchemas = new ProcessingLane("background", "schema-sync", Metrics.globalRegistry);
+        backgroundThrottle = new BackgroundThrottle(liveRuns, backgroundThrottledConcurrency);
+    }
+
     void executeBlocking(Runnable runnable) {
         Util.executeBlocking(vertx, runnable);
     }
@@ -107,7 +136,7 @@ public class ServiceMediator {
 
     @Transactional
     void deleteTest(int testId) {
-        // runService will call mediator.propagatedDatasetDelete which needs
+        // runService will call mediator.propagatedDatasetsDelete which needs
         // to be completed before we call the other services
         runService.onTestDeleted(testId);
         actionService.onTestDelete(testId);
@@ -116,6 +145,7 @@ public class ServiceMediator {
         logService.onTestDelete(testId);
         reportService.onTestDelete(testId);
         subscriptionService.onTestDelete(testId);
+        JsFunctionStats.onTestDeleted(testId);
     }
 
     @Transactional
@@ -124,11 +154,18 @@ public class ServiceMediator {
         alertingService.removeExpected(run);
     }
 
+    /**
+     * Deletes the datasets with everything that references them; each batch of datasets is removed with
+     * a single statement per table rather than with statements for each dataset.
+     */
     @Transactional
-    void propagatedDatasetDelete(int datasetId) {
-        //make sure to delete the entities that has a reference on dataset first
-        alertingService.onDatasetDeleted(datasetId);
-        datasetService.deleteDataset(datasetId);
+    void propagatedDatasetsDelete(List<Integer> datasetIds) {
+        for (int from = 0; from < datasetIds.size(); from += datasetDeleteBatchSize) {
+            List<Integer> batch = datasetIds.subList(from, Math.min(from + datasetDeleteBatchSize, datasetIds.size()));
+            //make sure to delete the entities that has a reference on dataset first
+            alertingService.onDatasetsDeleted(batch);
+            datasetService.deleteDatasets(batch);
+        }
     }
 
     @Transactional
@@ -151,38 +188,83 @@ public class ServiceMediator {
     @Blocking(ordered = false, value = "horreum.dataset.pool")
     @ActivateRequestContext
     public void processDatasetEvents(Dataset.EventNew newEvent) {
-        datasetService.onNewDatasetNoLock(newEvent);
-        validateDataset(newEvent.datasetId);
+        runInBackground(() -> backgroundDatasets.process(() -> {
+            datasetService.onNewDatasetNoLock(newEvent);
+            validateDataset(newEvent.datasetId);
+        }));
     }
 
     @Transactional(Transactional.TxType.NOT_SUPPORTED)
     void queueDatasetEvents(Dataset.EventNew event) {
+        backgroundDatasets.queued();
         dataSetEmitter.send(event);
     }
+
+    /**
+     * Transforms runs uploaded asynchronously.
+     */
     @Incoming("run-recalc-in")
     @Blocking(ordered = false, value = "horreum.run.pool")
     @ActivateRequestContext
     public void processRunRecalculation(int runId) {
-        runService.transform(runId, true);
+        liveRuns.process(() -> runService.transformQueued(runId));
     }
 
     @Transactional(Transactional.TxType.NOT_SUPPORTED)
     void queueRunRecalculation(int runId) {
+        liveRuns.queued();
         runEmitter.send(runId);
     }
 
+    /**
+     * Transforms runs again after schema changes or in bulk recalculations.
+     */
+    @Incoming("run-recalc-background-in")
+    @Blocking(ordered = false, value = "horreum.run.background.pool")
+    @ActivateRequestContext
+    public void processBackgroundRunRecalculation(int runId) {
+        try {
+            runInBackground(() -> backgroundRuns.process(() -> runService.transformQueued(runId)));
+        } catch (RuntimeException e) {
+            // don't let a failing run hold back recalculation of the other runs
+            runService.clearPendingRecalculation(runId);
+            throw e;
+        }
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    void queueBackgroundRunRecalculation(int runId) {
+        backgroundRuns.queued();
+        backgroundRunEmitter.send(runId);
+    }
+
     @Incoming("schema-sync-in")
     @Blocking(ordered = false, value = "horreum.schema.pool")
     @ActivateRequestContext
     public void processSchemaSync(int schemaId) {
-        runService.onNewOrUpdatedSchema(schemaId);
+        runInBackground(() -> backgroundSchemas.process(() -> runService.onNewOrUpdatedSchema(schemaId)));
     }
 
     @Transactional(Transactional.TxType.NOT_SUPPORTED)
     void queueSchemaSync(int schemaId) {
+        backgroundSchemas.queued();
         schemaEmitter.send(schemaId);
     }
 
+    /**
+     * Runs background work, limiting its concurrency while runs uploaded to this node are processed.
+     */
+    void runInBackground(Runnable work) {
+        backgroundThrottle.run(work);
+    }
+
+    /**
+     * Transformation of a run uploaded synchronously; it's live work, too, even if it did not go through the channel.
+     */
+    void processLive(Runnable work) {
+        liveRuns.track(work);
+    }
+
     void dataPointsProcessed(DataPoint.DatasetProcessedEvent event) {
         experimentService.onDatapointsCreated(event);
     }
@@ -196,8 +278,8 @@ public class ServiceMediator {
     int transform(int runId, boolean isRecalculation) {
         return runService.transform(runId, isRecalculation);
     }
-    void withRecalculationLock(Runnable run) {
-        datasetService.withRecalculationLock(run);
+    void withRecalculationLock(int testId, Runnable run) {
+        datasetService.withRecalculationLock(testId, run);
     }
     void newExperimentResult(ExperimentService.ExperimentResult result) {
         actionService.onNewExperimentResult(result);
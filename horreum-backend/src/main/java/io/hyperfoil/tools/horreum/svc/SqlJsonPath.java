@@ -0,0 +1,1287 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.DecimalNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Evaluates SQL/JSON path expressions used by extractors the way PostgreSQL <code>jsonb_path_query_first</code>
+ * and <code>jsonb_path_query_array</code> do, so that values can be extracted from documents already loaded
+ * in the application rather than in the database. Both <code>lax</code> (default) and <code>strict</code>
+ * modes are supported, including the automatic unwrapping of arrays, filters, <code>like_regex</code>,
+ * <code>starts with</code>, <code>exists</code>, arithmetic and the <code>type()</code>, <code>size()</code>,
+ * <code>double()</code>, <code>abs()</code>, <code>floor()</code> and <code>ceiling()</code> methods.
+ * <p>
+ * Paths using features that are not implemented here (variables, division, <code>keyvalue()</code>, datetime
+ * and other methods, POSIX character classes in regular expressions) are rejected by {@link #compile(String)};
+ * the caller is expected to let the database evaluate these.
+ */
+final class SqlJsonPath {
+   private static final JsonNodeFactory JSON = JsonNodeFactory.instance;
+   private static final Map<String, SqlJsonPath> cache = new ConcurrentHashMap<>();
+   private static final int MAX_CACHED = 10000;
+   private static final Pattern DOUBLE_PATTERN = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+   private static final Pattern NAN_OR_INFINITY_PATTERN = Pattern.compile("(?i)[+-]?(nan|inf|infinity)");
+   private static final String SPECIAL_CHARS = "?%$.[]{}()|&!=<>@#,*:-+/\\\"";
+   // jsonb keeps object keys ordered by length first and then bytewise
+   private static final Comparator<String> JSONB_KEY_ORDER = Comparator.comparingInt((String key) -> key.getBytes(StandardCharsets.UTF_8).length)
+         .thenComparing(SqlJsonPath::compareCodePoints);
+
+   enum Engine {
+      /** Extractors are evaluated by PostgreSQL. */
+      POSTGRES,
+      /** Extractors are evaluated in the application, falling back to PostgreSQL for unsupported expressions. */
+      JVM,
+   }
+
+   private final String path;
+   private final boolean lax;
+   private final Expr expr;
+   private final String unsupported;
+
+   private SqlJsonPath(String path, boolean lax, Expr expr, String unsupported) {
+      this.path = path;
+      this.lax = lax;
+      this.expr = expr;
+      this.unsupported = unsupported;
+   }
+
+   /**
+    * @throws IllegalArgumentException when the path is invalid or uses features this implementation does not support.
+    */
+   static SqlJsonPath compile(String path) {
+      if (path == null) {
+         throw new IllegalArgumentException("No JSONPath");
+      }
+      SqlJsonPath compiled = cache.get(path);
+      if (compiled == null) {
+         try {
+            compiled = new Parser(path).parse();
+         } catch (IllegalArgumentException e) {
+            compiled = new SqlJsonPath(path, true, null, e.getMessage());
+         }
+         if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+         }
+         cache.put(path, compiled);
+      }
+      if (compiled.unsupported != null) {
+         throw new IllegalArgumentException(compiled.unsupported);
+      }
+      return compiled;
+   }
+
+   /**
+    * Equivalent of <code>jsonb_path_query_array</code> when <code>array</code> is true, otherwise of
+    * <code>jsonb_path_query_first</code>. Returns <code>null</code> where the database returns SQL NULL.
+    *
+    * @throws IllegalArgumentException on errors that the database would report.
+    */
+   JsonNode query(JsonNode document, boolean array) {
+      return array ? queryArray(document) : queryFirst(document);
+   }
+
+   JsonNode queryFirst(JsonNode document) {
+      if (document == null) {
+         return null;
+      }
+      List<JsonNode> results = evaluate(document);
+      return results.isEmpty() ? null : copy(results.get(0));
+   }
+
+   ArrayNode queryArray(JsonNode document) {
+      if (document == null) {
+         return null;
+      }
+      List<JsonNode> results = evaluate(document);
+      ArrayNode array = JSON.arrayNode(results.size());
+      // results can be part of the document; copy these so that the caller can modify the result
+      results.forEach(node -> array.add(copy(node)));
+      return array;
+   }
+
+   private List<JsonNode> evaluate(JsonNode document) {
+      List<JsonNode> results = new ArrayList<>();
+      expr.eval(new Ctx(document, lax, lax, -1), document, results::add);
+      return results;
+   }
+
+   /** Copies the node with object keys in the same order as if the result was read from the database. */
+   private static JsonNode copy(JsonNode node) {
+      if (node.isObject()) {
+         ObjectNode object = JSON.objectNode();
+         for (String key : jsonbKeys(node)) {
+            object.set(key, copy(node.get(key)));
+         }
+         return object;
+      } else if (node.isArray()) {
+         ArrayNode array = JSON.arrayNode(node.size());
+         node.forEach(element -> array.add(copy(element)));
+         return array;
+      } else if (node.isBigDecimal()) {
+         return databaseNumber(node.decimalValue());
+      }
+      return node;
+   }
+
+   /**
+    * Renders the value the same way as the <code>#>>'{}'</code> operator does: strings without quotes,
+    * other values as jsonb text.
+    */
+   static String toText(JsonNode node) {
+      if (node == null) {
+         return null;
+      } else if (node.isTextual()) {
+         return node.textValue();
+      }
+      StringBuilder sb = new StringBuilder();
+      appendJsonb(sb, node);
+      return sb.toString();
+   }
+
+   private static void appendJsonb(StringBuilder sb, JsonNode node) {
+      if (node.isObject()) {
+         sb.append('{');
+         boolean first = true;
+         for (String key : jsonbKeys(node)) {
+            if (!first) {
+               sb.append(", ");
+            }
+            first = false;
+            appendString(sb, key);
+            sb.append(": ");
+            appendJsonb(sb, node.get(key));
+         }
+         sb.append('}');
+      } else if (node.isArray()) {
+         sb.append('[');
+         for (int i = 0; i < node.size(); ++i) {
+            if (i > 0) {
+               sb.append(", ");
+            }
+            appendJsonb(sb, node.get(i));
+         }
+         sb.append(']');
+      } else if (node.isTextual()) {
+         appendString(sb, node.textValue());
+      } else if (node.isFloatingPointNumber()) {
+         sb.append(node.decimalValue().toPlainString());
+      } else {
+         sb.append(node.asText());
+      }
+   }
+
+   private static void appendString(StringBuilder sb, String str) {
+      sb.append('"');
+      for (int i = 0; i < str.length(); ++i) {
+         char c = str.charAt(i);
+         switch (c) {
+            case '"' -> sb.append("\\\"");
+            case '\\' -> sb.append("\\\\");
+            case '\b' -> sb.append("\\b");
+            case '\f' -> sb.append("\\f");
+            case '\n' -> sb.append("\\n");
+            case '\r' -> sb.append("\\r");
+            case '\t' -> sb.append("\\t");
+            default -> {
+               if (c < ' ') {
+                  sb.append(String.format("\\u%04x", (int) c));
+               } else {
+                  sb.append(c);
+               }
+            }
+         }
+      }
+      sb.append('"');
+   }
+
+   private static List<String> jsonbKeys(JsonNode object) {
+      List<String> keys = new ArrayList<>(object.size());
+      object.fieldNames().forEachRemaining(keys::add);
+      keys.sort(JSONB_KEY_ORDER);
+      return keys;
+   }
+
+   private static int compareCodePoints(String a, String b) {
+      int i = 0, j = 0;
+      while (i < a.length() && j < b.length()) {
+         int ca = a.codePointAt(i);
+         int cb = b.codePointAt(j);
+         if (ca != cb) {
+            return Integer.compare(ca, cb);
+         }
+         i += Character.charCount(ca);
+         j += Character.charCount(cb);
+      }
+      return Integer.compare(a.length() - i, b.length() - j);
+   }
+
+   @Override
+   public String toString() {
+      return path;
+   }
+
+   // ---------------------------------------------------------------------------------------------------------------
+   // Evaluation
+   // ---------------------------------------------------------------------------------------------------------------
+
+   /**
+    * @param lax automatic wrapping and unwrapping of arrays
+    * @param ignoreStructural structural errors (missing keys, wrong types) do not produce an error
+    * @param last index of the last element while evaluating array subscripts
+    */
+   private record Ctx(JsonNode root, boolean lax, boolean ignoreStructural, int last) {
+      Ctx withLast(int last) {
+         return new Ctx(root, lax, ignoreStructural, last);
+      }
+
+      Ctx ignoringStructuralErrors() {
+         return ignoreStructural ? this : new Ctx(root, lax, true, last);
+      }
+
+      void structuralError(String message) {
+         if (!ignoreStructural) {
+            throw new IllegalArgumentException(message);
+         }
+      }
+   }
+
+   private enum Tri {
+      TRUE,
+      FALSE,
+      UNKNOWN;
+
+      static Tri of(boolean value) {
+         return value ? TRUE : FALSE;
+      }
+   }
+
+   private interface Expr {
+      void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out);
+   }
+
+   private interface Pred extends Expr {
+      Tri test(Ctx ctx, JsonNode current);
+
+      @Override
+      default void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         // predicate check expressions return the result as JSON
+         switch (test(ctx, current)) {
+            case TRUE -> out.accept(JSON.booleanNode(true));
+            case FALSE -> out.accept(JSON.booleanNode(false));
+            case UNKNOWN -> out.accept(JSON.nullNode());
+         }
+      }
+   }
+
+   private interface Continuation {
+      void accept(Ctx ctx, JsonNode item);
+   }
+
+   private interface Accessor {
+      void apply(Ctx ctx, JsonNode item, Continuation next);
+
+      /** In lax mode arrays are unwrapped and the accessor is applied to their elements. */
+      default boolean unwrapsArrays() {
+         return false;
+      }
+   }
+
+   private record Literal(JsonNode value) implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         out.accept(value);
+      }
+   }
+
+   private record Root() implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         out.accept(ctx.root);
+      }
+   }
+
+   private record Current() implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         out.accept(current);
+      }
+   }
+
+   private record Last() implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         out.accept(JSON.numberNode(ctx.last));
+      }
+   }
+
+   private record Chain(Expr base, Accessor[] accessors) implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         base.eval(ctx, current, item -> apply(ctx, 0, item, out));
+      }
+
+      private void apply(Ctx ctx, int index, JsonNode item, Consumer<JsonNode> out) {
+         if (index == accessors.length) {
+            out.accept(item);
+            return;
+         }
+         Accessor accessor = accessors[index];
+         Continuation next = (nextCtx, nextItem) -> apply(nextCtx, index + 1, nextItem, out);
+         if (ctx.lax && item.isArray() && accessor.unwrapsArrays()) {
+            for (JsonNode element : item) {
+               accessor.apply(ctx, element, next);
+            }
+         } else {
+            accessor.apply(ctx, item, next);
+         }
+      }
+   }
+
+   private record Member(String name) implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         if (item.isObject()) {
+            JsonNode value = item.get(name);
+            if (value != null) {
+               next.accept(ctx, value);
+            } else {
+               ctx.structuralError("JSON object does not contain key \"" + name + "\"");
+            }
+         } else {
+            ctx.structuralError("jsonpath member accessor can only be applied to an object");
+         }
+      }
+
+      @Override
+      public boolean unwrapsArrays() {
+         return true;
+      }
+   }
+
+   private record AnyMember() implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         if (item.isObject()) {
+            for (String key : jsonbKeys(item)) {
+               next.accept(ctx, item.get(key));
+            }
+         } else {
+            ctx.structuralError("jsonpath wildcard member accessor can only be applied to an object");
+         }
+      }
+
+      @Override
+      public boolean unwrapsArrays() {
+         return true;
+      }
+   }
+
+   private record AnyElement() implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         if (item.isArray()) {
+            for (JsonNode element : item) {
+               next.accept(ctx, element);
+            }
+         } else if (ctx.lax) {
+            next.accept(ctx, item);
+         } else {
+            ctx.structuralError("jsonpath wildcard array accessor can only be applied to an array");
+         }
+      }
+   }
+
+   private record Subscript(Expr from, Expr to) {}
+
+   private record Elements(Subscript[] subscripts) implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         boolean singleton = !item.isArray();
+         if (singleton && !ctx.lax) {
+            ctx.structuralError("jsonpath array accessor can only be applied to an array");
+            return;
+         }
+         int size = singleton ? 1 : item.size();
+         Ctx indexCtx = ctx.withLast(size - 1);
+         for (Subscript subscript : subscripts) {
+            int from = index(indexCtx, subscript.from, item);
+            int to = subscript.to == null ? from : index(indexCtx, subscript.to, item);
+            if (from < 0 || from > to || to >= size) {
+               ctx.structuralError("jsonpath array subscript is out of bounds");
+            }
+            from = Math.max(from, 0);
+            to = Math.min(to, size - 1);
+            for (int i = from; i <= to; ++i) {
+               next.accept(ctx, singleton ? item : item.get(i));
+            }
+         }
+      }
+
+      private static int index(Ctx ctx, Expr expr, JsonNode item) {
+         List<JsonNode> values = new ArrayList<>(1);
+         expr.eval(ctx, item, values::add);
+         if (values.size() != 1 || !values.get(0).isNumber()) {
+            throw new IllegalArgumentException("jsonpath array subscript is not a single numeric value");
+         }
+         BigDecimal index = values.get(0).decimalValue().setScale(0, RoundingMode.DOWN);
+         try {
+            return index.intValueExact();
+         } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("jsonpath array subscript is out of integer range");
+         }
+      }
+   }
+
+   /** <code>.**{first to last}</code>; {@link Integer#MAX_VALUE} stands for <code>last</code> */
+   private record Recursive(int first, int last) implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         Ctx anyCtx = ctx.ignoringStructuralErrors();
+         if (first == 0) {
+            next.accept(anyCtx, item);
+         }
+         descend(anyCtx, item, 1, next);
+      }
+
+      private void descend(Ctx ctx, JsonNode item, int level, Continuation next) {
+         Iterator<JsonNode> children;
+         if (item.isObject()) {
+            children = jsonbKeys(item).stream().map(item::get).iterator();
+         } else if (item.isArray()) {
+            children = item.elements();
+         } else {
+            return;
+         }
+         while (children.hasNext()) {
+            JsonNode child = children.next();
+            boolean leavesOnly = first == Integer.MAX_VALUE && last == Integer.MAX_VALUE;
+            if (level >= first || (leavesOnly && !child.isContainerNode())) {
+               next.accept(ctx, child);
+            }
+            if (level < last && child.isContainerNode()) {
+               descend(ctx, child, level + 1, next);
+            }
+         }
+      }
+   }
+
+   private record Filter(Pred predicate) implements Accessor {
+      @Override
+      public void apply(Ctx ctx, JsonNode item, Continuation next) {
+         if (predicate.test(ctx, item) == Tri.TRUE) {
+            next.accept(ctx, item);
+         }
+      }
+
+      @Override
+      public boolean unwrapsArrays() {
+         return true;
+      }
+   }
+
+   private enum Method implements Accessor {
+      TYPE(false) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            String type = switch (item.getNodeType()) {
+               case OBJECT -> "object";
+               case ARRAY -> "array";
+               case STRING -> "string";
+               case NUMBER -> "number";
+               case BOOLEAN -> "boolean";
+               case NULL -> "null";
+               default -> throw new IllegalArgumentException("Unexpected JSON value " + item);
+            };
+            next.accept(ctx, JSON.textNode(type));
+         }
+      },
+      SIZE(false) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            if (item.isArray()) {
+               next.accept(ctx, JSON.numberNode(item.size()));
+            } else if (ctx.lax) {
+               next.accept(ctx, JSON.numberNode(1));
+            } else {
+               ctx.structuralError("jsonpath item method .size() can only be applied to an array");
+            }
+         }
+      },
+      DOUBLE(true) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            double value;
+            if (item.isNumber()) {
+               value = item.doubleValue();
+            } else if (item.isTextual()) {
+               String str = item.textValue().strip();
+               if (DOUBLE_PATTERN.matcher(str).matches()) {
+                  value = Double.parseDouble(str);
+               } else if (NAN_OR_INFINITY_PATTERN.matcher(str).matches()) {
+                  value = Double.NaN;
+               } else {
+                  throw new IllegalArgumentException("string argument of jsonpath item method .double() is not a valid representation of a double precision number");
+               }
+            } else {
+               throw new IllegalArgumentException("jsonpath item method .double() can only be applied to a string or numeric value");
+            }
+            if (!Double.isFinite(value)) {
+               throw new IllegalArgumentException("NaN or Infinity is not allowed for jsonpath item method .double()");
+            }
+            // same as conversion of float8 to numeric: 15 significant digits
+            next.accept(ctx, numberNode(new BigDecimal(value).round(new MathContext(15)).stripTrailingZeros()));
+         }
+      },
+      ABS(true) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            next.accept(ctx, numberNode(numeric(item, "abs").abs()));
+         }
+      },
+      FLOOR(true) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            next.accept(ctx, numberNode(numeric(item, "floor").setScale(0, RoundingMode.FLOOR)));
+         }
+      },
+      CEILING(true) {
+         @Override
+         public void apply(Ctx ctx, JsonNode item, Continuation next) {
+            next.accept(ctx, numberNode(numeric(item, "ceiling").setScale(0, RoundingMode.CEILING)));
+         }
+      };
+
+      private final boolean unwrapsArrays;
+
+      Method(boolean unwrapsArrays) {
+         this.unwrapsArrays = unwrapsArrays;
+      }
+
+      @Override
+      public boolean unwrapsArrays() {
+         return unwrapsArrays;
+      }
+
+      private static BigDecimal numeric(JsonNode item, String method) {
+         if (!item.isNumber()) {
+            throw new IllegalArgumentException("jsonpath item method ." + method + "() can only be applied to a numeric value");
+         }
+         return decimal(item);
+      }
+   }
+
+   private enum ArithmeticOp {
+      ADD("+"),
+      SUBTRACT("-"),
+      MULTIPLY("*"),
+      MODULO("%");
+
+      private final String symbol;
+
+      ArithmeticOp(String symbol) {
+         this.symbol = symbol;
+      }
+
+      BigDecimal apply(BigDecimal a, BigDecimal b) {
+         return switch (this) {
+            case ADD -> a.add(b);
+            case SUBTRACT -> a.subtract(b);
+            case MULTIPLY -> a.multiply(b);
+            case MODULO -> {
+               if (b.signum() == 0) {
+                  throw new IllegalArgumentException("division by zero");
+               }
+               yield a.remainder(b);
+            }
+         };
+      }
+   }
+
+   private record Arithmetic(ArithmeticOp op, Expr left, Expr right) implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         BigDecimal l = single(ctx, left, current, "left");
+         BigDecimal r = single(ctx, right, current, "right");
+         out.accept(numberNode(op.apply(l, r)));
+      }
+
+      private BigDecimal single(Ctx ctx, Expr operand, JsonNode current, String side) {
+         List<JsonNode> values = sequence(ctx, operand, current);
+         if (values.size() != 1 || !values.get(0).isNumber()) {
+            throw new IllegalArgumentException(side + " operand of jsonpath operator " + op.symbol + " is not a single numeric value");
+         }
+         return decimal(values.get(0));
+      }
+   }
+
+   private record Negation(boolean negate, Expr operand) implements Expr {
+      @Override
+      public void eval(Ctx ctx, JsonNode current, Consumer<JsonNode> out) {
+         for (JsonNode value : sequence(ctx, operand, current)) {
+            if (!value.isNumber()) {
+               throw new IllegalArgumentException("operand of unary jsonpath operator " + (negate ? "-" : "+") + " is not a numeric value");
+            }
+            out.accept(negate ? numberNode(decimal(value).negate()) : value);
+         }
+      }
+   }
+
+   private enum CompareOp {
+      EQ,
+      NE,
+      LT,
+      LE,
+      GT,
+      GE;
+
+      Tri compare(JsonNode a, JsonNode b) {
+         if (a.getNodeType() != b.getNodeType()) {
+            if (a.isNull() || b.isNull()) {
+               // nulls are equal only to nulls but never unknown
+               return Tri.of(this == NE);
+            }
+            return Tri.UNKNOWN;
+         }
+         int cmp;
+         switch (a.getNodeType()) {
+            case NULL -> cmp = 0;
+            case BOOLEAN -> cmp = Boolean.compare(a.booleanValue(), b.booleanValue());
+            case NUMBER -> cmp = decimal(a).compareTo(decimal(b));
+            case STRING -> cmp = compareCodePoints(a.textValue(), b.textValue());
+            default -> {
+               return Tri.UNKNOWN;
+            }
+         }
+         return Tri.of(switch (this) {
+            case EQ -> cmp == 0;
+            case NE -> cmp != 0;
+            case LT -> cmp < 0;
+            case LE -> cmp <= 0;
+            case GT -> cmp > 0;
+            case GE -> cmp >= 0;
+         });
+      }
+   }
+
+   private interface ItemTest {
+      Tri test(JsonNode left, JsonNode right);
+   }
+
+   /**
+    * Evaluates the test for all combinations of items in both sequences; in lax mode any true result
+    * wins, in strict mode any error results in unknown.
+    */
+   private static Tri existential(Ctx ctx, JsonNode current, Expr left, Expr right, ItemTest test) {
+      List<JsonNode> ls, rs;
+      try {
+         ls = sequence(ctx, left, current);
+         rs = right == null ? null : sequence(ctx, right, current);
+      } catch (IllegalArgumentException e) {
+         return Tri.UNKNOWN;
+      }
+      boolean found = false;
+      boolean error = false;
+      for (JsonNode l : ls) {
+         for (JsonNode r : rs == null ? List.<JsonNode>of(JSON.nullNode()) : rs) {
+            Tri result = test.test(l, r);
+            if (result == Tri.UNKNOWN) {
+               if (!ctx.lax) {
+                  return Tri.UNKNOWN;
+               }
+               error = true;
+            } else if (result == Tri.TRUE) {
+               if (ctx.lax) {
+                  return Tri.TRUE;
+               }
+               found = true;
+            }
+         }
+      }
+      return found ? Tri.TRUE : error ? Tri.UNKNOWN : Tri.FALSE;
+   }
+
+   private record Comparison(CompareOp op, Expr left, Expr right) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         return existential(ctx, current, left, right, op::compare);
+      }
+   }
+
+   private record LikeRegex(Expr operand, Pattern pattern) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         return existential(ctx, current, operand, null,
+               (value, ignored) -> value.isTextual() ? Tri.of(pattern.matcher(value.textValue()).find()) : Tri.UNKNOWN);
+      }
+   }
+
+   private record StartsWith(Expr operand, String prefix) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         return existential(ctx, current, operand, null,
+               (value, ignored) -> value.isTextual() ? Tri.of(value.textValue().startsWith(prefix)) : Tri.UNKNOWN);
+      }
+   }
+
+   private record Exists(Expr expr) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         boolean[] found = new boolean[1];
+         try {
+            expr.eval(ctx, current, item -> found[0] = true);
+         } catch (IllegalArgumentException e) {
+            return Tri.UNKNOWN;
+         }
+         return Tri.of(found[0]);
+      }
+   }
+
+   private record And(Pred left, Pred right) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         Tri l = left.test(ctx, current);
+         if (l == Tri.FALSE) {
+            return Tri.FALSE;
+         }
+         Tri r = right.test(ctx, current);
+         return r == Tri.TRUE ? l : r;
+      }
+   }
+
+   private record Or(Pred left, Pred right) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         Tri l = left.test(ctx, current);
+         if (l == Tri.TRUE) {
+            return Tri.TRUE;
+         }
+         Tri r = right.test(ctx, current);
+         return r == Tri.FALSE ? l : r;
+      }
+   }
+
+   private record Not(Pred pred) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         return switch (pred.test(ctx, current)) {
+            case TRUE -> Tri.FALSE;
+            case FALSE -> Tri.TRUE;
+            case UNKNOWN -> Tri.UNKNOWN;
+         };
+      }
+   }
+
+   private record IsUnknown(Pred pred) implements Pred {
+      @Override
+      public Tri test(Ctx ctx, JsonNode current) {
+         return Tri.of(pred.test(ctx, current) == Tri.UNKNOWN);
+      }
+   }
+
+   /** Evaluates the expression; in lax mode arrays in the result are unwrapped. */
+   private static List<JsonNode> sequence(Ctx ctx, Expr expr, JsonNode current) {
+      List<JsonNode> values = new ArrayList<>();
+      expr.eval(ctx, current, item -> {
+         if (ctx.lax && item.isArray()) {
+            item.forEach(values::add);
+         } else {
+            values.add(item);
+         }
+      });
+      return values;
+   }
+
+   private static BigDecimal decimal(JsonNode number) {
+      BigDecimal value = number.decimalValue();
+      return value.scale() < 0 ? value.setScale(0) : value;
+   }
+
+   /** Computed numbers keep the exact value and scale, as numeric values in the database. */
+   private static JsonNode numberNode(BigDecimal value) {
+      return DecimalNode.valueOf(value.scale() < 0 ? value.setScale(0) : value);
+   }
+
+   /** Numbers in the results are represented the same way as when reading a numeric value from the database. */
+   private static JsonNode databaseNumber(BigDecimal value) {
+      if (value.scale() > 0) {
+         return JSON.numberNode(value.doubleValue());
+      }
+      BigInteger integer = value.toBigIntegerExact();
+      if (integer.bitLength() < 32) {
+         return JSON.numberNode(integer.intValue());
+      } else if (integer.bitLength() < 64) {
+         return JSON.numberNode(integer.longValue());
+      } else {
+         return JSON.numberNode(integer);
+      }
+   }
+
+   // ---------------------------------------------------------------------------------------------------------------
+   // Parsing
+   // ---------------------------------------------------------------------------------------------------------------
+
+   private static final class Parser {
+      private final String path;
+      private int pos;
+      private int filterDepth;
+      private int subscriptDepth;
+
+      Parser(String path) {
+         this.path = path;
+      }
+
+      SqlJsonPath parse() {
+         boolean lax = true;
+         skipWhitespace();
+         if (keyword("strict")) {
+            lax = false;
+         } else {
+            keyword("lax");
+         }
+         Expr expr = parseOr();
+         skipWhitespace();
+         if (pos < path.length()) {
+            throw error("syntax error at or near \"" + path.substring(pos) + "\"");
+         }
+         return new SqlJsonPath(path, lax, expr, null);
+      }
+
+      private IllegalArgumentException error(String message) {
+         return new IllegalArgumentException(message + " of jsonpath input: " + path);
+      }
+
+      private IllegalArgumentException unsupported(String feature) {
+         return new IllegalArgumentException(feature + " is not supported by the JSONPath evaluator in Horreum: " + path);
+      }
+
+      private void skipWhitespace() {
+         while (pos < path.length() && Character.isWhitespace(path.charAt(pos))) {
+            pos++;
+         }
+      }
+
+      private boolean peek(String token) {
+         skipWhitespace();
+         return path.startsWith(token, pos);
+      }
+
+      private boolean accept(String token) {
+         if (peek(token)) {
+            pos += token.length();
+            return true;
+         }
+         return false;
+      }
+
+      private void expect(String token) {
+         if (!accept(token)) {
+            throw error("syntax error, expected \"" + token + "\" at position " + pos);
+         }
+      }
+
+      private boolean keyword(String keyword) {
+         skipWhitespace();
+         int end = pos + keyword.length();
+         if (path.startsWith(keyword, pos) && (end == path.length() || !isKeyChar(path.charAt(end)))) {
+            pos = end;
+            return true;
+         }
+         return false;
+      }
+
+      private static boolean isKeyChar(char c) {
+         return !Character.isWhitespace(c) && SPECIAL_CHARS.indexOf(c) < 0;
+      }
+
+      private Expr parseOr() {
+         Expr left = parseAnd();
+         while (accept("||")) {
+            left = new Or(predicate(left), predicate(parseAnd()));
+         }
+         return left;
+      }
+
+      private Expr parseAnd() {
+         Expr left = parseNot();
+         while (accept("&&")) {
+            left = new And(predicate(left), predicate(parseNot()));
+         }
+         return left;
+      }
+
+      private Expr parseNot() {
+         if (peek("!") && !peek("!=")) {
+            pos++;
+            Expr operand = parseNot();
+            return new Not(predicate(operand));
+         }
+         return parseComparison();
+      }
+
+      private Pred predicate(Expr expr) {
+         if (expr instanceof Pred pred) {
+            return pred;
+         }
+         throw error("syntax error, expected predicate at position " + pos);
+      }
+
+      private Expr parseComparison() {
+         Expr left = parseAdditive();
+         CompareOp op = null;
+         if (accept("==")) {
+            op = CompareOp.EQ;
+         } else if (accept("!=") || accept("<>")) {
+            op = CompareOp.NE;
+         } else if (accept("<=")) {
+            op = CompareOp.LE;
+         } else if (accept(">=")) {
+            op = CompareOp.GE;
+         } else if (accept("<")) {
+            op = CompareOp.LT;
+         } else if (accept(">")) {
+            op = CompareOp.GT;
+         }
+         if (op != null) {
+            return new Comparison(op, left, parseAdditive());
+         } else if (keyword("starts")) {
+            if (!keyword("with")) {
+               throw error("syntax error, expected \"with\" at position " + pos);
+            }
+            skipWhitespace();
+            if (peek("$")) {
+               throw unsupported("Variable");
+            }
+            return new StartsWith(left, parseString());
+         } else if (keyword("like_regex")) {
+            String regex = parseString();
+            String flags = "";
+            if (keyword("flag")) {
+               flags = parseString();
+            }
+            return new LikeRegex(left, compileRegex(regex, flags));
+         }
+         return left;
+      }
+
+      private Pattern compileRegex(String regex, String flags) {
+         int javaFlags = 0;
+         for (char flag : flags.toCharArray()) {
+            switch (flag) {
+               case 'i' -> javaFlags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+               case 's' -> javaFlags |= Pattern.DOTALL;
+               case 'm' -> javaFlags |= Pattern.MULTILINE;
+               case 'x' -> javaFlags |= Pattern.COMMENTS;
+               case 'q' -> javaFlags |= Pattern.LITERAL;
+               default -> throw error("invalid input syntax for type jsonpath: unrecognized flag character \"" + flag + "\" in LIKE_REGEX predicate");
+            }
+         }
+         // POSIX bracket expressions do not have the same meaning in Java
+         if ((javaFlags & Pattern.LITERAL) == 0 && (regex.contains("[:") || regex.contains("[=") || regex.contains("[."))) {
+            throw unsupported("POSIX character class");
+         }
+         try {
+            return Pattern.compile(regex, javaFlags);
+         } catch (PatternSyntaxException e) {
+            throw unsupported("Regular expression " + regex);
+         }
+      }
+
+      private Expr parseAdditive() {
+         Expr left = parseMultiplicative();
+         while (true) {
+            if (accept("+")) {
+               left = new Arithmetic(ArithmeticOp.ADD, left, parseMultiplicative());
+            } else if (accept("-")) {
+               left = new Arithmetic(ArithmeticOp.SUBTRACT, left, parseMultiplicative());
+            } else {
+               return left;
+            }
+         }
+      }
+
+      private Expr parseMultiplicative() {
+         Expr left = parseUnary();
+         while (true) {
+            if (accept("*")) {
+               left = new Arithmetic(ArithmeticOp.MULTIPLY, left, parseUnary());
+            } else if (accept("%")) {
+               left = new Arithmetic(ArithmeticOp.MODULO, left, parseUnary());
+            } else if (peek("/")) {
+               // numeric division scale rules of the database are not replicated
+               throw unsupported("Division");
+            } else {
+               return left;
+            }
+         }
+      }
+
+      private Expr parseUnary() {
+         if (accept("-")) {
+            return new Negation(true, parseUnary());
+         } else if (accept("+")) {
+            return new Negation(false, parseUnary());
+         }
+         return parseAccessorExpr();
+      }
+
+      private Expr parseAccessorExpr() {
+         Expr primary = parsePrimary();
+         List<Accessor> accessors = new ArrayList<>();
+         while (true) {
+            if (peek(".")) {
+               pos++;
+               accessors.add(parseDotAccessor());
+            } else if (accept("[")) {
+               accessors.add(parseSubscripts());
+            } else if (accept("?")) {
+               expect("(");
+               filterDepth++;
+               Expr predicate = parseOr();
+               filterDepth--;
+               expect(")");
+               accessors.add(new Filter(predicate(predicate)));
+            } else {
+               break;
+            }
+         }
+         return accessors.isEmpty() ? primary : new Chain(primary, accessors.toArray(new Accessor[0]));
+      }
+
+      private Accessor parseDotAccessor() {
+         if (path.startsWith("**", pos)) {
+            pos += 2;
+            int first = 0, last = Integer.MAX_VALUE;
+            if (accept("{")) {
+               first = parseLevel();
+               last = keyword("to") ? parseLevel() : first;
+               expect("}");
+            }
+            return new Recursive(first, last);
+         } else if (path.startsWith("*", pos)) {
+            pos++;
+            return new AnyMember();
+         } else if (path.startsWith("\"", pos)) {
+            return new Member(parseString());
+         }
+         int start = pos;
+         while (pos < path.length() && isKeyChar(path.charAt(pos))) {
+            pos++;
+         }
+         if (start == pos) {
+            throw error("syntax error at position " + pos);
+         }
+         String name = path.substring(start, pos);
+         if (peek("(")) {
+            pos++;
+            expect(")");
+            return switch (name) {
+               case "type" -> Method.TYPE;
+               case "size" -> Method.SIZE;
+               case "double" -> Method.DOUBLE;
+               case "abs" -> Method.ABS;
+               case "floor" -> Method.FLOOR;
+               case "ceiling" -> Method.CEILING;
+               default -> throw unsupported("Method " + name + "()");
+            };
+         }
+         return new Member(name);
+      }
+
+      private int parseLevel() {
+         if (keyword("last")) {
+            return Integer.MAX_VALUE;
+         }
+         skipWhitespace();
+         int start = pos;
+         while (pos < path.length() && Character.isDigit(path.charAt(pos))) {
+            pos++;
+         }
+         if (start == pos) {
+            throw error("syntax error, expected level at position " + pos);
+         }
+         try {
+            return Integer.parseInt(path.substring(start, pos));
+         } catch (NumberFormatException e) {
+            throw error("level out of range");
+         }
+      }
+
+      private Accessor parseSubscripts() {
+         if (accept("*")) {
+            expect("]");
+            return new AnyElement();
+         }
+         List<Subscript> subscripts = new ArrayList<>();
+         subscriptDepth++;
+         do {
+            Expr from = parseAdditive();
+            Expr to = keyword("to") ? parseAdditive() : null;
+            subscripts.add(new Subscript(from, to));
+         } while (accept(","));
+         subscriptDepth--;
+         expect("]");
+         return new Elements(subscripts.toArray(new Subscript[0]));
+      }
+
+      private Expr parsePrimary() {
+         skipWhitespace();
+         if (pos >= path.length()) {
+            throw error("syntax error at end");
+         }
+         char c = path.charAt(pos);
+         if (c == '(') {
+            pos++;
+            Expr inner = parseOr();
+            expect(")");
+            if (inner instanceof Pred pred && keyword("is")) {
+               if (!keyword("unknown")) {
+                  throw error("syntax error, expected \"unknown\" at position " + pos);
+               }
+               return new IsUnknown(pred);
+            }
+            return inner;
+         } else if (c == '$') {
+            pos++;
+            if (pos < path.length() && (isKeyChar(path.charAt(pos)) || path.charAt(pos) == '"')) {
+               throw unsupported("Variable");
+            }
+            return new Root();
+         } else if (c == '@') {
+            if (filterDepth == 0) {
+               throw error("@ is not allowed in root expressions");
+            }
+            pos++;
+            return new Current();
+         } else if (c == '"') {
+            return new Literal(JSON.textNode(parseString()));
+         } else if (Character.isDigit(c) || (c == '.' && pos + 1 < path.length() && Character.isDigit(path.charAt(pos + 1)))) {
+            return new Literal(parseNumber());
+         } else if (keyword("last")) {
+            if (subscriptDepth == 0) {
+               throw error("LAST is allowed only in array subscripts");
+            }
+            return new Last();
+         } else if (keyword("true")) {
+            return new Literal(JSON.booleanNode(true));
+         } else if (keyword("false")) {
+            return new Literal(JSON.booleanNode(false));
+         } else if (keyword("null")) {
+            return new Literal(JSON.nullNode());
+         } else if (keyword("exists")) {
+            expect("(");
+            Expr expr = parseOr();
+            expect(")");
+            return new Exists(expr);
+         }
+         throw error("syntax error at or near \"" + path.substring(pos) + "\"");
+      }
+
+      private JsonNode parseNumber() {
+         int start = pos;
+         while (pos < path.length() && Character.isDigit(path.charAt(pos))) {
+            pos++;
+         }
+         if (pos + 1 < path.length() && path.charAt(pos) == '.' && Character.isDigit(path.charAt(pos + 1))) {
+            pos++;
+            while (pos < path.length() && Character.isDigit(path.charAt(pos))) {
+               pos++;
+            }
+         }
+         if (pos < path.length() && (path.charAt(pos) == 'e' || path.charAt(pos) == 'E')) {
+            int exp = pos + 1;
+            if (exp < path.length() && (path.charAt(exp) == '+' || path.charAt(exp) == '-')) {
+               exp++;
+            }
+            int digits = exp;
+            while (exp < path.length() && Character.isDigit(path.charAt(exp))) {
+               exp++;
+            }
+            if (exp > digits) {
+               pos = exp;
+            }
+         }
+         if (pos < path.length() && isKeyChar(path.charAt(pos))) {
+            throw error("trailing junk after numeric literal");
+         }
+         return numberNode(new BigDecimal(path.substring(start, pos)));
+      }
+
+      private String parseString() {
+         skipWhitespace();
+         if (pos >= path.length() || path.charAt(pos) != '"') {
+            throw error("syntax error, expected string at position " + pos);
+         }
+         pos++;
+         StringBuilder sb = new StringBuilder();
+         while (true) {
+            if (pos >= path.length()) {
+               throw error("unexpected end of quoted string");
+            }
+            char c = path.charAt(pos++);
+            if (c == '"') {
+               return sb.toString();
+            } else if (c != '\\') {
+               sb.append(c);
+               continue;
+            }
+            if (pos >= path.length()) {
+               throw error("unexpected end after backslash");
+            }
+            char escaped = path.charAt(pos++);
+            switch (escaped) {
+               case 'b' -> sb.append('\b');
+               case 'f' -> sb.append('\f');
+               case 'n' -> sb.append('\n');
+               case 'r' -> sb.append('\r');
+               case 't' -> sb.append('\t');
+               case 'v' -> sb.append('\u000B');
+               case 'x' -> sb.appendCodePoint(hex(2, 2));
+               case 'u' -> {
+                  if (pos < path.length() && path.charAt(pos) == '{') {
+                     pos++;
+                     int codePoint = hex(1, 6);
+                     if (pos >= path.length() || path.charAt(pos) != '}') {
+                        throw error("invalid Unicode escape sequence");
+                     }
+                     pos++;
+                     sb.appendCodePoint(codePoint);
+                  } else {
+                     sb.append((char) hex(4, 4));
+                  }
+               }
+               // any other escaped character stands for itself
+               default -> sb.append(escaped);
+            }
+         }
+      }
+
+      private int hex(int minDigits, int maxDigits) {
+         int start = pos;
+         while (pos < path.length() && pos - start < maxDigits && Character.digit(path.charAt(pos), 16) >= 0) {
+            pos++;
+         }
+         if (pos - start < minDigits) {
+            throw error("invalid hexadecimal character sequence");
+         }
+         return Integer.parseInt(path.substring(start, pos), 16);
+      }
+   }
+}
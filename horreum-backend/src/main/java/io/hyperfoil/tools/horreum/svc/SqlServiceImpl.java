@@ -3,12 +3,16 @@ package io.hyperfoil.tools.horreum.svc;
 import io.hyperfoil.tools.horreum.api.data.JsonpathValidation;
 import io.hyperfoil.tools.horreum.api.data.QueryResult;
 import io.hyperfoil.tools.horreum.api.internal.services.SqlService;
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.hyperfoil.tools.horreum.payload.PayloadStorage;
 import io.hyperfoil.tools.horreum.server.RoleManager;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
 
 import io.quarkus.security.identity.SecurityIdentity;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import jakarta.annotation.security.PermitAll;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -16,7 +20,9 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Query;
 
+import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -36,9 +42,15 @@ public class SqlServiceImpl implements SqlService {
    @Inject
    RoleManager roleManager;
 
+   @Inject
+   PayloadStorage payloadStorage;
+
    @ConfigProperty(name = "horreum.debug")
    Optional<Boolean> debug;
 
+   @ConfigProperty(name = "horreum.extraction.engine", defaultValue = "postgres")
+   SqlJsonPath.Engine extractionEngine;
+
    static void setFromException(PersistenceException pe, JsonpathValidation result) {
       result.valid = false;
       if (pe.getCause() instanceof JDBCException) {
@@ -59,6 +71,10 @@ public class SqlServiceImpl implements SqlService {
       String func = array ? "jsonb_path_query_array" : "jsonb_path_query_first";
       QueryResult result = new QueryResult();
       result.jsonpath = jsonpath;
+      // with external payloads the database might have only a skeleton of the data
+      if ((extractionEngine == SqlJsonPath.Engine.JVM || payloadStorage.isEnabled()) && queryRunDataInJvm(id, jsonpath, schemaUri, array, result)) {
+         return result;
+      }
       try {
          if (schemaUri != null && !schemaUri.isEmpty()) {
             String sqlQuery = "SELECT " + func + "((CASE " +
@@ -75,6 +91,48 @@ public class SqlServiceImpl implements SqlService {
       }
       return result;
    }
+   /**
+    * Evaluates the JSONPath in the application; returns false when it has to be evaluated by the database.
+    */
+   private boolean queryRunDataInJvm(int id, String jsonpath, String schemaUri, boolean array, QueryResult result) {
+      SqlJsonPath path;
+      try {
+         path = SqlJsonPath.compile(jsonpath);
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+      RunDAO run = RunDAO.findById(id);
+      if (run == null) {
+         throw ServiceException.notFound("No result");
+      }
+      JsonNode root;
+      try {
+         root = payloadStorage.data(run);
+      } catch (IOException e) {
+         log.errorf(e, "Failed to load data of run %d from the payload store", id);
+         throw ServiceException.serverError("Could not load run data");
+      }
+      if (schemaUri != null && !schemaUri.isEmpty()) {
+         @SuppressWarnings("unchecked")
+         List<Object[]> schemas = em.createNativeQuery("SELECT type, key FROM run_schemas WHERE runid = ?1 AND uri = ?2")
+               .setParameter(1, id).setParameter(2, schemaUri).getResultList();
+         if (schemas.size() != 1) {
+            // let the database report the problem
+            return false;
+         }
+         // the schema is always looked up in run data, not metadata
+         root = RunServiceImpl.extractionRoot(root, run.metadata, (int) schemas.get(0)[0], (String) schemas.get(0)[1], 0);
+      }
+      try {
+         result.value = String.valueOf(SqlJsonPath.toText(path.query(root, array)));
+         result.valid = true;
+      } catch (IllegalArgumentException e) {
+         result.valid = false;
+         result.reason = e.getMessage();
+      }
+      return true;
+   }
+
    @WithRoles
    @Override
    public QueryResult queryDatasetData(int datasetId, String jsonpath, boolean array, String schemaUri) {
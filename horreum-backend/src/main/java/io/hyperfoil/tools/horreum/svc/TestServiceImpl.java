@@ -1,22 +1,29 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.ExportedLabelValues;
 import io.hyperfoil.tools.horreum.api.data.Fingerprints;
+import io.hyperfoil.tools.horreum.api.data.LabelValueMap;
 import io.hyperfoil.tools.horreum.api.data.Test;
 import io.hyperfoil.tools.horreum.api.data.TestExport;
 import io.hyperfoil.tools.horreum.api.data.TestToken;
 import io.hyperfoil.tools.horreum.api.data.datastore.DatastoreType;
 import io.hyperfoil.tools.horreum.api.services.TestService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.WatchDAO;
 import io.hyperfoil.tools.horreum.entity.backend.DatastoreConfigDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.LabelDAO;
 import io.hyperfoil.tools.horreum.entity.data.RunDAO;
 import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.entity.data.TestTokenDAO;
@@ -30,6 +37,7 @@ import io.hyperfoil.tools.horreum.server.EncryptionManager;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
 import io.quarkus.hibernate.orm.panache.PanacheQuery;
+import io.quarkus.narayana.jta.runtime.TransactionConfiguration;
 import io.quarkus.panache.common.Page;
 import io.quarkus.panache.common.Sort;
 import io.quarkus.security.identity.SecurityIdentity;
@@ -45,6 +53,7 @@ import jakarta.transaction.Transactional;
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.hibernate.Hibernate;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
@@ -53,9 +62,14 @@ import org.hibernate.query.NativeQuery;
 import org.hibernate.type.StandardBasicTypes;
 import org.jboss.logging.Logger;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -65,6 +79,7 @@ public class TestServiceImpl implements TestService {
    private static final Logger log = Logger.getLogger(TestServiceImpl.class);
 
    protected static final String WILDCARD = "*";
+   private static final int EXPORT_FETCH_SIZE = 1000;
    //using find and replace because  ASC or DESC cannot be set with a parameter
    //@formatter:off
    protected static final String FILTER_PREFIX = "WHERE ";
@@ -94,7 +109,7 @@ public class TestServiceImpl implements TestService {
                   WHERE dataset.testid = :testId
                      AND (label.id IS NULL OR (:filteringLabels AND label.filtering) OR (:metricLabels AND label.metrics))
                   GROUP BY dataset.id, runId
-         ) select * from combined FILTER_PLACEHOLDER ORDER_PLACEHOLDER limit :limit offset :offset
+         ) select * from combined FILTER_PLACEHOLDER ORDER_PLACEHOLDER LIMIT_PLACEHOLDER
          """;
 
 
@@ -118,7 +133,8 @@ public class TestServiceImpl implements TestService {
    @Inject
    TransactionManager tm;
 
-   private final ConcurrentHashMap<Integer, RecalculationStatus> recalculations = new ConcurrentHashMap<>();
+   @Inject
+   RecalculationJobs recalculationJobs;
 
    @RolesAllowed(Roles.TESTER)
    @WithRoles
@@ -579,6 +595,107 @@ public class TestServiceImpl implements TestService {
          throw ServiceException.serverError("Cannot find test "+testId);
       }
 
+      NativeQuery<?> query = labelValuesQuery(test.id, filter, before, after, filtering, metrics, sort, direction, include, exclude, true);
+      query.setParameter("limit",limit).setParameter("offset",limit * Math.max(0,page));
+      return ExportedLabelValues.parse((List<Object[]>) query.getResultList());
+   }
+
+   @WithRoles
+   @Override
+   public Response exportLabelValues(int testId, String filter, String before, String after, boolean filtering, boolean metrics, String sort, String direction, String format, List<String> include, List<String> exclude) {
+      boolean csv;
+      if ("csv".equalsIgnoreCase(format)) {
+         csv = true;
+      } else if ("ndjson".equalsIgnoreCase(format)) {
+         csv = false;
+      } else {
+         throw ServiceException.badRequest("Unknown format " + format + ", expected ndjson or csv");
+      }
+      // fail before the response is committed if the test does not exist
+      Test test = get(testId, null);
+      StreamingOutput output = out -> writeLabelValues(test.id, filter, before, after, filtering, metrics, sort, direction, csv, include, exclude, out);
+      return Response.ok(output, csv ? ApiUtil.TEXT_CSV : ApiUtil.APPLICATION_NDJSON).build();
+   }
+
+   /**
+    * Writes the label values as these are read from the cursor, without loading all of them in memory.
+    */
+   @WithRoles
+   @Transactional
+   @TransactionConfiguration(timeout = 3600)
+   void writeLabelValues(int testId, String filter, String before, String after, boolean filtering, boolean metrics, String sort, String direction, boolean csv, List<String> include, List<String> exclude, OutputStream out) throws IOException {
+      NativeQuery<?> query = labelValuesQuery(testId, filter, before, after, filtering, metrics, sort, direction, include, exclude, false);
+      query.setFetchSize(EXPORT_FETCH_SIZE);
+      try (ScrollableResults<?> results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+         if (csv) {
+            writeLabelValuesCsv(testId, filtering, metrics, include, exclude, results, out);
+         } else {
+            writeLabelValuesNdjson(results, out);
+         }
+      }
+   }
+
+   private void writeLabelValuesNdjson(ScrollableResults<?> results, OutputStream out) throws IOException {
+      ObjectWriter writer = mapper.writerFor(ExportedLabelValues.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+      try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+         generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+         generator.setRootValueSeparator(null);
+         while (results.next()) {
+            Object[] row = (Object[]) results.get();
+            writer.writeValue(generator, new ExportedLabelValues(LabelValueMap.fromObjectNode((ObjectNode) row[0]),
+                  (Integer) row[1], (Integer) row[2], (Instant) row[3], (Instant) row[4]));
+            generator.writeRaw('\n');
+         }
+      }
+   }
+
+   private void writeLabelValuesCsv(int testId, boolean filtering, boolean metrics, List<String> include, List<String> exclude, ScrollableResults<?> results, OutputStream out) throws IOException {
+      // rows can have different labels so the columns are all labels that can appear in the datasets
+      List<String> labels = em.createNativeQuery("""
+            SELECT DISTINCT label.name FROM label
+            JOIN dataset_schemas ds ON ds.schema_id = label.schema_id
+            JOIN dataset ON dataset.id = ds.dataset_id
+            WHERE dataset.testid = ?1 AND ((?2 AND label.filtering) OR (?3 AND label.metrics))
+            ORDER BY label.name
+            """, String.class).setParameter(1, testId).setParameter(2, filtering).setParameter(3, metrics).getResultList();
+      labels = new ArrayList<>(labels);
+      if (include != null && !include.isEmpty() && (exclude == null || !exclude.containsAll(include))) {
+         labels.retainAll(include);
+      }
+      if (exclude != null) {
+         labels.removeAll(exclude);
+      }
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      writer.write("runId,datasetId,start,stop");
+      for (String label : labels) {
+         writer.write(',');
+         writer.write(csvCell(label));
+      }
+      writer.write('\n');
+      while (results.next()) {
+         Object[] row = (Object[]) results.get();
+         JsonNode values = (JsonNode) row[0];
+         writer.write(row[1] + "," + row[2] + "," + row[3] + "," + row[4]);
+         for (String label : labels) {
+            writer.write(',');
+            JsonNode value = values.get(label);
+            if (value != null && !value.isNull()) {
+               writer.write(csvCell(value.isValueNode() ? value.asText() : value.toString()));
+            }
+         }
+         writer.write('\n');
+      }
+      writer.flush();
+   }
+
+   private static String csvCell(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+         return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   private NativeQuery<?> labelValuesQuery(int testId, String filter, String before, String after, boolean filtering, boolean metrics, String sort, String direction, List<String> include, List<String> exclude, boolean paged) {
       Object filterObject = Util.getFilterObject(filter);
 
       String filterSql = "";
@@ -663,10 +780,11 @@ public class TestServiceImpl implements TestService {
           String sql = LABEL_VALUES_QUERY
                   .replace("FILTER_PLACEHOLDER",filterSql)
                   .replace("INCLUDE_EXCLUDE_PLACEHOLDER",includeExcludeSql)
-                  .replace("ORDER_PLACEHOLDER",orderSql);
+                  .replace("ORDER_PLACEHOLDER",orderSql)
+                  .replace("LIMIT_PLACEHOLDER",paged ? "limit :limit offset :offset" : "");
 
            NativeQuery query =  ((NativeQuery) em.createNativeQuery(sql))
-             .setParameter("testId", test.id)
+             .setParameter("testId", testId)
              .setParameter("filteringLabels", filtering)
              .setParameter("metricLabels", metrics)
              ;
@@ -691,19 +809,13 @@ public class TestServiceImpl implements TestService {
            if(orderSql.contains(LABEL_ORDER_JSONPATH)){
                query.setParameter("orderBy", sort);
            }
-           query
-                .setParameter("limit",limit)
-                .setParameter("offset",limit * Math.max(0,page))
+           return query
                 .unwrap(NativeQuery.class)
                 .addScalar("values", JsonBinaryType.INSTANCE)
                 .addScalar("runId",Integer.class)
                 .addScalar("datasetId",Integer.class)
                 .addScalar("start", StandardBasicTypes.INSTANT)
                 .addScalar("stop", StandardBasicTypes.INSTANT);
-           return ExportedLabelValues.parse( query.getResultList() );
-
-
-
    }
 
    @WithRoles
@@ -724,56 +836,16 @@ public class TestServiceImpl implements TestService {
    @Transactional
    public void recalculateDatasets(int testId) {
       TestDAO test = getTestForUpdate(testId);
-      RecalculationStatus status = new RecalculationStatus(RunDAO.count("testid = ?1 AND trashed = false", testId));
       // we don't have to care about races with new runs
-      RecalculationStatus prev = recalculations.putIfAbsent(testId, status);
-      while (prev != null) {
+      if (!recalculationJobs.start(testId)) {
          log.debugf("Recalculation for test %d (%s) already in progress", testId, test.name);
-         if (prev.timestamp < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10)) {
-            log.warnf("Recalculation for test %d (%s) from %s timed out after 10 minutes with %d/%d runs",
-                  testId, test.name, Instant.ofEpochMilli(prev.timestamp), prev.finished, prev.totalRuns);
-            if (recalculations.replace(testId, prev, status)) {
-               log.debug("Continuing with recalculation.");
-               break;
-            } else {
-               prev = recalculations.get(testId);
-            }
-         } else {
-            return;
-         }
+         return;
       }
       long deleted = em.createNativeQuery("DELETE FROM dataset USING run WHERE run.id = dataset.runid AND run.trashed AND dataset.testid = ?1")
             .setParameter(1, testId).executeUpdate();
       if (deleted > 0) {
          log.debugf("Deleted %d datasets for trashed runs in test %s (%d)", deleted, test.name, (Object)testId);
       }
-
-      ScrollableResults results = em.createNativeQuery("SELECT id FROM run WHERE testid = ?1 AND NOT trashed ORDER BY start")
-            .setParameter(1, testId)
-            .unwrap(NativeQuery.class).setReadOnly(true).setFetchSize(100)
-            .scroll(ScrollMode.FORWARD_ONLY);
-      while (results.next()) {
-         int runId = (int) results.get();
-         log.debugf("Recalculate Datasets for run %d - forcing recalculation for test %d (%s)", runId, testId, test.name);
-         // transform will add proper roles anyway
-//         messageBus.executeForTest(testId, () -> datasetService.withRecalculationLock(() -> {
-//         mediator.executeBlocking(() -> mediator.transform(runId, true));
-         mediator.executeBlocking(() -> mediator.withRecalculationLock(() -> {
-            int newDatasets = 0;
-            try {
-               newDatasets = mediator.transform(runId, true);
-//               mediator.queueRunRecalculation(runId);
-            } finally {
-               synchronized (status) {
-                  status.finished++;
-                  status.datasets += newDatasets;
-                  if (status.finished == status.totalRuns) {
-                     recalculations.remove(testId, status);
-                  }
-               }
-            }
-         }));
-      }
    }
 
    @Override
@@ -783,15 +855,68 @@ public class TestServiceImpl implements TestService {
       if(test == null){
          throw ServiceException.serverError("Cannot find test "+testId);
       }
-      RecalculationStatus status = recalculations.get(test.id);
-      if (status == null) {
+      RecalculationStatus status = recalculationJobs.status(test.id);
+      if (status == null || RecalculationJobs.FINISHED.equals(status.state)) {
+         Long jobId = status == null ? null : status.jobId;
          status = new RecalculationStatus(RunDAO.count("testid = ?1 AND trashed = false", test.id));
          status.finished = status.totalRuns;
          status.datasets = DatasetDAO.count("testid", test.id);
+         status.jobId = jobId;
+         status.state = RecalculationJobs.FINISHED;
       }
       return status;
    }
 
+   @Override
+   @WithRoles
+   @Transactional
+   public void cancelRecalculation(int testId) {
+      TestDAO test = getTestForUpdate(testId);
+      if (recalculationJobs.cancel(testId)) {
+         log.debugf("Cancelled recalculation for test %d (%s)", testId, test.name);
+      }
+   }
+
+   @Override
+   @WithRoles
+   @Transactional
+   public List<FunctionTiming> slowestFunctions(int testId, int limit) {
+      if (limit <= 0) {
+         throw ServiceException.badRequest("Limit must be positive");
+      }
+      TestDAO test = TestDAO.findById(testId);
+      if (test == null) {
+         throw ServiceException.notFound("Cannot find test " + testId);
+      }
+      List<FunctionTiming> timings = new ArrayList<>();
+      for (JsFunctionStats.Stats stats : JsFunctionStats.slowest(testId, limit)) {
+         long invocations = stats.invocations();
+         double totalMillis = TimeUnit.NANOSECONDS.toMicros(stats.totalNanos()) / 1000.0;
+         double maxMillis = TimeUnit.NANOSECONDS.toMicros(stats.maxNanos()) / 1000.0;
+         timings.add(new FunctionTiming(stats.key.kind().name(), stats.key.id(), functionName(stats.key), invocations,
+               stats.failures(), totalMillis, invocations == 0 ? 0 : totalMillis / invocations, maxMillis));
+      }
+      return timings;
+   }
+
+   private String functionName(JsFunctionStats.Key key) {
+      // labels and transformers belong to schemas that may not be accessible to the user
+      return switch (key.kind()) {
+         case LABEL -> {
+            LabelDAO label = LabelDAO.findById(key.id());
+            yield label == null ? null : label.name;
+         }
+         case TRANSFORMER -> {
+            TransformerDAO transformer = TransformerDAO.findById(key.id());
+            yield transformer == null ? null : transformer.name;
+         }
+         case VARIABLE -> {
+            VariableDAO variable = VariableDAO.findById(key.id());
+            yield variable == null ? null : variable.name;
+         }
+      };
+   }
+
    @RolesAllowed({Roles.ADMIN, Roles.TESTER})
    @WithRoles
    @Transactional
@@ -1,8 +1,6 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
@@ -279,7 +277,8 @@ public class Util {
       if (value == null || value.isNull()) {
          return JsonNodeFactory.instance.nullNode();
       } else if (value.isProxyObject()) {
-         return value.asProxyObject();
+         JsonNode node = unwrapProxy(value);
+         return node != null ? node : JsonNodeFactory.instance.textNode(value.toString());
       } else if (value.isBoolean()) {
          return JsonNodeFactory.instance.booleanNode(value.asBoolean());
       } else if (value.isNumber()) {
@@ -302,7 +301,25 @@ public class Util {
       }
    }
 
+   /**
+    * Returns the node wrapped in {@link ProxyJacksonObject} or {@link ProxyJacksonArray} or null for other values.
+    */
+   static JsonNode unwrapProxy(Value value) {
+      if (value.isProxyObject()) {
+         Proxy p = value.asProxyObject();
+         if (p instanceof ProxyJacksonObject) {
+            return ((ProxyJacksonObject) p).getJsonNode();
+         } else if (p instanceof ProxyJacksonArray) {
+            return ((ProxyJacksonArray) p).getJsonNode();
+         }
+      }
+      return null;
+   }
+
    public static Object convertFromJson(JsonNode node){
+         if (node == null) {
+            return null;
+         }
          switch (node.getNodeType()) {
             case BINARY:
             case STRING:
@@ -320,9 +337,9 @@ public class Util {
                   return value;
                }
             case OBJECT:
-               return (ObjectNode)node;
+               return new ProxyJacksonObject((ObjectNode) node);
             case ARRAY:
-               return (ArrayNode)node;
+               return new ProxyJacksonArray((ArrayNode) node);
             default:
                return node;
          }
@@ -340,14 +357,8 @@ public class Util {
             return null;
          }
       } else if (value.isProxyObject()) {
-         Proxy p = value.asProxyObject();
-         if (p instanceof ProxyJacksonArray){
-            return ((ProxyJacksonArray)p).getJsonNode();
-         } else if (p instanceof ProxyJacksonObject){
-            return ((ProxyJacksonObject)p).getJsonNode();
-         } else {
-            return p;
-         }
+         JsonNode node = unwrapProxy(value);
+         return node != null ? node : value.asProxyObject();
       } else if (value.isBoolean()) {
          return value.asBoolean();
       } else if (value.isNumber()) {
@@ -377,6 +388,8 @@ public class Util {
          Value element = value.getArrayElement(i);
          if (element == null || element.isNull()) {
             json.addNull();
+         } else if (element.isProxyObject() && unwrapProxy(element) != null) {
+            json.add(unwrapProxy(element));
          } else if (element.isBoolean()) {
             json.add(element.asBoolean());
          } else if (element.isNumber()) {
@@ -405,6 +418,8 @@ public class Util {
          Value element = value.getMember(key);
          if (element == null || element.isNull()) {
             json.set(key, JsonNodeFactory.instance.nullNode());
+         } else if (element.isProxyObject() && unwrapProxy(element) != null) {
+            json.set(key, unwrapProxy(element));
          } else if (element.isBoolean()) {
             json.set(key, JsonNodeFactory.instance.booleanNode(element.asBoolean()));
          } else if (element.isNumber()) {
@@ -594,54 +609,115 @@ public class Util {
                                                    Consumer<T> nonFuncResultConsumer,
                                                    ExecutionExceptionConsumer<T> onJsEvaluationException,
                                                    Consumer<String> jsOutputConsumer) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (org.graalvm.polyglot.Context context = createContext(out)) {
-         context.enter();
-         try {
-            setupContext(context);
-            for (int i = 0; i < inputData.size(); i++) {
-               T element = inputData.get(i);
-               String jsFuncBody = jsCombinationFunction.apply(element);
-               if (jsFuncBody != null && !jsFuncBody.isBlank()) {
-                  StringBuilder jsCode = new StringBuilder("const __obj").append(i).append(" = ").append(evaluationInputObject.apply(element)).append(";\n");
-                  jsCode.append("const __func").append(i).append(" = ").append(jsFuncBody).append(";\n");
-                  jsCode.append("__func").append(i).append("(__obj").append(i).append(")");
-                  try {
-                     Value value = context.eval("js", jsCode);
-                     value = resolvePromise(value);
-                     jsFuncResultConsumer.accept(element, value);
-                  } catch (PolyglotException e) {
-                     onJsEvaluationException.accept(element, e, jsCode.toString());
-                  }
-               } else {
-                  nonFuncResultConsumer.accept(element);
-               }
+      evaluateWithCombinationFunction(inputData, jsCombinationFunction, evaluationInputObject, element -> null,
+            jsFuncResultConsumer, nonFuncResultConsumer, onJsEvaluationException, jsOutputConsumer);
+   }
+
+   /**
+    * Same as above, recording the time spent in each function under the key returned by <code>statsKey</code>.
+    */
+   static <T> void evaluateWithCombinationFunction(List<T> inputData,
+                                                   Function<T, String> jsCombinationFunction,
+                                                   Function<T, JsonNode> evaluationInputObject,
+                                                   Function<T, JsFunctionStats.Key> statsKey,
+                                                   BiConsumer<T, Value> jsFuncResultConsumer,
+                                                   Consumer<T> nonFuncResultConsumer,
+                                                   ExecutionExceptionConsumer<T> onJsEvaluationException,
+                                                   Consumer<String> jsOutputConsumer) {
+      for (T element : inputData) {
+         String jsFuncBody = jsCombinationFunction.apply(element);
+         if (BuiltinFunction.isBuiltin(jsFuncBody)) {
+            JsonNode input = evaluationInputObject.apply(element);
+            try {
+               JsonNode result = applyBuiltin(jsFuncBody, input, statsKey.apply(element));
+               jsFuncResultConsumer.accept(element, Value.asValue(convertFromJson(result)));
+            } catch (IllegalArgumentException e) {
+               onJsEvaluationException.accept(element, e, jsFuncBody);
             }
-         } catch (IOException e) {
-            onJsEvaluationException.accept(null, e, "<init>");
-         } finally {
-            if (out.size() > 0) {
-               jsOutputConsumer.accept(out.toString(StandardCharsets.UTF_8));
+         } else if (jsFuncBody != null && !jsFuncBody.isBlank()) {
+            // each function gets a fresh context so that it cannot see changes made by the previous ones
+            JsEngine.JsContext jsContext = JsEngine.get().newContext();
+            jsContext.enter();
+            try {
+               JsonNode input = evaluationInputObject.apply(element);
+               try {
+                  Value value = invoke(jsContext, jsFuncBody, input, statsKey.apply(element));
+                  jsFuncResultConsumer.accept(element, value);
+               } catch (PolyglotException e) {
+                  onJsEvaluationException.accept(element, e, buildCode(jsFuncBody, input));
+               }
+            } finally {
+               closeContext(jsContext, jsOutputConsumer);
             }
-            context.leave();
+         } else {
+            nonFuncResultConsumer.accept(element);
+         }
+      }
+   }
+
+   /**
+    * Evaluates a {@link BuiltinFunction built-in function} without a JavaScript context.
+    *
+    * @throws IllegalArgumentException when the function is invalid or cannot be applied to the input.
+    */
+   private static JsonNode applyBuiltin(String function, JsonNode input, JsFunctionStats.Key statsKey) {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         JsonNode result = BuiltinFunction.parse(function).apply(input);
+         failed = false;
+         return result;
+      } finally {
+         JsFunctionStats.record(statsKey, System.nanoTime() - start, failed);
+      }
+   }
+
+   private static void closeContext(JsEngine.JsContext jsContext, Consumer<String> onOutput) {
+      try {
+         if (jsContext.hasOutput()) {
+            onOutput.accept(jsContext.output());
          }
+      } finally {
+         jsContext.leave();
+         jsContext.close();
       }
    }
 
-   private static Context createContext(OutputStream out){
-      return Context.newBuilder("js")
-              .engine(Engine.newBuilder()
-                      .option("engine.WarnInterpreterOnly", "false")
-                      .build()
-              )
-              .allowExperimentalOptions(true)
-              .option("js.foreign-object-prototype", "true")
-              .option("js.global-property","true")
-              .out(out)
-              .err(out)
-              .build();
+   /**
+    * Calls the function within the limits configured for the engine, resolving any returned promise.
+    */
+   private static Value invoke(JsEngine.JsContext jsContext, String function, JsonNode input, JsFunctionStats.Key statsKey) {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try (JsEngine.TimeLimit limit = jsContext.limit()) {
+         Value value = resolvePromise(invoke(jsContext, function, input));
+         failed = false;
+         return value;
+      } finally {
+         JsFunctionStats.record(statsKey, System.nanoTime() - start, failed);
+      }
    }
-   private static void setupContext(Context context) throws IOException {
+
+   private static Value invoke(JsEngine.JsContext jsContext, String function, JsonNode input) {
+      Value func = jsContext.function(function);
+      if (!func.canExecute()) {
+         // let the engine report the error the same way as for any other code
+         return jsContext.context().eval("js", buildCode(function, input));
+      }
+      return func.execute(jsContext.useProxies() ? ProxyJackson.wrap(input) : jsContext.toJs(input));
+   }
+
+   // This is the equivalent code used when reporting errors; the declarations are wrapped in a function
+   // so that these would not leak into the global scope.
+   private static String buildCode(String function, JsonNode input) {
+      return "(function() {\n" +
+            "const __obj = " + input + ";\n" +
+            "const __func = " + function + ";\n" +
+            "return __func(__obj);\n" +
+            "})()";
+   }
+
+   static void setupContext(Context context) {
       context.getBindings("js").putMember("isInstanceLike", new ProxyJacksonObject.InstanceCheck());
       context.eval("js",
               "Object.defineProperty(Object,Symbol.hasInstance, {\n" +
@@ -652,7 +728,8 @@ public class Util {
    }
 
    public static Value resolvePromise(Value value){
-      if(value.getMetaObject().getMetaSimpleName().equals("Promise") && value.hasMember("then") && value.canInvokeMember("then")){
+      Value metaObject = value.getMetaObject();
+      if(metaObject != null && metaObject.getMetaSimpleName().equals("Promise") && value.hasMember("then") && value.canInvokeMember("then")){
          List<Value> resolved = new ArrayList<>();
          List<Value> rejected = new ArrayList<>();
          Object invokeRtrn = value.invokeMember("then", new ProxyExecutable() {
@@ -681,31 +758,58 @@ public class Util {
 
    //I SWEAR IF I FIND ANOTHER PLACE THAT PERFORMS THE SAME CALCULATION I WILL BUY MORE SCREWDRIVERS
    static <T> T evaluateOnce(String function, JsonNode input, Function<Value, T> processResult, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
-      StringBuilder jsCode = new StringBuilder("const __obj = ").append(input).append(";\n");
-      jsCode.append("const __func = ").append(function).append(";\n");
-      jsCode.append("__func(__obj)");
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (Context context = createContext(out)) {
-         context.enter();
+      if (BuiltinFunction.isBuiltin(function)) {
          try {
-            setupContext(context);
-            Value value = context.eval("js", jsCode);
-            value = resolvePromise(value);
-            //end of the sin
-            return processResult.apply(value);
-         } catch (PolyglotException e) {
-            onException.accept(jsCode.toString(), e);
+            return processResult.apply(Value.asValue(convertFromJson(applyBuiltin(function, input, null))));
+         } catch (IllegalArgumentException e) {
+            onException.accept(function, e);
             return null;
-         } catch (IOException e) {
-            onException.accept(jsCode.toString(), e);
-         } finally {
-            if (out.size() > 0) {
-               onOutput.accept(out.toString());
-            }
-            context.leave();
          }
       }
-      return null;
+      return evaluate(function, input, (jsContext, value) -> processResult.apply(value), onException, onOutput);
+   }
+
+   /**
+    * Evaluates the function and returns the result as JSON. Unlike using {@link #convertToJson(Value)} as the result
+    * processor this returns (parts of) the input without copying and converts other objects and arrays in one go.
+    */
+   static JsonNode evaluateToJson(String function, JsonNode input, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      return evaluateToJson(function, input, null, onException, onOutput);
+   }
+
+   static JsonNode evaluateToJson(String function, JsonNode input, JsFunctionStats.Key statsKey, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      return evaluateToJson(JsEngine.get(), function, input, statsKey, onException, onOutput);
+   }
+
+   static JsonNode evaluateToJson(JsEngine jsEngine, String function, JsonNode input, JsFunctionStats.Key statsKey, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      if (BuiltinFunction.isBuiltin(function)) {
+         try {
+            return applyBuiltin(function, input, statsKey);
+         } catch (IllegalArgumentException e) {
+            onException.accept(function, e);
+            return null;
+         }
+      }
+      return evaluate(jsEngine, function, input, statsKey, JsEngine.JsContext::toJson, onException, onOutput);
+   }
+
+   private static <T> T evaluate(String function, JsonNode input, BiFunction<JsEngine.JsContext, Value, T> processResult, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      return evaluate(JsEngine.get(), function, input, null, processResult, onException, onOutput);
+   }
+
+   private static <T> T evaluate(JsEngine jsEngine, String function, JsonNode input, JsFunctionStats.Key statsKey, BiFunction<JsEngine.JsContext, Value, T> processResult, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      JsEngine.JsContext jsContext = jsEngine.newContext();
+      jsContext.enter();
+      try {
+         Value value = invoke(jsContext, function, input, statsKey);
+         //end of the sin
+         return processResult.apply(jsContext, value);
+      } catch (PolyglotException e) {
+         onException.accept(buildCode(function, input), e);
+         return null;
+      } finally {
+         closeContext(jsContext, onOutput);
+      }
    }
 
    static boolean evaluateTest(String function, JsonNode input,
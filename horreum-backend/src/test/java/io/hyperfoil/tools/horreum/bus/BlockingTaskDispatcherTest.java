@@ -0,0 +1,184 @@
+package io.hyperfoil.tools.horreum.bus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
+
+import org.junit.jupiter.api.Test;
+
+import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
+import io.hyperfoil.tools.horreum.test.PostgresResource;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+
+@QuarkusTest
+@QuarkusTestResource(PostgresResource.class)
+@QuarkusTestResource(OidcWiremockTestResource.class)
+@TestProfile(HorreumTestProfile.class)
+public class BlockingTaskDispatcherTest {
+   @Inject
+   BlockingTaskDispatcher dispatcher;
+
+   @Inject
+   TransactionManager tm;
+
+   @Test
+   public void testTasksOfTestRunInOrder() throws InterruptedException {
+      int testId = 1_000_001;
+      int tasks = 50;
+      List<Integer> executed = new CopyOnWriteArrayList<>();
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      CountDownLatch done = new CountDownLatch(tasks);
+      for (int i = 0; i < tasks; ++i) {
+         int seq = i;
+         dispatcher.executeForTest(testId, () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            executed.add(seq);
+            running.decrementAndGet();
+            done.countDown();
+         });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertEquals(1, maxRunning.get());
+      assertEquals(0, dispatcher.queuedTasks());
+      for (int i = 0; i < tasks; ++i) {
+         assertEquals(i, executed.get(i));
+      }
+   }
+
+   @Test
+   public void testDifferentTestsRunInParallel() throws InterruptedException {
+      CountDownLatch bothRunning = new CountDownLatch(2);
+      CountDownLatch done = new CountDownLatch(2);
+      Runnable task = () -> {
+         bothRunning.countDown();
+         try {
+            if (bothRunning.await(10, TimeUnit.SECONDS)) {
+               done.countDown();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      };
+      dispatcher.executeForTest(1_000_002, task);
+      dispatcher.executeForTest(1_000_003, task);
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testBlockedTestDoesNotBlockOthers() throws InterruptedException {
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch blockedDone = new CountDownLatch(1);
+      CountDownLatch otherDone = new CountDownLatch(1);
+      dispatcher.executeForTest(1_000_004, () -> {
+         try {
+            release.await(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+      dispatcher.executeForTest(1_000_004, blockedDone::countDown);
+      dispatcher.executeForTest(1_000_005, otherDone::countDown);
+      assertTrue(otherDone.await(10, TimeUnit.SECONDS));
+      // the second task of the blocked test waits for the first one
+      assertFalse(blockedDone.await(100, TimeUnit.MILLISECONDS));
+      release.countDown();
+      assertTrue(blockedDone.await(10, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testFullQueueBlocksCaller() throws Exception {
+      BlockingTaskDispatcher small = smallDispatcher(Duration.ofSeconds(10));
+      try {
+         CountDownLatch release = new CountDownLatch(1);
+         CountDownLatch done = new CountDownLatch(4);
+         small.executeForTest(1, () -> await(release, done));
+         // the first task is running, these two fill the queue
+         small.executeForTest(1, done::countDown);
+         small.executeForTest(1, done::countDown);
+         CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> small.executeForTest(1, done::countDown));
+         assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+         assertFalse(blocked.isDone());
+         release.countDown();
+         blocked.get(10, TimeUnit.SECONDS);
+         // no task has been dropped
+         assertTrue(done.await(10, TimeUnit.SECONDS));
+      } finally {
+         small.shutdown();
+      }
+   }
+
+   @Test
+   public void testFullQueueRejectsAfterTimeout() throws InterruptedException {
+      BlockingTaskDispatcher small = smallDispatcher(Duration.ofMillis(200));
+      try {
+         CountDownLatch release = new CountDownLatch(1);
+         CountDownLatch done = new CountDownLatch(3);
+         small.executeForTest(1, () -> await(release, done));
+         small.executeForTest(1, done::countDown);
+         small.executeForTest(1, done::countDown);
+         assertThrows(RejectedExecutionException.class, () -> small.executeForTest(1, done::countDown));
+         release.countDown();
+         assertTrue(done.await(10, TimeUnit.SECONDS));
+      } finally {
+         small.shutdown();
+      }
+   }
+
+   @Test
+   public void testTaskInTransactionRunsAfterCommit() throws Exception {
+      CountDownLatch committed = new CountDownLatch(1);
+      tm.begin();
+      try {
+         dispatcher.executeForTest(1_000_006, committed::countDown);
+         assertFalse(committed.await(100, TimeUnit.MILLISECONDS));
+      } finally {
+         tm.commit();
+      }
+      assertTrue(committed.await(10, TimeUnit.SECONDS));
+
+      CountDownLatch rolledBack = new CountDownLatch(1);
+      tm.begin();
+      try {
+         dispatcher.executeForTest(1_000_006, rolledBack::countDown);
+      } finally {
+         tm.rollback();
+      }
+      assertFalse(rolledBack.await(100, TimeUnit.MILLISECONDS));
+   }
+
+   private BlockingTaskDispatcher smallDispatcher(Duration enqueueTimeout) {
+      BlockingTaskDispatcher dispatcher = new BlockingTaskDispatcher();
+      dispatcher.tm = tm;
+      dispatcher.threads = 1;
+      dispatcher.queueSize = 2;
+      dispatcher.enqueueTimeout = enqueueTimeout;
+      dispatcher.init();
+      return dispatcher;
+   }
+
+   private static void await(CountDownLatch release, CountDownLatch done) {
+      try {
+         release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      done.countDown();
+   }
+}
@@ -0,0 +1,122 @@
+package io.hyperfoil.tools.horreum.payload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the store against a minimal in-memory stand-in of an S3 service.
+ */
+public class S3PayloadStoreTest {
+   private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+   private final CountDownLatch unblock = new CountDownLatch(1);
+   private HttpServer server;
+   private S3PayloadStore store;
+
+   @BeforeEach
+   public void start() throws IOException {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext("/bucket/", this::handle);
+      server.createContext("/unresponsive/", exchange -> {
+         try {
+            unblock.await(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         respond(exchange, 200, new byte[0]);
+      });
+      server.start();
+      store = new S3PayloadStore();
+      store.endpoint = Optional.of("http://localhost:" + server.getAddress().getPort());
+      store.bucket = Optional.of("bucket");
+      store.region = "us-east-1";
+      store.accessKey = Optional.of("access");
+      store.secretKey = Optional.of("secret");
+      store.connectTimeout = Duration.ofSeconds(10);
+      store.requestTimeout = Duration.ofSeconds(10);
+      store.init();
+   }
+
+   @AfterEach
+   public void stop() {
+      unblock.countDown();
+      server.stop(0);
+   }
+
+   private void handle(HttpExchange exchange) throws IOException {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=access/")
+            || exchange.getRequestHeaders().getFirst("x-amz-date") == null) {
+         respond(exchange, 403, new byte[0]);
+         return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      switch (exchange.getRequestMethod()) {
+         case "PUT" -> {
+            objects.put(path, exchange.getRequestBody().readAllBytes());
+            respond(exchange, 200, new byte[0]);
+         }
+         case "GET" -> {
+            byte[] object = objects.get(path);
+            if (object == null) {
+               respond(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>".getBytes(StandardCharsets.UTF_8));
+            } else {
+               respond(exchange, 200, object);
+            }
+         }
+         case "DELETE" -> respond(exchange, objects.remove(path) == null ? 404 : 204, null);
+         default -> respond(exchange, 405, new byte[0]);
+      }
+   }
+
+   private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+      exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+      if (body != null) {
+         exchange.getResponseBody().write(body);
+      }
+      exchange.close();
+   }
+
+   @Test
+   public void testStoreOpenDelete() throws IOException {
+      byte[] payload = "{\"value\":42}".getBytes(StandardCharsets.UTF_8);
+      store.store("runs/1/payload.json", payload);
+      assertTrue(objects.containsKey("/bucket/runs/1/payload.json"));
+      try (InputStream stream = store.open("runs/1/payload.json")) {
+         assertArrayEquals(payload, stream.readAllBytes());
+      }
+      store.delete("runs/1/payload.json");
+      assertEquals(0, objects.size());
+      // repeated delete is fine
+      store.delete("runs/1/payload.json");
+      assertThrows(IOException.class, () -> store.open("runs/1/payload.json"));
+   }
+
+   @Test
+   public void testRequestTimeout() {
+      store.bucket = Optional.of("unresponsive");
+      store.requestTimeout = Duration.ofMillis(200);
+      assertThrows(HttpTimeoutException.class, () -> store.store("runs/1/payload.json", new byte[] { '{', '}' }));
+   }
+}
@@ -0,0 +1,66 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class BackgroundThrottleTest {
+   private final ExecutorService executor = Executors.newFixedThreadPool(3);
+   private final ProcessingLane live = new ProcessingLane("live", "run-recalc", new SimpleMeterRegistry());
+   private final BackgroundThrottle throttle = new BackgroundThrottle(live, 1);
+
+   @AfterEach
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void testNotThrottledWithoutLiveWork() {
+      throttle.run(() -> assertEquals(1, throttle.availablePermits()));
+   }
+
+   @Test
+   public void testThrottledWhileLiveWorkIsActive() throws Exception {
+      CountDownLatch liveStarted = new CountDownLatch(1);
+      CountDownLatch liveRelease = new CountDownLatch(1);
+      Future<?> liveWork = executor.submit(() -> live.track(() -> await(liveStarted, liveRelease)));
+      assertTrue(liveStarted.await(10, TimeUnit.SECONDS));
+
+      CountDownLatch firstStarted = new CountDownLatch(1);
+      CountDownLatch firstRelease = new CountDownLatch(1);
+      Future<?> first = executor.submit(() -> throttle.run(() -> await(firstStarted, firstRelease)));
+      assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+      assertEquals(0, throttle.availablePermits());
+
+      CountDownLatch secondStarted = new CountDownLatch(1);
+      Future<?> second = executor.submit(() -> throttle.run(secondStarted::countDown));
+      assertFalse(secondStarted.await(200, TimeUnit.MILLISECONDS));
+
+      firstRelease.countDown();
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+      liveRelease.countDown();
+      liveWork.get(10, TimeUnit.SECONDS);
+      assertEquals(1, throttle.availablePermits());
+   }
+
+   private static void await(CountDownLatch started, CountDownLatch release) {
+      started.countDown();
+      try {
+         assertTrue(release.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+         throw new RuntimeException(e);
+      }
+   }
+}
@@ -0,0 +1,168 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.TestInfo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.api.data.Dataset;
+import io.hyperfoil.tools.horreum.api.data.Extractor;
+import io.hyperfoil.tools.horreum.api.data.Schema;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.data.Transformer;
+import io.hyperfoil.tools.horreum.api.services.RunService;
+import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.RunDAO;
+import io.hyperfoil.tools.horreum.payload.PayloadStorage;
+import io.hyperfoil.tools.horreum.test.PayloadStoreTestProfile;
+import io.hyperfoil.tools.horreum.test.TestUtil;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+
+@QuarkusTest
+@TestProfile(PayloadStoreTestProfile.class)
+public class PayloadStorageTest extends BaseServiceTest {
+
+   @org.junit.jupiter.api.Test
+   public void testLargeRunOffloaded(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+
+      ObjectNode data = largeRun(42, schema);
+      int runId = uploadRun(data, test.name);
+      Dataset.EventNew event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event);
+
+      RunDAO run = RunDAO.findById(runId);
+      assertNotNull(run.dataRef);
+      assertEquals(schema.uri, run.data.path("$schema").asText());
+      assertTrue(run.data.path("samples").isMissingNode());
+
+      DatasetDAO dataset = DatasetDAO.findById(event.datasetId);
+      assertEquals(42, dataset.data.path(0).path("value").intValue());
+      List<?> labelValues = jsonRequest().get("/api/dataset/" + event.datasetId + "/labelValues")
+            .then().statusCode(200).extract().body().as(List.class);
+      assertEquals(1, labelValues.size());
+
+      JsonNode downloaded = jsonRequest().get("/api/run/" + runId + "/data").then().statusCode(200)
+            .extract().as(JsonNode.class);
+      assertEquals(data, downloaded);
+      RunService.RunExtended extended = getRun(runId, null);
+      assertEquals(data, extended.data);
+
+      // recalculation reads the data from the store
+      jsonRequest().post("/api/run/" + runId + "/recalculate").then().statusCode(200);
+      event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertEquals(42, DatasetDAO.<DatasetDAO>findById(event.datasetId).data.path(0).path("value").intValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testReplacedPayloadDeleted(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      Schema otherSchema = createExampleSchema("PayloadOther", "PayloadOther", "replaced", true);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+
+      int runId = uploadRun(largeRun(42, schema), test.name);
+      assertNotNull(dataSetQueue.poll(10, TimeUnit.SECONDS));
+      String key = RunDAO.<RunDAO>findById(runId).dataRef;
+      assertNotNull(key);
+      Path payload = Path.of("target/payloads").resolve(key);
+      assertTrue(Files.exists(payload));
+
+      // the data is moved back to the database and offloaded again after the transformation
+      jsonRequest().header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).body(otherSchema.uri)
+            .post("/api/run/" + runId + "/schema").then().statusCode(200);
+      TestUtil.eventually(() -> !Files.exists(payload));
+      TestUtil.eventually(() -> {
+         em.clear();
+         String newKey = RunDAO.<RunDAO>findById(runId).dataRef;
+         return newKey != null && !newKey.equals(key);
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUnsupportedPathKeepsDatasets(TestInfo info) throws InterruptedException {
+      Schema schema = createExampleSchema(info);
+      // division is evaluated only by the database
+      Transformer transformer = createTransformer("half", schema, "half => ({ half })",
+            new Extractor("half", "$.value / 2", false));
+      Test test = createTest(createExampleTest(getTestName(info)));
+      addTransformer(test, transformer);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+
+      int runId = uploadRun(largeRun(42, schema), test.name);
+      Dataset.EventNew event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertNotNull(RunDAO.<RunDAO>findById(runId).dataRef);
+      assertEquals(21, DatasetDAO.<DatasetDAO>findById(event.datasetId).data.path(0).path("half").intValue());
+
+      jsonRequest().post("/api/run/" + runId + "/recalculate").then().statusCode(200);
+      em.clear();
+      List<DatasetDAO> datasets = DatasetDAO.list("run.id", runId);
+      assertEquals(1, datasets.size());
+      assertEquals(event.datasetId, datasets.get(0).id);
+      assertEquals(21, datasets.get(0).data.path(0).path("half").intValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testSmallRunKept(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+
+      int runId = uploadRun(runWithValue(42, schema), test.name);
+      assertNotNull(dataSetQueue.poll(10, TimeUnit.SECONDS));
+      RunDAO run = RunDAO.findById(runId);
+      assertNull(run.dataRef);
+      assertEquals(42, run.data.path("value").intValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testSkeleton() {
+      ObjectNode data = JsonNodeFactory.instance.objectNode();
+      data.put("$schema", "urn:root");
+      data.put("value", 1);
+      data.set("nested", JsonNodeFactory.instance.objectNode().put("$schema", "urn:nested").put("value", 2));
+      data.set("other", JsonNodeFactory.instance.objectNode().put("value", 3));
+      JsonNode skeleton = PayloadStorage.skeleton(data);
+      assertEquals(JsonNodeFactory.instance.objectNode().put("$schema", "urn:root")
+            .set("nested", JsonNodeFactory.instance.objectNode().put("$schema", "urn:nested")), skeleton);
+
+      ArrayNode array = JsonNodeFactory.instance.arrayNode();
+      array.add(JsonNodeFactory.instance.objectNode().put("value", 1));
+      array.add(JsonNodeFactory.instance.objectNode().put("$schema", "urn:item").put("value", 2));
+      skeleton = PayloadStorage.skeleton(array);
+      assertEquals(2, skeleton.size());
+      assertEquals(0, skeleton.get(0).size());
+      assertEquals("urn:item", skeleton.get(1).path("$schema").asText());
+   }
+
+   private static ObjectNode largeRun(double value, Schema schema) {
+      ObjectNode data = runWithValue(value, schema);
+      ArrayNode samples = data.putArray("samples");
+      for (int i = 0; i < 200; ++i) {
+         samples.add(i);
+      }
+      return data;
+   }
+}
@@ -0,0 +1,36 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ProcessingLaneTest {
+   private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+   @Test
+   public void testCounters() {
+      ProcessingLane lane = new ProcessingLane("live", "run-recalc", registry);
+      lane.queued();
+      lane.queued();
+      assertEquals(2, registry.get(ProcessingLane.QUEUED_METRIC).tag("lane", "live").counter().count());
+      lane.process(() -> assertEquals(1, lane.active()));
+      assertEquals(0, lane.active());
+      // messages sent by other nodes are counted as processed, too
+      lane.process(() -> {});
+      lane.process(() -> {});
+      assertEquals(2, registry.get(ProcessingLane.QUEUED_METRIC).tag("lane", "live").counter().count());
+      assertEquals(3, registry.get(ProcessingLane.PROCESSED_METRIC).tag("lane", "live").counter().count());
+      assertEquals(3, registry.get(ProcessingLane.TIME_METRIC).tag("channel", "run-recalc").timer().count());
+   }
+
+   @Test
+   public void testTrack() {
+      ProcessingLane lane = new ProcessingLane("live", "run-recalc", registry);
+      // e.g. synchronous upload is live work but it was not received from the channel
+      lane.track(() -> assertEquals(1, lane.active()));
+      assertEquals(0, lane.active());
+      assertEquals(0, registry.get(ProcessingLane.PROCESSED_METRIC).tag("lane", "live").counter().count());
+      assertEquals(1, registry.get(ProcessingLane.TIME_METRIC).tag("channel", "run-recalc").timer().count());
+   }
+}
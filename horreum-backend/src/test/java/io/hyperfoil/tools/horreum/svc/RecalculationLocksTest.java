@@ -0,0 +1,77 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RecalculationLocksTest {
+   private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+   private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+   @AfterEach
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void testDifferentTestsRunInParallel() throws Exception {
+      RecalculationLocks locks = new RecalculationLocks(16, registry);
+      CountDownLatch bothRunning = new CountDownLatch(2);
+      Runnable task = () -> {
+         bothRunning.countDown();
+         try {
+            assertTrue(bothRunning.await(10, TimeUnit.SECONDS));
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+      };
+      Future<?> first = executor.submit(() -> locks.run(1, task));
+      Future<?> second = executor.submit(() -> locks.run(2, task));
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+      assertEquals(2, registry.get(RecalculationLocks.ACQUIRED_METRIC).counter().count());
+      assertEquals(0, registry.get(RecalculationLocks.WAIT_METRIC).timer().count());
+   }
+
+   @Test
+   public void testSameTestIsSerialized() throws Exception {
+      RecalculationLocks locks = new RecalculationLocks(16, registry);
+      CountDownLatch firstRunning = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch secondDone = new CountDownLatch(1);
+      Future<?> first = executor.submit(() -> locks.run(42, () -> {
+         firstRunning.countDown();
+         try {
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+      }));
+      assertTrue(firstRunning.await(10, TimeUnit.SECONDS));
+      Future<?> second = executor.submit(() -> locks.run(42, secondDone::countDown));
+      // the second task must not start while the first one holds the lock
+      assertFalse(secondDone.await(200, TimeUnit.MILLISECONDS));
+      release.countDown();
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+      assertEquals(1, registry.get(RecalculationLocks.WAIT_METRIC).timer().count());
+      assertEquals(2, registry.get(RecalculationLocks.ACQUIRED_METRIC).counter().count());
+   }
+
+   @Test
+   public void testInvalidStripes() {
+      assertThrows(IllegalArgumentException.class, () -> new RecalculationLocks(0, registry));
+   }
+}
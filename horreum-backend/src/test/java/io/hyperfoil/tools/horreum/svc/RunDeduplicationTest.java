@@ -0,0 +1,34 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.TestInfo;
+
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.api.services.RunService;
+import io.hyperfoil.tools.horreum.test.DeduplicationTestProfile;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+@QuarkusTest
+@TestProfile(DeduplicationTestProfile.class)
+public class RunDeduplicationTest extends BaseServiceTest {
+
+   @org.junit.jupiter.api.Test
+   public void testDuplicateUpload(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long now = System.currentTimeMillis();
+      int runId = uploadRun(now, runWithValue(42), test.name);
+      // e.g. retried CI job
+      assertEquals(runId, uploadRun(now, runWithValue(42), test.name));
+      assertEquals(1, jsonRequest().get("/api/run/count?testId=" + test.id).then().statusCode(200)
+            .extract().as(RunService.RunCount.class).total);
+
+      assertNotEquals(runId, uploadRun(now, runWithValue(43), test.name));
+      assertNotEquals(runId, uploadRun(now + 1, runWithValue(42), test.name));
+
+      trashRun(runId, test.id);
+      assertNotEquals(runId, uploadRun(now, runWithValue(42), test.name));
+   }
+}
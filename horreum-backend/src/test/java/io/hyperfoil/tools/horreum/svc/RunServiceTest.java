@@ -2,8 +2,12 @@ package io.hyperfoil.tools.horreum.svc;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -15,10 +19,14 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.alerting.ChangeDetection;
 import io.hyperfoil.tools.horreum.api.alerting.Variable;
@@ -28,8 +36,12 @@ import io.hyperfoil.tools.horreum.api.services.DatasetService;
 import io.hyperfoil.tools.horreum.api.services.ExperimentService;
 import io.hyperfoil.tools.horreum.api.services.RunService;
 import io.hyperfoil.tools.horreum.bus.AsyncEventChannels;
+import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
 import io.restassured.response.Response;
+import org.hibernate.Hibernate;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import jakarta.validation.constraints.NotNull;
 import jakarta.ws.rs.core.HttpHeaders;
 
@@ -40,6 +52,7 @@ import io.hyperfoil.tools.horreum.entity.data.*;
 import jakarta.ws.rs.core.MediaType;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -49,11 +62,13 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.test.PostgresResource;
 import io.hyperfoil.tools.horreum.test.TestUtil;
+import io.quarkus.arc.ClientProxy;
 import io.quarkus.test.common.QuarkusTestResource;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.oidc.server.OidcWiremockTestResource;
 import io.restassured.RestAssured;
+import io.restassured.config.DecoderConfig;
 import io.restassured.specification.RequestSpecification;
 
 @QuarkusTest
@@ -63,6 +78,12 @@ import io.restassured.specification.RequestSpecification;
 public class RunServiceTest extends BaseServiceTest {
    private static final int POLL_DURATION_SECONDS = 10;
 
+   @Inject
+   RunServiceImpl runService;
+
+   @ConfigProperty(name = "horreum.run.upload-batch-size")
+   int uploadBatchSize;
+
    @org.junit.jupiter.api.Test
    public void testTransformationNoSchemaInData(TestInfo info) throws InterruptedException {
       Test exampleTest = createExampleTest(getTestName(info));
@@ -487,6 +508,51 @@ public class RunServiceTest extends BaseServiceTest {
       validateScalarArray(ds, target);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testParallelTransformersMatchSequential(TestInfo info) {
+      Schema schema = createExampleSchema("ParallelCorp", "ParallelInc", "ParallelRUs", false);
+      Transformer arrayTransformer = createTransformer("arrayT", schema,
+            "mheep => mheep.map(x => ({ \"outcome\": x }))", new Extractor("mheep", "$.values", false));
+      Transformer scalarTransformer = createTransformer("scalarT", schema,
+            "sheep => ({ \"outcome\": { sheep } })", new Extractor("sheep", "$.value", false));
+      Transformer combinedTransformer = createTransformer("combinedT", schema,
+            "({ value, values }) => ({ \"sum\": values.reduce((a, b) => a + b, value) })",
+            new Extractor("value", "$.value", false), new Extractor("values", "$.values", false));
+      Test test = createTest(createExampleTest(getTestName(info)));
+      addTransformer(test, arrayTransformer, scalarTransformer, combinedTransformer);
+
+      int runId = uploadRun(runWithValue(42.0d, schema), test.name);
+      List<JsonNode> parallel = recalculatedDatasetData(runId);
+      assertEquals(3, parallel.size());
+      assertTrue(StreamSupport.stream(parallel.get(0).spliterator(), false)
+            .anyMatch(item -> item.path("sum").asInt() == 42 + 43 + 44 + 45));
+
+      RunServiceImpl impl = ClientProxy.unwrap(runService);
+      int parallelism = impl.transformerParallelism;
+      boolean batchExtraction = impl.batchExtraction;
+      try {
+         impl.transformerParallelism = 1;
+         impl.batchExtraction = false;
+         impl.shutdown();
+         impl.init();
+         assertEquals(parallel, recalculatedDatasetData(runId));
+      } finally {
+         impl.transformerParallelism = parallelism;
+         impl.batchExtraction = batchExtraction;
+         impl.init();
+      }
+   }
+
+   private List<JsonNode> recalculatedDatasetData(int runId) {
+      recalculateDataset(runId);
+      try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+         List<JsonNode> data = DatasetDAO.<DatasetDAO>find("run.id = ?1 ORDER BY ordinal", runId).stream()
+               .map(ds -> ds.data).toList();
+         em.clear();
+         return data;
+      }
+   }
+
    @org.junit.jupiter.api.Test
    public void testSelectRunBySchema(TestInfo info) throws InterruptedException {
       Schema schemaA = createExampleSchema("Aba", "Aba", "Aba", false);
@@ -642,6 +708,50 @@ public class RunServiceTest extends BaseServiceTest {
       });
    }
 
+   @org.junit.jupiter.api.Test
+   public void testReprocessingKeepsOnlyUnchangedDatasets() {
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("value", 1);
+      withExampleDataset(createTest(createExampleTest("reprocess")), data, ds -> {
+         // reprocessing after a schema change does not touch a dataset that would be the same
+         assertEquals(1, runService.transformQueued(ds.runId));
+         assertEquals(List.of(ds.id), datasetIds(ds.runId));
+
+         // changed dataset is replaced
+         Util.withTx(tm, () -> {
+            try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+               RunDAO run = RunDAO.findById(ds.runId);
+               run.data = JsonNodeFactory.instance.objectNode().put("value", 2);
+               run.persist();
+            }
+            return null;
+         });
+         runService.transformQueued(ds.runId);
+         List<Integer> changedIds = datasetIds(ds.runId);
+         assertEquals(1, changedIds.size());
+         assertNotEquals(ds.id, changedIds.get(0));
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            DatasetDAO dataset = DatasetDAO.findById(changedIds.get(0));
+            assertEquals(2, dataset.data.path(0).path("value").intValue());
+            em.clear();
+         }
+
+         // recalculation requested by the user always rebuilds the datasets
+         List<Integer> recalculatedIds = recalculateDataset(ds.runId);
+         assertEquals(1, recalculatedIds.size());
+         assertNotEquals(changedIds.get(0), recalculatedIds.get(0));
+         assertEquals(recalculatedIds, datasetIds(ds.runId));
+         return null;
+      });
+   }
+
+   private List<Integer> datasetIds(int runId) {
+      try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+         List<Integer> ids = DatasetDAO.<DatasetDAO>find("run.id", runId).stream().map(ds -> ds.id).toList();
+         em.clear();
+         return ids;
+      }
+   }
+
    protected List<Integer> recalculateDataset(int runId) {
       ArrayNode json = jsonRequest().post("/api/run/" + runId + "/recalculate").then().statusCode(200).extract().body().as(ArrayNode.class);
       ArrayList<Integer> list = new ArrayList<>(json.size());
@@ -691,6 +801,305 @@ public class RunServiceTest extends BaseServiceTest {
       assertEquals(test.name, response.testname);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testMultipartUpload(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long now = System.currentTimeMillis();
+      byte[] data = ("{ \"start\": " + now + ", \"value\": 42 }").getBytes(StandardCharsets.UTF_8);
+      String runId = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.MULTIPART_FORM_DATA)
+            .multiPart("data", "data.json", data, MediaType.APPLICATION_JSON)
+            .post("/api/run/data?start=$.start&stop=$.start&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().asString();
+      RunDAO run = RunDAO.findById(Integer.parseInt(runId));
+      assertEquals(42, run.data.path("value").asInt());
+      assertEquals(now, run.start.toEpochMilli());
+
+      RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.MULTIPART_FORM_DATA)
+            .multiPart("data", "data.json", "{ \"value\": 1 } { \"value\": 2 }".getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_JSON)
+            .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(400);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testAsyncUpload(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+
+      long now = System.currentTimeMillis();
+      Response response = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .body(runWithValue(42, schema))
+            .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC + "&async=true")
+            .then()
+            .statusCode(202)
+            .extract().response();
+      int runId = Integer.parseInt(response.asString());
+      assertTrue(response.header(HttpHeaders.LOCATION).endsWith("/api/run/" + runId + "/status"));
+
+      Dataset.EventNew event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertEquals(runId, event.runId);
+      // a run uploaded asynchronously is new, not recalculated
+      assertFalse(event.isRecalculation);
+
+      TestUtil.eventually(() -> {
+         RunService.RunStatus status = jsonRequest().get("/api/run/" + runId + "/status")
+               .then().statusCode(200).extract().as(RunService.RunStatus.class);
+         assertEquals(RunService.ProcessingStage.PROCESSED, status.stage);
+         assertEquals(test.id, status.testid);
+         assertEquals(1, status.datasets);
+         assertEquals(0, status.errors);
+      });
+      jsonRequest().get("/api/run/" + Integer.MAX_VALUE + "/status").then().statusCode(404);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRunStatusFailedLabels(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addLabel(schema, "broken", null, new Extractor("broken", "$.value ? (", false));
+      int runId = uploadRun(runWithValue(42, schema), test.name);
+
+      TestUtil.eventually(() -> {
+         RunService.RunStatus status = jsonRequest().get("/api/run/" + runId + "/status")
+               .then().statusCode(200).extract().as(RunService.RunStatus.class);
+         // the dataset exists but its label values could not be extracted
+         assertEquals(RunService.ProcessingStage.FAILED, status.stage);
+         assertEquals(1, status.datasets);
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testBatchUpload(TestInfo info) throws InterruptedException {
+      Test first = createTest(createExampleTest(getTestName(info) + "-1"));
+      Test second = createTest(createExampleTest(getTestName(info) + "-2"));
+      Schema schema = createExampleSchema(info);
+      BlockingQueue<Dataset.EventNew> firstQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, first.id);
+      BlockingQueue<Dataset.EventNew> secondQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, second.id);
+
+      long now = System.currentTimeMillis();
+      ArrayNode runs = JsonNodeFactory.instance.arrayNode();
+      for (int i = 0; i < 3; ++i) {
+         String timestamp = Instant.ofEpochMilli(now + i).toString();
+         runs.addObject().put("start", timestamp).put("stop", timestamp).set("data", runWithValue(i, schema));
+      }
+      // the second run goes to another test than the one in query
+      ((ObjectNode) runs.get(1)).put("testid", second.id);
+      Integer[] runIds = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+            .body(runs.toString())
+            .post("/api/run/batch?test=" + first.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().as(Integer[].class);
+      assertEquals(3, runIds.length);
+      assertEquals(first.id, RunDAO.<RunDAO>findById(runIds[0]).testid);
+      assertEquals(second.id, RunDAO.<RunDAO>findById(runIds[1]).testid);
+      assertEquals(2, RunDAO.<RunDAO>findById(runIds[2]).data.path("value").asInt());
+
+      for (int i = 0; i < 2; ++i) {
+         Dataset.EventNew event = firstQueue.poll(10, TimeUnit.SECONDS);
+         assertNotNull(event);
+         assertFalse(event.isRecalculation);
+      }
+      assertNotNull(secondQueue.poll(10, TimeUnit.SECONDS));
+
+      String ndjson = runs.get(0).toString() + "\n" + runs.get(2).toString() + "\n";
+      runIds = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, ApiUtil.APPLICATION_NDJSON)
+            .body(ndjson)
+            .post("/api/run/batch?test=" + first.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().as(Integer[].class);
+      assertEquals(2, runIds.length);
+
+      RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+            .body("[{ \"start\": \"2024-01-01T00:00:00Z\", \"stop\": \"2024-01-01T00:00:00Z\" }]")
+            .post("/api/run/batch?test=" + first.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(400);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testBatchUploadReportsStoredRuns(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long now = System.currentTimeMillis();
+      StringBuilder ndjson = new StringBuilder();
+      for (int i = 0; i < uploadBatchSize; ++i) {
+         String timestamp = Instant.ofEpochMilli(now + i).toString();
+         ObjectNode run = JsonNodeFactory.instance.objectNode().put("start", timestamp).put("stop", timestamp);
+         run.set("data", runWithValue(i));
+         ndjson.append(run).append('\n');
+      }
+      // the first batch is committed before the malformed element is read
+      ndjson.append("{ \"start\": ");
+      JsonNode error = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, ApiUtil.APPLICATION_NDJSON)
+            .body(ndjson.toString())
+            .post("/api/run/batch?test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(400)
+            .extract().as(JsonNode.class);
+      assertTrue(error.path("error").asText().startsWith("Cannot read runs"));
+      assertEquals(uploadBatchSize, error.path("stored").size());
+      assertEquals(uploadBatchSize, jsonRequest().get("/api/run/count?testId=" + test.id).then().statusCode(200)
+            .extract().as(RunService.RunCount.class).total);
+      assertEquals(test.id, RunDAO.<RunDAO>findById(error.path("stored").path(0).asInt()).testid);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testCompressedUploadAndDownload(TestInfo info) throws IOException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      ObjectNode data = runWithValue(42);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+         gzip.write(data.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      long now = System.currentTimeMillis();
+      String runId = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+            .body(compressed.toByteArray())
+            .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().asString();
+
+      Response response = RestAssured.given().auth().oauth2(getTesterToken())
+            .config(RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders()))
+            .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+            .get("/api/run/" + runId + "/data")
+            .then()
+            .statusCode(200)
+            .extract().response();
+      assertEquals("gzip", response.header(HttpHeaders.CONTENT_ENCODING));
+      try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(response.asByteArray()))) {
+         assertEquals(data, new ObjectMapper().readTree(gzip));
+      }
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testIdenticalUploadCreatesNewRun(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long now = System.currentTimeMillis();
+      int runId = uploadRun(now, runWithValue(42), test.name);
+      // deduplication is disabled by default
+      assertNotEquals(runId, uploadRun(now, runWithValue(42), test.name));
+      assertEquals(2, jsonRequest().get("/api/run/count?testId=" + test.id).then().statusCode(200)
+            .extract().as(RunService.RunCount.class).total);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRunDataLoadedLazily(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int runId = uploadRun(runWithValue(42), test.name);
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            RunDAO run = RunDAO.findById(runId);
+            assertEquals(test.id, run.testid);
+            assertFalse(Hibernate.isPropertyInitialized(run, "data"));
+            assertFalse(Hibernate.isPropertyInitialized(run, "metadata"));
+            assertEquals(42, run.data.path("value").intValue());
+            // separate lazy groups
+            assertFalse(Hibernate.isPropertyInitialized(run, "metadata"));
+         }
+         return null;
+      });
+
+      jsonRequest().header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).body("lazy")
+            .post("/api/run/" + runId + "/description").then().statusCode(204);
+      assertEquals("lazy", getRun(runId, null).description);
+      jsonRequest().header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).body("x")
+            .post("/api/run/" + Integer.MAX_VALUE + "/description").then().statusCode(404);
+
+      trashRun(runId, test.id);
+      assertTrue(getRun(runId, null).trashed);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUpdateSchema(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      int runId = uploadRun(runWithValue(42), test.name);
+
+      Map<?, ?> schemas = jsonRequest().header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN).body(schema.uri)
+            .post("/api/run/" + runId + "/schema").then().statusCode(200).extract().as(Map.class);
+      assertEquals(1, schemas.size());
+      // the data tree is replaced, not modified in place, so the update must be written
+      JsonNode data = jsonRequest().get("/api/run/" + runId + "/data").then().statusCode(200).extract().as(JsonNode.class);
+      assertEquals(schema.uri, data.path("$schema").asText());
+      assertEquals(42, data.path("value").intValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRecalculateAll(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      final long FROM = 7_000_000;
+      for (int i = 0; i < 3; ++i) {
+         uploadRun(FROM + i, runWithValue(i, schema), test.name);
+      }
+      RestAssured.given().auth().oauth2(getTesterToken())
+            .post("/api/run/recalculateAll?from=" + FROM + "&to=" + (FROM + 10)).then().statusCode(403);
+      RestAssured.given().auth().oauth2(getAdminToken())
+            .post("/api/run/recalculateAll?from=" + FROM + "&to=" + (FROM + 10)).then().statusCode(204);
+      TestUtil.eventually(() -> {
+         RunService.RecalculateAllStatus status = RestAssured.given().auth().oauth2(getAdminToken())
+               .get("/api/run/recalculateAll").then().statusCode(200).extract().as(RunService.RecalculateAllStatus.class);
+         assertEquals(FROM, status.from);
+         assertEquals(3, status.totalRuns);
+         return status.finished != null && status.queueDepth == 0;
+      });
+      RunService.RecalculateAllStatus status = RestAssured.given().auth().oauth2(getAdminToken())
+            .get("/api/run/recalculateAll").then().statusCode(200).extract().as(RunService.RecalculateAllStatus.class);
+      assertEquals(3, status.queuedRuns);
+      assertTrue(status.finished >= status.started);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testSmileUploadAndDownload(TestInfo info) throws IOException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      ObjectNode data = runWithValue(42);
+      ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+      long now = System.currentTimeMillis();
+      String runId = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, ApiUtil.APPLICATION_SMILE)
+            .body(smileMapper.writeValueAsBytes(data))
+            .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().asString();
+
+      Response response = RestAssured.given().auth().oauth2(getTesterToken())
+            .header(HttpHeaders.ACCEPT, ApiUtil.APPLICATION_SMILE)
+            .get("/api/run/" + runId + "/data")
+            .then()
+            .statusCode(200)
+            .contentType(ApiUtil.APPLICATION_SMILE)
+            .extract().response();
+      assertEquals(data, smileMapper.readTree(response.asByteArray()));
+
+      response = RestAssured.given().auth().oauth2(getTesterToken())
+            .header(HttpHeaders.ACCEPT, ApiUtil.APPLICATION_SMILE)
+            .get("/api/run/" + runId + "/summary")
+            .then()
+            .statusCode(200)
+            .contentType(ApiUtil.APPLICATION_SMILE)
+            .extract().response();
+      assertEquals(Integer.parseInt(runId), smileMapper.readTree(response.asByteArray()).path("id").asInt());
+
+      // JSON stays the default
+      jsonRequest().get("/api/run/" + runId + "/data").then().statusCode(200).contentType(MediaType.APPLICATION_JSON);
+   }
+
    @org.junit.jupiter.api.Test
    public void testUploadToPrivateUsingToken() {
       final String MY_SECRET_TOKEN = "mySecretToken";
@@ -1162,6 +1571,69 @@ public class RunServiceTest extends BaseServiceTest {
       assertTrue(runs.runs.get(0).start.isBefore(runs.runs.get(1).start) );
    }
 
+   /**
+    * Compares the cost of removing datasets of a run one by one (as transformation used to do) with the set-based
+    * bulk delete. Run with <code>-Dhorreum.benchmark=true</code>.
+    */
+   @org.junit.jupiter.api.Test
+   @EnabledIfSystemProperty(named = "horreum.benchmark", matches = "true")
+   public void benchmarkDatasetCleanup() throws InterruptedException {
+      int datasets = Integer.getInteger("horreum.benchmark.datasets", 500);
+      Test test = createTest(createExampleTest("cleanup"));
+      BlockingQueue<Dataset.EventNew> dataSetQueue = serviceMediator.getEventQueue(AsyncEventChannels.DATASET_NEW, test.id);
+      int perDatasetRunId = uploadRun(System.currentTimeMillis(), JsonNodeFactory.instance.objectNode(), test.name);
+      assertNewDataset(dataSetQueue, perDatasetRunId);
+      int bulkRunId = uploadRun(System.currentTimeMillis(), JsonNodeFactory.instance.objectNode(), test.name);
+      assertNewDataset(dataSetQueue, bulkRunId);
+
+      List<Integer> perDatasetIds = createDatasets(perDatasetRunId, datasets);
+      long perDatasetNanos = timeInTx(() -> {
+         for (int id : perDatasetIds) {
+            for (DataPointDAO dp : DataPointDAO.<DataPointDAO>list("dataset.id", id)) {
+               dp.delete();
+            }
+            serviceMediator.propagatedDatasetsDelete(List.of(id));
+         }
+      });
+      List<Integer> bulkIds = createDatasets(bulkRunId, datasets);
+      long bulkNanos = timeInTx(() -> serviceMediator.propagatedDatasetsDelete(bulkIds));
+
+      log.infof("Removing %d datasets of a run: one by one %d ms, bulk %d ms", datasets,
+            TimeUnit.NANOSECONDS.toMillis(perDatasetNanos), TimeUnit.NANOSECONDS.toMillis(bulkNanos));
+      try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+         assertEquals(0, DatasetDAO.count("id IN ?1", perDatasetIds));
+         assertEquals(0, DatasetDAO.count("id IN ?1", bulkIds));
+      }
+   }
+
+   private List<Integer> createDatasets(int runId, int count) {
+      return Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            RunDAO run = RunDAO.findById(runId);
+            List<Integer> ids = new ArrayList<>(count);
+            for (int i = 1; i <= count; ++i) {
+               DatasetDAO ds = new DatasetDAO(run, i, run.description, JsonNodeFactory.instance.arrayNode());
+               ds.persist();
+               ids.add(ds.id);
+            }
+            em.flush();
+            em.clear();
+            return ids;
+         }
+      });
+   }
+
+   private long timeInTx(Runnable runnable) {
+      return Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            long start = System.nanoTime();
+            runnable.run();
+            em.flush();
+            return System.nanoTime() - start;
+         }
+      });
+   }
+
    private JsonNode getBySchema(JsonNode data, String schema) {
       JsonNode foo = StreamSupport.stream(data.spliterator(), false)
             .filter(item -> schema.equals(item.path("$schema").asText())).findFirst().orElse(null);
@@ -0,0 +1,142 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceException;
+import jakarta.transaction.TransactionManager;
+
+import org.hibernate.query.NativeQuery;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
+import io.hyperfoil.tools.horreum.test.PostgresResource;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+
+@QuarkusTest
+@QuarkusTestResource(PostgresResource.class)
+@QuarkusTestResource(OidcWiremockTestResource.class)
+@TestProfile(HorreumTestProfile.class)
+public class SqlJsonPathTest {
+   private static final String DOCUMENT = """
+         {
+            "$schema": "urn:example:1.0",
+            "name": "run",
+            "values": [1, 2.5, 3, null, "4"],
+            "results": [
+               { "test": "foo", "score": 10, "tags": ["a", "b"], "nested": { "depth": 1 } },
+               { "test": "bar", "score": 20.5, "tags": [], "nested": { "depth": 2, "deeper": { "depth": 3 } } },
+               [{ "test": "wrapped", "score": 30 }]
+            ],
+            "empty": {},
+            "flag": true,
+            "text": "Hello World",
+            "number": "1.5e3",
+            "z": 1, "aa": 2, "b": 3
+         }
+         """;
+
+   // compared against Postgres: jsonb_path_query_first and jsonb_path_query_array must return the same
+   private static final List<String> PATHS = List.of(
+         "$", "$.name", "$.\"$schema\"", "$.missing", "$.values", "$.values[*]", "$.values[1]", "$.values[last]",
+         "$.values[last - 1]", "$.values[0 to 2]", "$.values[1, 3 to last]", "$.values[10]", "$.name[0]", "$.name[*]",
+         "$.results.test", "$.results[*].test", "$.results[*].score", "$.results.tags", "$.results.tags[*]",
+         "$.results ? (@.score > 15).test", "$.results[*] ? (@.score >= 10 && @.score < 20).test",
+         "$.results ? (@.test == \"foo\" || @.test == \"wrapped\").score", "$.results ? (!(@.test == \"foo\")).test",
+         "$.results ? (@.test like_regex \"^B\" flag \"i\").test", "$.results ? (@.test starts with \"fo\").score",
+         "$.results ? (exists(@.nested.deeper)).test", "$.results ? (@.tags == \"b\").test", "$.results ? (@.missing == 1)",
+         "$.results ? ((@.score > 1) is unknown).test", "$.values ? (@ == null)", "$.values ? (@ != null)", "$.values ? (@ > 2)",
+         "$.values ? (@ == \"4\")", "$.*", "$.results[0].*", "$.**", "$.**.depth", "$.**{2}.depth", "$.**{1 to 2}.test",
+         "$.**{last}", "$.values.size()", "$.name.size()", "$.values[*].type()", "$.results.type()", "$.number.double()",
+         "$.values[0 to 2].double()", "$.results.score.floor()", "$.results.score.ceiling()", "-$.results[1].score.abs()",
+         "$.results[0].score + $.results[1].score", "$.results[1].score * 2", "$.results[0].score % 3", "$.values[1] - 1",
+         "$.flag == true", "$.text like_regex \"world$\"", "$.results[0].score == 10", "1.50", "\"text\"", "null",
+         "strict $.name", "strict $.results[0 to 1].test", "lax $.results.test", "$.results[0].nested.depth + 1"
+   );
+
+   // Postgres reports an error for these
+   private static final List<String> FAILING_PATHS = List.of(
+         "strict $.missing", "strict $.results.test", "strict $.values[10]", "strict $.name[0]", "$.results.score + 1",
+         "$.name.double()", "$.text.abs()", "$.values[1] % 0", "strict $.name.size()", "strict $.results[*].test"
+   );
+
+   @Inject
+   EntityManager em;
+
+   @Inject
+   TransactionManager tm;
+
+   private final ObjectMapper mapper = new ObjectMapper();
+
+   @Test
+   public void testSameResultsAsPostgres() throws JsonProcessingException {
+      JsonNode document = mapper.readTree(DOCUMENT);
+      for (String path : PATHS) {
+         SqlJsonPath jsonPath = SqlJsonPath.compile(path);
+         assertEquals(postgres("jsonb_path_query_first", path), jsonPath.queryFirst(document), path);
+         assertEquals(postgres("jsonb_path_query_array", path), jsonPath.queryArray(document), path);
+      }
+   }
+
+   @Test
+   public void testSameErrorsAsPostgres() throws JsonProcessingException {
+      JsonNode document = mapper.readTree(DOCUMENT);
+      for (String path : FAILING_PATHS) {
+         assertThrows(PersistenceException.class, () -> postgres("jsonb_path_query_array", path), path);
+         SqlJsonPath jsonPath = SqlJsonPath.compile(path);
+         assertThrows(IllegalArgumentException.class, () -> jsonPath.queryArray(document), path);
+      }
+   }
+
+   @Test
+   public void testUnsupported() {
+      for (String path : List.of("$.a / 2", "$.a ? (@ == $x)", "$.keyvalue()", "$.a.datetime()", "$.a ? (@ like_regex \"[[:digit:]]\")")) {
+         assertThrows(IllegalArgumentException.class, () -> SqlJsonPath.compile(path), path);
+      }
+   }
+
+   @Test
+   public void testNullDocument() {
+      SqlJsonPath path = SqlJsonPath.compile("$.foo");
+      assertNull(path.queryFirst(null));
+      assertNull(path.queryArray(null));
+   }
+
+   @Test
+   public void testResultIsCopy() throws JsonProcessingException {
+      JsonNode document = mapper.readTree(DOCUMENT);
+      JsonNode result = SqlJsonPath.compile("$.results[0]").queryFirst(document);
+      ((ObjectNode) result).put("test", "modified");
+      assertEquals("foo", document.path("results").path(0).path("test").asText());
+   }
+
+   @Test
+   public void testText() throws JsonProcessingException {
+      assertEquals("{\"b\": 3, \"z\": 1, \"aa\": 2}",
+            SqlJsonPath.toText(SqlJsonPath.compile("$").queryFirst(mapper.readTree("{\"z\": 1, \"aa\": 2, \"b\": 3}"))));
+      assertEquals("Hello World", SqlJsonPath.toText(SqlJsonPath.compile("$.text").queryFirst(mapper.readTree(DOCUMENT))));
+   }
+
+   private JsonNode postgres(String function, String path) {
+      return Util.withTx(tm, () -> (JsonNode) em.createNativeQuery(
+                  "SELECT " + function + "(CAST(?1 AS jsonb), CAST(?2 AS jsonpath)) AS value")
+            .setParameter(1, DOCUMENT).setParameter(2, path)
+            .unwrap(NativeQuery.class)
+            .addScalar("value", JsonBinaryType.INSTANCE)
+            .getSingleResult());
+   }
+}
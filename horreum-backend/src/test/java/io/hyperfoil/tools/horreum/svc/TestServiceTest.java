@@ -8,6 +8,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.hyperfoil.tools.horreum.action.ExperimentResultToMarkdown;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.alerting.Watch;
 import io.hyperfoil.tools.horreum.api.data.*;
@@ -35,6 +36,7 @@ import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.oidc.server.OidcWiremockTestResource;
 import io.restassured.common.mapper.TypeRef;
 import io.restassured.response.Response;
+import jakarta.inject.Inject;
 import org.hibernate.query.NativeQuery;
 import org.junit.jupiter.api.TestInfo;
 
@@ -47,6 +49,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -63,6 +68,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 @QuarkusTestResource(OidcWiremockTestResource.class)
 @TestProfile(HorreumTestProfile.class)
 class TestServiceTest extends BaseServiceTest {
+   @Inject
+   RecalculationJobs recalculationJobs;
 
    @org.junit.jupiter.api.Test
    void testListTests() {
@@ -149,6 +156,11 @@ class TestServiceTest extends BaseServiceTest {
          assertEquals(NUM_DATASETS, status.totalRuns);
          return status.finished == status.totalRuns;
       });
+      TestService.RecalculationStatus status = jsonRequest().get("/api/test/" + test.id + "/recalculate")
+            .then().statusCode(200).extract().body().as(TestService.RecalculationStatus.class);
+      assertEquals(RecalculationJobs.FINISHED, status.state);
+      assertNotNull(status.jobId);
+      assertEquals(0, status.failed);
       for (int i = 0; i < NUM_DATASETS; ++i) {
          Dataset.EventNew event = newDatasetQueue.poll(10, TimeUnit.SECONDS);
          assertNotNull(event);
@@ -164,6 +176,115 @@ class TestServiceTest extends BaseServiceTest {
       assertEquals(NUM_DATASETS, datasets.stream().map(ds -> ds.run.id).collect(Collectors.toSet()).size());
    }
 
+   @org.junit.jupiter.api.Test
+   public void testRecalculationTakesOverStaleClaims(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      final int NUM_RUNS = 3;
+      for (int i = 0; i < NUM_RUNS; ++i) {
+         uploadRun(runWithValue(i, schema), test.name);
+      }
+      TestUtil.eventually(() -> DatasetDAO.count("testid", test.id) == NUM_RUNS);
+
+      // a node died while recalculating the runs
+      long jobId = createRecalculationJob(test.id, "now() - interval '1 day'");
+      recalculationJobs.dispatch();
+      TestUtil.eventually(() -> {
+         TestService.RecalculationStatus status = jsonRequest().get("/api/test/" + test.id + "/recalculate")
+               .then().statusCode(200).extract().body().as(TestService.RecalculationStatus.class);
+         assertEquals(NUM_RUNS, status.totalRuns);
+         return RecalculationJobs.FINISHED.equals(status.state);
+      });
+      TestService.RecalculationStatus status = recalculationJobs.status(test.id);
+      assertEquals(jobId, status.jobId);
+      assertEquals(NUM_RUNS, status.finished);
+      assertEquals(0, status.failed);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testCancelRecalculation(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      uploadRun(runWithValue(42, schema), test.name);
+      uploadRun(runWithValue(43, schema), test.name);
+
+      // the runs are claimed by a live node, so this one does not recalculate them
+      long jobId = createRecalculationJob(test.id, "now()");
+      TestService.RecalculationStatus status = jsonRequest().get("/api/test/" + test.id + "/recalculate")
+            .then().statusCode(200).extract().body().as(TestService.RecalculationStatus.class);
+      assertEquals(RecalculationJobs.RUNNING, status.state);
+      assertEquals(jobId, status.jobId);
+      assertEquals(2, status.totalRuns);
+      assertEquals(0, status.finished);
+      // another recalculation does not start while one is running
+      jsonRequest().post("/api/test/" + test.id + "/recalculate").then().statusCode(204);
+      assertEquals(jobId, recalculationJobs.status(test.id).jobId);
+
+      jsonRequest().delete("/api/test/" + test.id + "/recalculate").then().statusCode(204);
+      status = jsonRequest().get("/api/test/" + test.id + "/recalculate")
+            .then().statusCode(200).extract().body().as(TestService.RecalculationStatus.class);
+      assertEquals(RecalculationJobs.CANCELLED, status.state);
+      assertNull(status.estimatedFinish);
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            assertEquals(0L, ((Number) em.createNativeQuery("SELECT count(*) FROM recalculation_item WHERE job_id = ?1")
+                  .setParameter(1, jobId).getSingleResult()).longValue());
+         }
+         return null;
+      });
+      // cancelling without a running recalculation is a no-op
+      jsonRequest().delete("/api/test/" + test.id + "/recalculate").then().statusCode(204);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testConcurrentRecalculationStartsOneJob(TestInfo info) throws Exception {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      uploadRun(runWithValue(42, schema), test.name);
+      TestUtil.eventually(() -> DatasetDAO.count("testid", test.id) == 1);
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+         Future<Boolean> other;
+         tm.begin();
+         try {
+            assertTrue(recalculationJobs.start(test.id));
+            // the other start waits until this transaction commits its running job
+            other = executor.submit(() -> recalculationJobs.start(test.id));
+            Thread.sleep(500);
+            assertFalse(other.isDone());
+         } finally {
+            tm.commit();
+         }
+         assertFalse(other.get(10, TimeUnit.SECONDS));
+      } finally {
+         executor.shutdown();
+      }
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            assertEquals(1L, ((Number) em.createNativeQuery("SELECT count(*) FROM recalculation_job WHERE testid = ?1")
+                  .setParameter(1, test.id).getSingleResult()).longValue());
+         }
+         return null;
+      });
+      TestUtil.eventually(() -> RecalculationJobs.FINISHED.equals(recalculationJobs.status(test.id).state));
+   }
+
+   private long createRecalculationJob(int testId, String claimedAt) {
+      return Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            long jobId = ((Number) em.createNativeQuery("SELECT nextval('recalculation_job_id_seq')").getSingleResult()).longValue();
+            em.createNativeQuery("INSERT INTO recalculation_job (id, testid, status, total_runs, created, updated) " +
+                        "SELECT ?1, ?2, 'RUNNING', count(*), now(), now() FROM run WHERE testid = ?2")
+                  .setParameter(1, jobId).setParameter(2, testId).executeUpdate();
+            em.createNativeQuery("INSERT INTO recalculation_item (job_id, runid, seq, claimed_at, claimed_by) " +
+                        "SELECT ?1, id, id, " + claimedAt + ", 'other-node' FROM run WHERE testid = ?2")
+                  .setParameter(1, jobId).setParameter(2, testId).executeUpdate();
+            return jobId;
+         }
+      });
+   }
+
    @org.junit.jupiter.api.Test
    public void testAddTestAction(TestInfo info) {
       Test test = createTest(createExampleTest(getTestName(info)));
@@ -420,6 +541,48 @@ class TestServiceTest extends BaseServiceTest {
       return id;
    }
 
+   @org.junit.jupiter.api.Test
+   public void exportLabelValuesNdjson() throws JsonProcessingException {
+      Test t = createTest(createExampleTest("my-test"));
+      int runId = labelValuesSetup(t);
+
+      String body = jsonRequest()
+              .get("/api/test/"+t.id+"/labelValues/export?exclude=labelBar")
+              .then()
+              .statusCode(200)
+              .contentType(ApiUtil.APPLICATION_NDJSON)
+              .extract()
+              .asString();
+      String[] lines = body.split("\n");
+      assertEquals(1, lines.length, body);
+      ExportedLabelValues values = mapper.readValue(lines[0], ExportedLabelValues.class);
+      assertEquals(runId, values.runId);
+      assertEquals("uno", values.values.get("labelFoo").asText());
+      assertFalse(values.values.containsKey("labelBar"));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void exportLabelValuesCsv() throws JsonProcessingException {
+      Test t = createTest(createExampleTest("my-test"));
+      int runId = labelValuesSetup(t);
+
+      String body = jsonRequest()
+              .get("/api/test/"+t.id+"/labelValues/export?format=csv")
+              .then()
+              .statusCode(200)
+              .contentType(ApiUtil.TEXT_CSV)
+              .extract()
+              .asString();
+      String[] lines = body.split("\n");
+      assertEquals(2, lines.length, body);
+      assertEquals("runId,datasetId,start,stop,labelBar,labelFoo", lines[0]);
+      assertTrue(lines[1].startsWith(runId + ","), lines[1]);
+      assertTrue(lines[1].endsWith(",dox,uno"), lines[1]);
+
+      jsonRequest().get("/api/test/"+t.id+"/labelValues/export?format=xml").then().statusCode(400);
+      jsonRequest().get("/api/test/"+Integer.MAX_VALUE+"/labelValues/export").then().statusCode(404);
+   }
+
    @org.junit.jupiter.api.Test
    public void labelValuesIncludeExcluded() throws JsonProcessingException {
       Test t = createTest(createExampleTest("my-test"));
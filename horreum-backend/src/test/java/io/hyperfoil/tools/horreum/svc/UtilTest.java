@@ -1,6 +1,7 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.LongNode;
 import com.fasterxml.jackson.databind.node.TextNode;
@@ -13,6 +14,9 @@ import io.quarkus.test.common.QuarkusTestResource;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Value;
 import org.jboss.logmanager.Level;
 import org.jboss.logmanager.LogContext;
 import org.jboss.logmanager.formatters.PatternFormatter;
@@ -28,7 +32,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -155,6 +162,183 @@ public class UtilTest {
         String s = (String)rtrn;
         Assertions.assertEquals("bar", s, "rtrn should be 'bar'");
     }
+    @org.junit.jupiter.api.Test
+    public void evaluateOnceCachedFunction() throws JsonProcessingException {
+        String function = "value => value.foo * 2;";
+        for (int i = 0; i < 3; ++i) {
+            Object rtrn = Util.evaluateOnce(function, new ObjectMapper().readTree("{\"foo\":" + i + "}"), Util::convert,
+                    (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+            Assertions.assertEquals((long) i * 2, rtrn);
+        }
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateFunctionsEvictedFromCache() throws JsonProcessingException {
+        JsEngine jsEngine = new JsEngine(1, false, Duration.ZERO, 0);
+        try {
+            JsonNode input = new ObjectMapper().readTree("{\"foo\":1}");
+            // a cache of a single function is replaced on every call
+            for (int i = 0; i < 3; ++i) {
+                Assertions.assertEquals(2, Util.evaluateToJson(jsEngine, "value => value.foo * 2", input, null,
+                        (code, t) -> Assertions.fail(t.getMessage()), s -> {}).asInt());
+                Assertions.assertEquals(3, Util.evaluateToJson(jsEngine, "value => value.foo * 3", input, null,
+                        (code, t) -> Assertions.fail(t.getMessage()), s -> {}).asInt());
+            }
+        } finally {
+            jsEngine.close();
+        }
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateDoesNotLeakBuiltins() throws JsonProcessingException {
+        JsonNode input = new ObjectMapper().readTree("{\"foo\":[1,5,3]}");
+        String polluting = "value => { Math.max = () => -1; Array.prototype.includes = () => true; JSON.stringify = () => 'polluted'; globalThis.leaked = 42; return 0; }";
+        String reading = "value => [Math.max(1, 5, 3), [1].includes(2), JSON.stringify({a:1}), typeof leaked]";
+        Util.evaluateToJson(polluting, input, (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        JsonNode rtrn = Util.evaluateToJson(reading, input, (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        Assertions.assertEquals("[5,false,\"{\\\"a\\\":1}\",\"undefined\"]", rtrn.toString());
+
+        // functions evaluated together (e.g. labels of a dataset) do not see each other's changes either
+        List<String> functions = List.of(polluting, reading);
+        List<JsonNode> results = new ArrayList<>();
+        Util.evaluateWithCombinationFunction(functions, f -> f, f -> input,
+                (f, value) -> results.add(Util.convertToJson(value)), f -> {},
+                (f, e, code) -> Assertions.fail(e.getMessage()), s -> {});
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertEquals(rtrn, results.get(1));
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateToJsonNested() throws JsonProcessingException {
+        JsonNode input = new ObjectMapper().readTree("{\"nested\":{\"foo\":[1,2,3]}}");
+        JsonNode rtrn = Util.evaluateToJson("value => value.nested", input,
+                (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        Assertions.assertEquals(input.get("nested"), rtrn);
+        rtrn = Util.evaluateToJson("value => ({ sum: value.nested.foo.reduce((a, b) => a + b, 0), keys: Object.keys(value) })", input,
+                (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        Assertions.assertEquals(6, rtrn.path("sum").asInt());
+        Assertions.assertEquals("nested", rtrn.path("keys").path(0).asText());
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateDoesNotModifyInput() throws JsonProcessingException {
+        JsonNode input = new ObjectMapper().readTree("{\"foo\":{\"bar\":1},\"arr\":[1,2]}");
+        JsonNode copy = input.deepCopy();
+        JsonNode rtrn = Util.evaluateToJson("value => { value.foo.bar = 2; delete value.arr; return value; }", input,
+                (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        Assertions.assertEquals(2, rtrn.path("foo").path("bar").asInt());
+        Assertions.assertEquals(copy, input);
+    }
+    @org.junit.jupiter.api.Test
+    public void proxiedInputIsReadOnly() throws JsonProcessingException {
+        JsonNode input = new ObjectMapper().readTree("{\"foo\":{\"bar\":1},\"arr\":[1,2]}");
+        JsonNode copy = input.deepCopy();
+        try (Context context = Context.newBuilder("js").allowExperimentalOptions(true)
+                .option("js.foreign-object-prototype", "true").build()) {
+            // depending on the mode the writes either fail or are ignored; either way the input must not change
+            Value function = context.eval("js", "(value => {\n" +
+                    "  try { value.foo.bar = 2; } catch (e) {}\n" +
+                    "  try { delete value.foo; } catch (e) {}\n" +
+                    "  try { value.arr[0] = 5; } catch (e) {}\n" +
+                    "  return value.foo.bar;\n" +
+                    "})");
+            Assertions.assertEquals(1, function.execute(ProxyJackson.wrap(input)).asInt());
+        }
+        Assertions.assertEquals(copy, input);
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateInterruptsLongRunningFunction() throws JsonProcessingException {
+        JsEngine jsEngine = new JsEngine(10, false, Duration.ofMillis(200), 0);
+        try {
+            JsonNode input = new ObjectMapper().readTree("{\"foo\":1}");
+            List<Throwable> failures = new ArrayList<>();
+            long start = System.nanoTime();
+            JsonNode rtrn = Util.evaluateToJson(jsEngine, "value => { while (true) {} }", input, null,
+                    (code, t) -> failures.add(t), s -> {});
+            Assertions.assertNull(rtrn);
+            Assertions.assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(10)) < 0);
+            Assertions.assertEquals(1, failures.size());
+            PolyglotException e = Assertions.assertInstanceOf(PolyglotException.class, failures.get(0));
+            Assertions.assertTrue(e.isInterrupted() || e.isCancelled(), e.toString());
+
+            // the engine keeps working for the following functions
+            rtrn = Util.evaluateToJson(jsEngine, "value => value.foo + 1", input, null,
+                    (code, t) -> Assertions.fail(t.getMessage()), s -> {});
+            Assertions.assertEquals(2, rtrn.asInt());
+        } finally {
+            jsEngine.close();
+        }
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateEnforcesStatementLimit() throws JsonProcessingException {
+        JsEngine jsEngine = new JsEngine(10, false, Duration.ZERO, 10_000);
+        try {
+            JsonNode input = new ObjectMapper().readTree("{\"foo\":1}");
+            List<Throwable> failures = new ArrayList<>();
+            JsonNode rtrn = Util.evaluateToJson(jsEngine, "value => { let i = 0; while (true) { i++; } }", input, null,
+                    (code, t) -> failures.add(t), s -> {});
+            Assertions.assertNull(rtrn);
+            Assertions.assertEquals(1, failures.size());
+            PolyglotException e = Assertions.assertInstanceOf(PolyglotException.class, failures.get(0));
+            Assertions.assertTrue(e.isResourceExhausted() || e.isCancelled(), e.toString());
+
+            // the limit applies to each call separately
+            for (int i = 0; i < 3; ++i) {
+                rtrn = Util.evaluateToJson(jsEngine, "value => { let sum = 0; for (let i = 0; i < 1000; ++i) { sum += value.foo; } return sum; }",
+                        input, null, (code, t) -> Assertions.fail(t.getMessage()), s -> {});
+                Assertions.assertEquals(1000, rtrn.asInt());
+            }
+        } finally {
+            jsEngine.close();
+        }
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateToJsonRecordsTiming() throws JsonProcessingException {
+        JsonNode input = new ObjectMapper().readTree("{\"foo\":1}");
+        JsFunctionStats.Key key = JsFunctionStats.Key.label(-1, -1);
+        Util.evaluateToJson("value => value.foo", input, key, (s, t) -> Assertions.fail(t.getMessage()), s -> {});
+        Util.evaluateToJson("value => value.bar.baz", input, key, (s, t) -> {}, s -> {});
+        List<JsFunctionStats.Stats> slowest = JsFunctionStats.slowest(-1, 10);
+        Assertions.assertEquals(1, slowest.size());
+        Assertions.assertEquals(key, slowest.get(0).key);
+        Assertions.assertEquals(2, slowest.get(0).invocations());
+        Assertions.assertEquals(1, slowest.get(0).failures());
+        JsFunctionStats.onTestDeleted(-1);
+        Assertions.assertTrue(JsFunctionStats.slowest(-1, 10).isEmpty());
+    }
+    @org.junit.jupiter.api.Test
+    public void evaluateBuiltinFunctions() throws JsonProcessingException {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode array = mapper.readTree("[4, null, \"2\", 1.5, 10]");
+        Assertions.assertEquals(17.5, evaluateBuiltin("builtin:sum", array).asDouble());
+        Assertions.assertEquals(4.375, evaluateBuiltin("builtin:avg", array).asDouble());
+        Assertions.assertEquals(1.5, evaluateBuiltin("builtin:min", array).asDouble());
+        Assertions.assertEquals(10, evaluateBuiltin("builtin:max", array).asLong());
+        Assertions.assertEquals(3, evaluateBuiltin("builtin:percentile(50)", array).asLong());
+        Assertions.assertEquals(10, evaluateBuiltin(" builtin:percentile(100) ", array).asLong());
+        Assertions.assertTrue(evaluateBuiltin("builtin:sum", mapper.readTree("[]")).isNull());
+
+        JsonNode object = mapper.readTree("{\"a\": 3, \"b\": \"2\", \"stats\": {\"mean\": 12.5, \"values\": [1, 2]}}");
+        Assertions.assertEquals(1.5, evaluateBuiltin("builtin:ratio(a, b)", object).asDouble());
+        Assertions.assertEquals(12.5, evaluateBuiltin("builtin:pick(stats.mean)", object).asDouble());
+        Assertions.assertEquals(2, evaluateBuiltin("builtin:pick(stats.values.1)", object).asInt());
+        Assertions.assertTrue(evaluateBuiltin("builtin:pick(stats.missing)", object).isNull());
+        Assertions.assertEquals(42.5, evaluateBuiltin("builtin:number", new TextNode(" 42.5ms")).asDouble());
+
+        List<String> errors = new ArrayList<>();
+        Util.evaluateToJson("builtin:ratio(a, zero)", mapper.readTree("{\"a\": 1, \"zero\": 0}"), (code, t) -> errors.add(t.getMessage()), s -> {});
+        Util.evaluateToJson("builtin:median", array, (code, t) -> errors.add(t.getMessage()), s -> {});
+        Assertions.assertEquals(2, errors.size());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BuiltinFunction.parse("builtin:percentile(101)"));
+        Assertions.assertNull(BuiltinFunction.parse("value => value.mean"));
+
+        List<Double> results = new ArrayList<>();
+        Util.evaluateWithCombinationFunction(List.of(array, object), node -> node.isArray() ? "builtin:max" : "value => value.a",
+                node -> node, (node, value) -> results.add(Util.toDoubleOrNull(value, Assertions::fail, s -> {})),
+                node -> Assertions.fail(), (node, t, code) -> Assertions.fail(t.getMessage()), s -> {});
+        Assertions.assertEquals(List.of(10.0, 3.0), results);
+    }
+
+    private static JsonNode evaluateBuiltin(String function, JsonNode input) {
+        return Util.evaluateToJson(function, input, (code, t) -> Assertions.fail(t.getMessage()), s -> {});
+    }
+
     @org.junit.jupiter.api.Test
     public void evaluateOnceAsync(){
             Object rtrn = Util.evaluateOnce(
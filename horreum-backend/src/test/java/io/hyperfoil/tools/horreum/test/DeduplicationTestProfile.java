@@ -0,0 +1,13 @@
+package io.hyperfoil.tools.horreum.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DeduplicationTestProfile extends HorreumTestProfile {
+   @Override
+   public Map<String, String> getConfigOverrides() {
+      Map<String, String> configOverrides = new HashMap<>(super.getConfigOverrides());
+      configOverrides.put("horreum.run.deduplicate", "true");
+      return configOverrides;
+   }
+}
@@ -0,0 +1,15 @@
+package io.hyperfoil.tools.horreum.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PayloadStoreTestProfile extends HorreumTestProfile {
+   @Override
+   public Map<String, String> getConfigOverrides() {
+      Map<String, String> configOverrides = new HashMap<>(super.getConfigOverrides());
+      configOverrides.put("horreum.payload.store", "filesystem");
+      configOverrides.put("horreum.payload.filesystem.path", "target/payloads");
+      configOverrides.put("horreum.payload.threshold", "1024");
+      return configOverrides;
+   }
+}
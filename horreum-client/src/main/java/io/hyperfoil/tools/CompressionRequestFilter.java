@@ -0,0 +1,18 @@
+package io.hyperfoil.tools;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+
+/**
+ * Marks requests with a body for gzip compression; the body is then compressed by
+ * {@link org.jboss.resteasy.plugins.interceptors.GZIPEncodingInterceptor} as it is written.
+ */
+public class CompressionRequestFilter implements ClientRequestFilter {
+   @Override
+   public void filter(ClientRequestContext requestContext) {
+      if (requestContext.hasEntity() && !requestContext.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+         requestContext.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+      }
+   }
+}
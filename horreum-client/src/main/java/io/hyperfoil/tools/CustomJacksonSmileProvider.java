@@ -0,0 +1,17 @@
+package io.hyperfoil.tools;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.jakarta.rs.smile.JacksonSmileProvider;
+
+public class CustomJacksonSmileProvider extends JacksonSmileProvider {
+   public CustomJacksonSmileProvider() {
+      // Same configuration as CustomResteasyJackson2Provider
+      ObjectMapper customSmileMapper = new ObjectMapper(new SmileFactory());
+      customSmileMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+      customSmileMapper.registerModule(new JavaTimeModule());
+      this.setMapper(customSmileMapper);
+   }
+}
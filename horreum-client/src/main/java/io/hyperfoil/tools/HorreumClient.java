@@ -22,6 +22,9 @@ import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.jboss.resteasy.client.jaxrs.internal.ResteasyClientBuilderImpl;
 import org.jboss.resteasy.plugins.providers.DefaultTextPlain;
 import org.jboss.resteasy.plugins.providers.StringTextStar;
+import org.jboss.resteasy.plugins.interceptors.AcceptEncodingGZIPFilter;
+import org.jboss.resteasy.plugins.interceptors.GZIPDecodingInterceptor;
+import org.jboss.resteasy.plugins.interceptors.GZIPEncodingInterceptor;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
@@ -39,6 +42,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.List;
 
 import static io.hyperfoil.tools.horreum.api.services.ConfigService.KEYCLOAK_BOOTSTRAP_URL;
 
@@ -83,6 +87,17 @@ public class HorreumClient implements Closeable {
         this.userService = userService;
     }
 
+    /**
+     * Streams all label values of the test, with the same parameters as {@link TestService#labelValues}
+     * (null for the default). The iterator must be closed after use.
+     */
+    public LabelValuesIterator exportLabelValues(int testId, String filter, String before, String after,
+                                                 boolean filtering, boolean metrics, String sort, String direction,
+                                                 List<String> include, List<String> exclude) {
+        return new LabelValuesIterator(testService.exportLabelValues(testId, filter, before, after, filtering, metrics,
+                sort, direction, "ndjson", include, exclude));
+    }
+
     @Override
     public void close() {
         client.close();
@@ -93,6 +108,8 @@ public class HorreumClient implements Closeable {
         private String horreumUser;
         private String horreumPassword;
         private SSLContext sslContext;
+        private boolean compressRequests;
+        private boolean preferSmile = true;
 
         public Builder() {
         }
@@ -138,6 +155,24 @@ public class HorreumClient implements Closeable {
             }
         }
 
+        /**
+         * Compress request bodies (e.g. uploaded runs) using gzip. The Horreum server must have
+         * request decompression enabled. Compressed responses are accepted regardless of this setting.
+         */
+        public Builder compressRequests(boolean compressRequests) {
+            this.compressRequests = compressRequests;
+            return this;
+        }
+
+        /**
+         * Ask for the binary Smile encoding instead of JSON where the endpoint supports it (run data, datasets
+         * and label values). Enabled by default; servers that do not support Smile keep responding with JSON.
+         */
+        public Builder preferSmile(boolean preferSmile) {
+            this.preferSmile = preferSmile;
+            return this;
+        }
+
         public HorreumClient build() throws IllegalStateException {
 
             if (sslContext == null) {
@@ -169,6 +204,7 @@ public class HorreumClient implements Closeable {
 
             //Override default ObjectMapper Provider
             clientBuilder.register(new CustomResteasyJackson2Provider(), 100);
+            clientBuilder.register(new CustomJacksonSmileProvider(), 100);
             clientBuilder.sslContext(sslContext);
 
             //Register Keycloak Request Filter
@@ -176,6 +212,16 @@ public class HorreumClient implements Closeable {
             // Other MessageBodyReaders/Writers that may not be found by ServiceLoader mechanism
             clientBuilder.register(new StringTextStar());
             clientBuilder.register(new DefaultTextPlain());
+            // Ask for compressed responses and decode them
+            clientBuilder.register(new AcceptEncodingGZIPFilter());
+            clientBuilder.register(new GZIPDecodingInterceptor());
+            if (preferSmile) {
+                clientBuilder.register(new SmileAcceptFilter());
+            }
+            if (compressRequests) {
+                clientBuilder.register(new CompressionRequestFilter());
+                clientBuilder.register(new GZIPEncodingInterceptor());
+            }
 
             ResteasyClient client = clientBuilder.build();
             ResteasyWebTarget target = client.target(UriBuilder.fromPath(this.horreumUrl));
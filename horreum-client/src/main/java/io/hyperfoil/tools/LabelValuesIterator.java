@@ -0,0 +1,61 @@
+package io.hyperfoil.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import io.hyperfoil.tools.horreum.api.ApiUtil;
+import io.hyperfoil.tools.horreum.api.data.ExportedLabelValues;
+
+/**
+ * Reads label values from the newline delimited JSON export one by one, as these arrive from the server.
+ * The iterator holds the connection open until it is closed.
+ */
+public class LabelValuesIterator implements Iterator<ExportedLabelValues>, Closeable {
+   private final Response response;
+   private final MappingIterator<ExportedLabelValues> values;
+
+   public LabelValuesIterator(Response response) {
+      this.response = response;
+      if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+         response.close();
+         throw new WebApplicationException(response);
+      }
+      try {
+         InputStream stream = response.readEntity(InputStream.class);
+         values = ApiUtil.OBJECT_MAPPER.readerFor(ExportedLabelValues.class)
+               .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+               .readValues(stream);
+      } catch (IOException e) {
+         response.close();
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   public boolean hasNext() {
+      return values.hasNext();
+   }
+
+   @Override
+   public ExportedLabelValues next() {
+      return values.next();
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         values.close();
+      } finally {
+         response.close();
+      }
+   }
+}
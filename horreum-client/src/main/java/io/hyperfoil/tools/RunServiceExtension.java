@@ -14,6 +14,8 @@ import io.hyperfoil.tools.horreum.api.client.RunService;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunsSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunCount;
+import io.hyperfoil.tools.horreum.api.services.RunService.RecalculateAllStatus;
+import io.hyperfoil.tools.horreum.api.services.RunService.RunStatus;
 
 import io.hyperfoil.tools.horreum.api.data.Run;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
@@ -45,6 +47,11 @@ public class RunServiceExtension implements RunService {
       return delegate.getRunSummary(id, token);
    }
 
+   @Override
+   public RunStatus getRunStatus(int id, String token) {
+      return delegate.getRunStatus(id, token);
+   }
+
    @Override
    public Object getData(int id, String token, String schemaUri) {
       return delegate.getData(id, token, schemaUri);
@@ -80,6 +87,11 @@ public class RunServiceExtension implements RunService {
       return delegate.add(testNameOrId, owner, access, token, run);
    }
 
+   @Override
+   public List<Integer> addBatch(String testNameOrId, String owner, Access access, String token, List<Run> runs) {
+      return delegate.addBatch(testNameOrId, owner, access, token, runs);
+   }
+
    @Override
    public Response addRunFromData(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, JsonNode data) {
       return delegate.addRunFromData(start, stop, test, owner, access, token, schemaUri, description, data);
@@ -162,4 +174,9 @@ public class RunServiceExtension implements RunService {
    public void recalculateAll(String from, String to) {
       delegate.recalculateAll(from, to);
    }
+
+   @Override
+   public RecalculateAllStatus getRecalculateAllStatus() {
+      return delegate.getRecalculateAllStatus();
+   }
 }
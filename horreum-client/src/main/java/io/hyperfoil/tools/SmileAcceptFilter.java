@@ -0,0 +1,29 @@
+package io.hyperfoil.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+
+import io.hyperfoil.tools.horreum.api.ApiUtil;
+
+/**
+ * Prefers the binary Smile encoding for responses of endpoints that can produce it. JSON stays acceptable
+ * with a lower quality so that servers without Smile support respond as before.
+ */
+public class SmileAcceptFilter implements ClientRequestFilter {
+   private static final MediaType SMILE = MediaType.valueOf(ApiUtil.APPLICATION_SMILE);
+   private static final MediaType JSON_FALLBACK = MediaType.valueOf(MediaType.APPLICATION_JSON + ";q=0.9");
+
+   @Override
+   public void filter(ClientRequestContext requestContext) {
+      // wildcards are not matched: the endpoint must list Smile explicitly
+      if (requestContext.getAcceptableMediaTypes().stream().anyMatch(
+            type -> SMILE.getType().equals(type.getType()) && SMILE.getSubtype().equals(type.getSubtype()))) {
+         requestContext.getHeaders().put(HttpHeaders.ACCEPT, new ArrayList<>(List.of(SMILE, JSON_FALLBACK)));
+      }
+   }
+}
@@ -1,6 +1,7 @@
 package io.hyperfoil.tools.horreum.api.client;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import io.hyperfoil.tools.horreum.api.ApiUtil;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Run;
@@ -8,6 +9,8 @@ import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunsSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunCount;
+import io.hyperfoil.tools.horreum.api.services.RunService.RecalculateAllStatus;
+import io.hyperfoil.tools.horreum.api.services.RunService.RunStatus;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DefaultValue;
@@ -32,7 +35,7 @@ import static io.hyperfoil.tools.horreum.api.services.RunService.RunExtended;
 
 @Path("/api/run")
 @Consumes({ MediaType.APPLICATION_JSON})
-@Produces(MediaType.APPLICATION_JSON)
+@Produces({ MediaType.APPLICATION_JSON, ApiUtil.APPLICATION_SMILE })
 public interface RunService {
    @GET
    @Path("{id}")
@@ -43,6 +46,10 @@ public interface RunService {
    @Path("{id}/summary")
    RunSummary getRunSummary(@PathParam("id") int id, @QueryParam("token") String token);
 
+   @GET
+   @Path("{id}/status")
+   RunStatus getRunStatus(@PathParam("id") int id, @QueryParam("token") String token);
+
    @GET
    @Path("{id}/data")
    Object getData(@PathParam("id") int id, @QueryParam("token") String token, @QueryParam("schemaUri") String schemaUri);
@@ -82,6 +89,15 @@ public interface RunService {
               @QueryParam("token") String token,
               Run run);
 
+   @POST
+   @Path("batch")
+   @Consumes(MediaType.APPLICATION_JSON)
+   List<Integer> addBatch(@QueryParam("test") String testNameOrId,
+                          @QueryParam("owner") String owner,
+                          @QueryParam("access") Access access,
+                          @QueryParam("token") String token,
+                          List<Run> runs);
+
    @POST
    @Path("data")
    @Produces(MediaType.TEXT_PLAIN) // run ID as string
@@ -153,4 +169,8 @@ public interface RunService {
    @Path("recalculateAll")
    void recalculateAll(@QueryParam("from") String from, @QueryParam("to") String to);
 
+   @GET
+   @Path("recalculateAll")
+   RecalculateAllStatus getRecalculateAllStatus();
+
 }
@@ -58,6 +58,7 @@ export const RunImportModal = (props: RunImportModalProps) => {
                  undefined,
                  schemaUrn,
                  undefined,
+                 false,
                   JSON.parse(payloadData || "")
              )
              , alerting, "UPLOAD_ERROR", "Failed to upload run data")